@@ -0,0 +1,297 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class writes the RoomUpdatesLog. By default it is a write-behind
+ * appender: a room update only queues its log record and returns, and a
+ * flusher thread writes the queued records in one JDBC batch once
+ * -Dhotel.audit.batchSize records are waiting or the oldest has waited
+ * -Dhotel.audit.flushMillis, whichever comes first.
+ *
+ * The queue is a lock-free linked queue bounded by -Dhotel.audit.capacity.
+ * When it is full the caller writes its own record synchronously, so a slow
+ * database slows the managers down instead of losing records. Records still
+ * queued when the application stops are written by close().
+ *
+ * With -Dhotel.audit.durable=true the record is instead written in the same
+ * transaction as the room update, so the two are committed together.
+ *
+ * A batch that fails is written again one record at a time. Records that
+ * fail for a reason another try cannot fix, e.g. a constraint violation, are
+ * reported on stderr and dropped, so they do not hold up the records behind
+ * them; only transient failures are retried.
+ *
+ * The updateNumber comes from a database sequence.
+ *
+ */
+public class AuditLog {
+
+   /**
+    * One row of RoomUpdatesLog. The time is taken when the update is made,
+    * not when the row is written.
+    */
+   public static class Record {
+      public final int managerId, hotelId, roomNumber;
+      public final Timestamp updatedOn;
+
+      public Record(int managerId, int hotelId, int roomNumber, Timestamp updatedOn){
+         this.managerId = managerId;
+         this.hotelId = hotelId;
+         this.roomNumber = roomNumber;
+         this.updatedOn = updatedOn;
+      }
+   }//end Record
+
+   /**
+    * The statements that make up one room update, run in the transaction
+    * that also writes the log record in durable mode. Returns the number of
+    * rows changed; nothing is logged when it is 0.
+    */
+   public interface Change {
+      int apply(ConnectionPool.PooledConnection pc) throws SQLException;
+   }//end Change
+
+   static final String INSERT =
+      "INSERT INTO RoomUpdatesLog (updateNumber, managerID, hotelID, roomNumber, updatedOn) " +
+      "VALUES (nextval('roomupdateslog_updatenumber_seq'), ?, ?, ?, ?)";
+
+   static final boolean DURABLE = Boolean.getBoolean("hotel.audit.durable");
+
+   private final Hotel esql;
+   private final int capacity = Integer.getInteger("hotel.audit.capacity", 10000);
+   private final int batchSize = Integer.getInteger("hotel.audit.batchSize", 100);
+   private final long flushNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("hotel.audit.flushMillis", 200));
+
+   private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger depth = new AtomicInteger();
+   // records of a failed flush, retried before anything newer
+   private final List<Record> retry = new ArrayList<>();
+   private final Object flushLock = new Object();
+
+   private final AtomicInteger maxDepth = new AtomicInteger();
+   private final AtomicLong appended = new AtomicLong(), written = new AtomicLong(), flushes = new AtomicLong(),
+                            failures = new AtomicLong(), overflows = new AtomicLong(), rejected = new AtomicLong();
+   private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+   private volatile boolean closed = false;
+   private volatile Thread flusher;
+
+   public AuditLog(Hotel esql){
+      this.esql = esql;
+   }//end AuditLog
+
+   /**
+    * Starts the flusher thread. Until it runs, records are written by the
+    * caller.
+    */
+   public synchronized void start(){
+      if (flusher != null || DURABLE) return;
+      flusher = new Thread(() -> {
+         while (!closed){
+            long deadline = System.nanoTime() + flushNanos;
+            // sleep until the batch is full or the flush interval is over
+            for (long left; !closed && depth.get() < batchSize && (left = deadline - System.nanoTime()) > 0; )
+               LockSupport.parkNanos(this, left);
+            try{
+               flush();
+            }catch (SQLException e){
+               System.err.println("Audit log flush failed, retrying: " + e.getMessage());
+               LockSupport.parkNanos(this, flushNanos);
+            }
+         }
+      }, "hotel-audit-flusher");
+      flusher.setDaemon(true);
+      flusher.start();
+   }//end start
+
+   /**
+    * Applies a room update and logs it if it changed a row. In durable mode
+    * both are committed in one transaction; otherwise the update is committed
+    * on its own and the record is queued.
+    *
+    * @param change the statements of the update
+    * @param record what to log
+    * @return the number of rows the update changed
+    * @throws java.sql.SQLException when the update (or, in durable mode, the
+    *         log record) could not be written
+    */
+   public int update(Change change, Record record) throws SQLException {
+      if (DURABLE){
+         int changed = esql.inTransaction(pc -> {
+            int rows = change.apply(pc);
+            if (rows > 0) write(pc, record);
+            return rows;
+         });
+         if (changed > 0){
+            appended.incrementAndGet();
+            written.incrementAndGet();
+         }
+         return changed;
+      }
+      int changed = esql.inTransaction(pc -> change.apply(pc));
+      if (changed > 0) append(record);
+      return changed;
+   }//end update
+
+   /**
+    * Queues a record, or writes it right away when the queue is full or the
+    * flusher is not running.
+    *
+    * @throws java.sql.SQLException when the record had to be written and that failed
+    */
+   public void append(Record record) throws SQLException {
+      appended.incrementAndGet();
+      if (flusher == null || closed || depth.get() >= capacity){
+         if (flusher != null) overflows.incrementAndGet();
+         esql.inTransaction(pc -> {
+            write(pc, record);
+            return null;
+         });
+         written.incrementAndGet();
+         return;
+      }
+      queue.offer(record);
+      int d = depth.incrementAndGet();
+      int m;
+      while (d > (m = maxDepth.get()) && !maxDepth.compareAndSet(m, d));
+      if (d >= batchSize) LockSupport.unpark(flusher);
+   }//end append
+
+   /**
+    * Writes everything queued so far.
+    *
+    * @throws java.sql.SQLException when a record could not be written for a
+    *         transient reason; it and those after it are kept and retried by
+    *         the next flush
+    */
+   public void flush() throws SQLException {
+      synchronized (flushLock){
+         while (!retry.isEmpty() || depth.get() > 0){
+            for (Record r; retry.size() < batchSize && (r = queue.poll()) != null; ){
+               depth.decrementAndGet();
+               retry.add(r);
+            }
+            long started = System.nanoTime();
+            try{
+               esql.inTransaction(pc -> {
+                  PreparedStatement insert = pc.statements().prepare(INSERT);
+                  for (Record r : retry){
+                     bind(insert, r);
+                     insert.addBatch();
+                  }
+                  insert.executeBatch();
+                  return null;
+               });
+            }catch (SQLException e){
+               failures.incrementAndGet();
+               writeOneByOne();
+               continue;
+            }
+            flushLatency.record(System.nanoTime() - started);
+            flushes.incrementAndGet();
+            written.addAndGet(retry.size());
+            retry.clear();
+         }
+      }
+   }//end flush
+
+   /*
+    * Writes the records of a failed batch one at a time, dropping those that
+    * fail for good and stopping at the first transient failure.
+    **/
+   private void writeOneByOne() throws SQLException {
+      while (!retry.isEmpty()){
+         Record r = retry.get(0);
+         try{
+            esql.inTransaction(pc -> {
+               write(pc, r);
+               return null;
+            });
+            written.incrementAndGet();
+         }catch (SQLException e){
+            if (BookingService.isTransient(e)) throw e;
+            rejected.incrementAndGet();
+            System.err.println("Audit log: record dropped (manager " + r.managerId + ", hotel " + r.hotelId + ", room " +
+                               r.roomNumber + ", " + r.updatedOn + "): " + e.getSQLState() + " " + e.getMessage());
+         }
+         retry.remove(0);
+      }
+   }
+
+   /**
+    * Stops the flusher and writes what is still queued.
+    */
+   public void close(){
+      Thread t;
+      synchronized (this){
+         closed = true;
+         t = flusher;
+      }
+      if (t != null){
+         LockSupport.unpark(t);
+         try{
+            t.join(5000);
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }
+      }
+      try{
+         flush();
+      }catch (SQLException e){
+         System.err.println("Audit log: " + (retry.size() + depth.get()) + " records not written: " + e.getMessage());
+      }
+   }//end close
+
+   private static void write(ConnectionPool.PooledConnection pc, Record record) throws SQLException {
+      PreparedStatement insert = pc.statements().prepare(INSERT);
+      bind(insert, record);
+      insert.executeUpdate();
+   }
+
+   private static void bind(PreparedStatement insert, Record record) throws SQLException {
+      insert.setInt(1, record.managerId);
+      insert.setInt(2, record.hotelId);
+      insert.setInt(3, record.roomNumber);
+      insert.setTimestamp(4, record.updatedOn);
+   }
+
+   /**
+    * @return a snapshot of the queue and the flushes since start
+    */
+   public Stats stats(){
+      Stats s = new Stats();
+      s.depth = depth.get();
+      s.maxDepth = maxDepth.get();
+      s.appended = appended.get();
+      s.written = written.get();
+      s.flushes = flushes.get();
+      s.failures = failures.get();
+      s.overflows = overflows.get();
+      s.rejected = rejected.get();
+      s.durable = DURABLE;
+      s.flushLatency = flushLatency.summary();
+      return s;
+   }//end stats
+
+   public static class Stats {
+      public int depth, maxDepth;
+      public long appended, written, flushes, failures, overflows, rejected;
+      public boolean durable;
+      public String flushLatency;
+
+      public String toString(){
+         return String.format("audit %s depth=%d max=%d appended=%d written=%d flushes=%d failures=%d " +
+            "overflows=%d rejected=%d flush latency %s", durable ? "durable" : "write-behind", depth, maxDepth,
+            appended, written, flushes, failures, overflows, rejected, flushLatency);
+      }
+   }//end Stats
+
+}//end AuditLog
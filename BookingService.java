@@ -0,0 +1,390 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines the booking path. A booking is a single statement that
+ * looks up the room, draws the bookingID from a database sequence and inserts
+ * the row, letting a unique index on (hotelID, roomNumber, bookingDate) reject
+ * a second booking of the same night. There is no check-then-act window left
+ * between reading the bookings and inserting, so concurrent desks cannot
+ * double book a room and restarts cannot reuse an ID.
+ *
+ */
+public class BookingService {
+
+   /**
+    * Outcome of a booking attempt.
+    */
+   public enum Status { BOOKED, UNAVAILABLE, NO_SUCH_ROOM }
+
+   public static class Result {
+      public final Status status;
+      public final int bookingId;
+      public final String price;
+
+      Result(Status status, int bookingId, String price){
+         this.status = status;
+         this.bookingId = bookingId;
+         this.price = price;
+      }
+   }//end Result
+
+   /**
+    * Told about every booking this service inserts, e.g. to keep in-memory
+    * structures current.
+    */
+   public interface Listener {
+      void booked(int bookingId, int customerId, int hotelId, int roomNumber, LocalDate date);
+   }//end Listener
+
+   static final String BOOK =
+      "WITH room AS (" +
+      "   SELECT price FROM Rooms WHERE hotelID = ? AND roomNumber = ?" +
+      "), booked AS (" +
+      "   INSERT INTO RoomBookings (bookingID, customerID, hotelID, roomNumber, bookingDate) " +
+      "   SELECT nextval('roombookings_bookingid_seq'), ?, ?, ?, CAST(? AS DATE) FROM room " +
+      "   ON CONFLICT (hotelID, roomNumber, bookingDate) DO NOTHING " +
+      "   RETURNING bookingID" +
+      ") " +
+      "SELECT (SELECT price FROM room), (SELECT bookingID FROM booked)";
+
+   private final Hotel esql;
+   private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+   private final int maxAttempts = Integer.getInteger("hotel.booking.maxAttempts", 4);
+   private final long backoffMillis = Long.getLong("hotel.booking.backoffMillis", 20);
+   // bounds of a group booking, which is checked and inserted in one transaction
+   private final int maxNights = Integer.getInteger("hotel.booking.maxNights", 366);
+   private final int maxBatchNights = Integer.getInteger("hotel.booking.maxBatchNights", 10000);
+
+   // throughput and contention counters
+   private final long startedAt = System.currentTimeMillis();
+   private final AtomicLong attempts = new AtomicLong();
+   private final AtomicLong booked = new AtomicLong();
+   private final AtomicLong conflicts = new AtomicLong();
+   private final AtomicLong retries = new AtomicLong();
+   private final AtomicLong failures = new AtomicLong();
+   private final AtomicLong totalNanos = new AtomicLong();
+
+   public BookingService(Hotel esql){
+      this.esql = esql;
+   }//end BookingService
+
+   public void addListener(Listener listener){
+      listeners.add(listener);
+   }
+
+   /**
+    * Books one room for one night in a single round trip. Transient failures
+    * (serialization failures, deadlocks, lost connections) are retried with
+    * exponential backoff.
+    *
+    * @return whether the room was booked, already taken or does not exist
+    * @throws java.sql.SQLException when the booking failed after all retries
+    */
+   public Result book(int customerId, int hotelId, int roomNumber, LocalDate date) throws SQLException {
+      long start = System.nanoTime();
+      try{
+         for (int attempt = 1; ; ++attempt){
+            attempts.incrementAndGet();
+            try{
+               Result result = bookOnce(customerId, hotelId, roomNumber, date);
+               if (result.status == Status.BOOKED){
+                  booked.incrementAndGet();
+                  for (Listener l : listeners)
+                     l.booked(result.bookingId, customerId, hotelId, roomNumber, date);
+               }else if (result.status == Status.UNAVAILABLE){
+                  conflicts.incrementAndGet();
+               }
+               return result;
+            }catch (SQLException e){
+               if (attempt >= maxAttempts || !isTransient(e)){
+                  failures.incrementAndGet();
+                  throw e;
+               }
+               retries.incrementAndGet();
+               backoff(attempt);
+            }
+         }
+      }finally{
+         totalNanos.addAndGet(System.nanoTime() - start);
+      }
+   }//end book
+
+   private Result bookOnce(int customerId, int hotelId, int roomNumber, LocalDate date) throws SQLException {
+      List<List<String>> res = esql.executeQueryAndReturnResult(BOOK,
+         hotelId, roomNumber, customerId, hotelId, roomNumber, java.sql.Date.valueOf(date));
+      String price = res.get(0).get(0), bookingId = res.get(0).get(1);
+      if (price == null) return new Result(Status.NO_SUCH_ROOM, -1, null);
+      if (bookingId == null) return new Result(Status.UNAVAILABLE, -1, price);
+      return new Result(Status.BOOKED, Integer.parseInt(bookingId), price);
+   }
+
+   /**
+    * One line of a group booking: a room for every night from start to end,
+    * both inclusive.
+    */
+   public static class BatchItem {
+      public final int hotelId, roomNumber;
+      public final LocalDate start, end;
+
+      public BatchItem(int hotelId, int roomNumber, LocalDate start, LocalDate end){
+         this.hotelId = hotelId;
+         this.roomNumber = roomNumber;
+         this.start = start;
+         this.end = end;
+      }
+
+      int nights(){
+         return (int) (end.toEpochDay() - start.toEpochDay()) + 1;
+      }
+   }//end BatchItem
+
+   /**
+    * What happened to one line of a group booking. A line is booked for all
+    * of its nights or for none of them.
+    */
+   public static class BatchResult {
+      public final BatchItem item;
+      public final Status status;
+      public final String price;
+      public final List<Integer> bookingIds;
+
+      BatchResult(BatchItem item, Status status, String price, List<Integer> bookingIds){
+         this.item = item;
+         this.status = status;
+         this.price = price;
+         this.bookingIds = bookingIds;
+      }
+   }//end BatchResult
+
+   static final String BATCH_CHECK =
+      "SELECT req.i, MAX(R.price), COUNT(R.roomNumber), COUNT(RB.bookingDate) " +
+      "FROM unnest(?::int[], ?::int[], ?::int[], ?::date[]) AS req(i, h, r, d) " +
+      "LEFT JOIN Rooms R ON R.hotelID = req.h AND R.roomNumber = req.r " +
+      "LEFT JOIN RoomBookings RB ON RB.hotelID = req.h AND RB.roomNumber = req.r AND RB.bookingDate = req.d " +
+      "GROUP BY req.i";
+
+   static final String BATCH_INSERT =
+      "INSERT INTO RoomBookings (bookingID, customerID, hotelID, roomNumber, bookingDate) " +
+      "VALUES (nextval('roombookings_bookingid_seq'), ?, ?, ?, ?) " +
+      "ON CONFLICT (hotelID, roomNumber, bookingDate) DO NOTHING";
+
+   /**
+    * Books many rooms for many nights for one customer. Availability of every
+    * night is checked with one set-based query, and the free lines are then
+    * inserted with one JDBC batch inside one transaction. If another desk
+    * takes a night between the check and the insert, the transaction is rolled
+    * back, that line is reported unavailable and the rest is tried again.
+    *
+    * @param customerId the customer the rooms are booked for
+    * @param items the rooms and date ranges to book
+    * @return one result per item, in the same order
+    * @throws java.sql.SQLException when the database failed after all retries
+    * @throws IllegalArgumentException when a line has more than -Dhotel.booking.maxNights nights
+    *         or all lines together more than -Dhotel.booking.maxBatchNights
+    */
+   public List<BatchResult> bookBatch(int customerId, List<BatchItem> items) throws SQLException {
+      long total = 0;
+      for (int i = 0; i < items.size(); ++i){
+         BatchItem item = items.get(i);
+         long nights = item.end.toEpochDay() - item.start.toEpochDay() + 1;
+         if (nights > maxNights)
+            throw new IllegalArgumentException("Line " + (i + 1) + " has " + nights + " nights, at most " + maxNights + " are booked at once");
+         total += Math.max(nights, 0);
+      }
+      if (total > maxBatchNights)
+         throw new IllegalArgumentException("The booking has " + total + " nights, at most " + maxBatchNights + " are booked at once");
+      BatchResult[] results = new BatchResult[items.size()];
+      for (int attempt = 1; ; ++attempt){
+         attempts.incrementAndGet();
+         try{
+            List<int[]> inserted = esql.inTransaction(pc -> bookBatchOnce(pc, customerId, items, results));
+            if (inserted == null){
+               // lost a race on some night; those lines are now marked, retry the rest
+               retries.incrementAndGet();
+               continue;
+            }
+            for (int[] row : inserted){
+               BatchItem item = items.get(row[0]);
+               booked.incrementAndGet();
+               for (Listener l : listeners)
+                  l.booked(row[1], customerId, item.hotelId, item.roomNumber, LocalDate.ofEpochDay(row[2]));
+            }
+            return Arrays.asList(results);
+         }catch (SQLException e){
+            if (attempt >= maxAttempts || !isTransient(e)){
+               failures.incrementAndGet();
+               throw e;
+            }
+            // nothing was committed, so lines marked booked must be tried again
+            for (int i = 0; i < results.length; ++i)
+               if (results[i] != null && results[i].status == Status.BOOKED) results[i] = null;
+            retries.incrementAndGet();
+            backoff(attempt);
+         }
+      }
+   }//end bookBatch
+
+   /*
+    * One attempt of bookBatch inside an open transaction. Returns the inserted
+    * (item index, bookingID, epoch day) triples, or null when a night was
+    * taken concurrently and the transaction must be rolled back.
+    **/
+   private List<int[]> bookBatchOnce(ConnectionPool.PooledConnection pc, int customerId,
+                                     List<BatchItem> items, BatchResult[] results) throws SQLException {
+      // expand every still undecided item into its nights
+      List<Integer> idx = new ArrayList<>(), hotels = new ArrayList<>(), rooms = new ArrayList<>();
+      List<java.sql.Date> dates = new ArrayList<>();
+      for (int i = 0; i < items.size(); ++i){
+         if (results[i] != null) continue;
+         BatchItem item = items.get(i);
+         if (item.nights() < 1){
+            results[i] = new BatchResult(item, Status.UNAVAILABLE, null, Collections.emptyList());
+            continue;
+         }
+         for (LocalDate d = item.start; !d.isAfter(item.end); d = d.plusDays(1)){
+            idx.add(i);
+            hotels.add(item.hotelId);
+            rooms.add(item.roomNumber);
+            dates.add(java.sql.Date.valueOf(d));
+         }
+      }
+      if (idx.isEmpty()) return Collections.emptyList();
+
+      // one set-based availability check for every night of every item
+      Connection conn = pc.connection();
+      PreparedStatement check = pc.statements().prepare(BATCH_CHECK);
+      check.setArray(1, conn.createArrayOf("integer", idx.toArray()));
+      check.setArray(2, conn.createArrayOf("integer", hotels.toArray()));
+      check.setArray(3, conn.createArrayOf("integer", rooms.toArray()));
+      check.setArray(4, conn.createArrayOf("date", dates.toArray()));
+      String[] prices = new String[items.size()];
+      ResultSet rs = check.executeQuery();
+      while (rs.next()){
+         int i = rs.getInt(1);
+         BatchItem item = items.get(i);
+         prices[i] = rs.getString(2);
+         if (rs.getInt(3) == 0){
+            results[i] = new BatchResult(item, Status.NO_SUCH_ROOM, null, Collections.emptyList());
+         }else if (rs.getInt(4) > 0){
+            conflicts.incrementAndGet();
+            results[i] = new BatchResult(item, Status.UNAVAILABLE, prices[i], Collections.emptyList());
+         }
+      }
+      rs.close();
+
+      // one batch for the nights of every item that is still free
+      List<Integer> batched = new ArrayList<>();
+      PreparedStatement insert = conn.prepareStatement(BATCH_INSERT, new String[]{"bookingid"});
+      try{
+         for (int n = 0; n < idx.size(); ++n){
+            if (results[idx.get(n)] != null) continue;
+            insert.setInt(1, customerId);
+            insert.setInt(2, hotels.get(n));
+            insert.setInt(3, rooms.get(n));
+            insert.setDate(4, dates.get(n));
+            insert.addBatch();
+            batched.add(n);
+         }
+         if (batched.isEmpty()) return Collections.emptyList();
+         int[] counts = insert.executeBatch();
+
+         boolean lostRace = false;
+         for (int b = 0; b < counts.length; ++b){
+            int i = idx.get(batched.get(b));
+            if (counts[b] == 0 && results[i] == null){
+               conflicts.incrementAndGet();
+               results[i] = new BatchResult(items.get(i), Status.UNAVAILABLE, prices[i], Collections.emptyList());
+               lostRace = true;
+            }
+         }
+         if (lostRace){
+            conn.rollback();
+            return null;
+         }
+
+         // every row was inserted, so the generated keys line up with the batch
+         List<int[]> inserted = new ArrayList<>();
+         Map<Integer, List<Integer>> ids = new HashMap<>();
+         ResultSet keys = insert.getGeneratedKeys();
+         for (int b = 0; b < batched.size() && keys.next(); ++b){
+            int n = batched.get(b);
+            int bookingId = keys.getInt(1);
+            inserted.add(new int[]{idx.get(n), bookingId, (int) dates.get(n).toLocalDate().toEpochDay()});
+            ids.computeIfAbsent(idx.get(n), k -> new ArrayList<>()).add(bookingId);
+         }
+         keys.close();
+         for (int n : batched){
+            int i = idx.get(n);
+            if (results[i] == null)
+               results[i] = new BatchResult(items.get(i), Status.BOOKED, prices[i], ids.getOrDefault(i, Collections.emptyList()));
+         }
+         return inserted;
+      }finally{
+         insert.close();
+      }
+   }//end bookBatchOnce
+
+   /*
+    * Serialization failures, deadlocks, lock timeouts and connection errors
+    * are worth another try; a key collision can only come from rows inserted
+    * behind the sequence's back, and the next nextval moves past it.
+    **/
+   static boolean isTransient(SQLException e){
+      String state = e.getSQLState();
+      if (state == null) return false;
+      return state.equals("40001") || state.equals("40P01") || state.equals("55P03")
+         || state.equals("23505") || state.startsWith("08");
+   }
+
+   private void backoff(int attempt) throws SQLException {
+      long delay = backoffMillis << (attempt - 1);
+      try{
+         Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay + 1));
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while retrying booking");
+      }
+   }
+
+   /**
+    * @return a snapshot of booking throughput and contention since start
+    */
+   public Stats stats(){
+      Stats s = new Stats();
+      s.attempts = attempts.get();
+      s.booked = booked.get();
+      s.conflicts = conflicts.get();
+      s.retries = retries.get();
+      s.failures = failures.get();
+      long calls = s.booked + s.conflicts + s.failures;
+      s.avgMillis = calls == 0 ? 0 : totalNanos.get() / 1e6 / calls;
+      double seconds = Math.max(1, System.currentTimeMillis() - startedAt) / 1000.0;
+      s.bookingsPerSecond = s.booked / seconds;
+      return s;
+   }//end stats
+
+   public static class Stats {
+      public long attempts, booked, conflicts, retries, failures;
+      public double avgMillis, bookingsPerSecond;
+
+      public String toString(){
+         return String.format("bookings booked=%d conflicts=%d retries=%d failures=%d attempts=%d " +
+            "avg=%.2fms throughput=%.2f/s", booked, conflicts, retries, failures, attempts,
+            avgMillis, bookingsPerSecond);
+      }
+   }//end Stats
+
+}//end BookingService
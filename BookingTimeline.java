@@ -0,0 +1,113 @@
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class reads the bookings of a customer newest first, one page at a
+ * time. Pages use keyset pagination on (bookingDate, bookingID): a page is
+ * given the last row of the page before it and continues from there through
+ * the index on (customerID, bookingDate DESC, bookingID DESC), so the tenth
+ * page of a long-standing guest costs the same as the first.
+ *
+ * The pages a customer fetched are kept for -Dhotel.timeline.ttlMillis so that
+ * reopening the dialog or paging back and forth does not read them again; at
+ * most -Dhotel.timeline.pages pages per customer and
+ * -Dhotel.timeline.customers customers are kept. A booking made through
+ * BookingService drops the pages of its customer.
+ *
+ */
+public class BookingTimeline {
+
+   /*
+    * One page as read, with when it was read.
+    **/
+   private static class Page {
+      final List<List<String>> rows;
+      final long loadedAt = System.currentTimeMillis();
+
+      Page(List<List<String>> rows){
+         this.rows = rows;
+      }
+   }//end Page
+
+   static final String SELECT =
+      "SELECT RB.bookingID, RB.hotelID, RB.roomNumber, R.price, RB.bookingDate " +
+      "FROM RoomBookings RB JOIN Rooms R ON R.hotelID = RB.hotelID AND R.roomNumber = RB.roomNumber ";
+
+   static final String FIRST_PAGE =
+      SELECT + "WHERE RB.customerID = ? ORDER BY RB.bookingDate DESC, RB.bookingID DESC LIMIT ?";
+
+   static final String NEXT_PAGE =
+      SELECT + "WHERE RB.customerID = ? AND (RB.bookingDate, RB.bookingID) < (?, ?) " +
+      "ORDER BY RB.bookingDate DESC, RB.bookingID DESC LIMIT ?";
+
+   static final int PAGE_SIZE = Integer.getInteger("hotel.timeline.pageSize", 20);
+
+   private final Hotel esql;
+   private final long ttlMillis = Long.getLong("hotel.timeline.ttlMillis", 60 * 1000);
+   private final int pagesPerCustomer = Integer.getInteger("hotel.timeline.pages", 10);
+   private final int customers = Integer.getInteger("hotel.timeline.customers", 1000);
+   // customer to the pages read, keyed by where they start; both least recently used first
+   private final Map<Integer, Map<String, Page>> pages = new LinkedHashMap<Integer, Map<String, Page>>(16, 0.75f, true){
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Map<String, Page>> eldest){
+         return size() > customers;
+      }
+   };
+   // bumped by every invalidation, so a read that raced with a booking is not cached
+   private final AtomicLong writes = new AtomicLong();
+
+   public BookingTimeline(Hotel esql){
+      this.esql = esql;
+   }//end BookingTimeline
+
+   /**
+    * @param after the last row of the previous page, null for the newest bookings
+    * @param limit the number of bookings to return at most
+    * @return bookingID, hotelID, roomNumber, price and bookingDate per row, newest first
+    * @throws java.sql.SQLException when the page had to be read and that failed
+    */
+   public List<List<String>> page(int customerId, List<String> after, int limit) throws SQLException {
+      String key = after == null ? limit + "" : limit + " " + after.get(4).trim() + " " + after.get(0).trim();
+      synchronized (pages){
+         Map<String, Page> cached = pages.get(customerId);
+         Page page = cached == null ? null : cached.get(key);
+         if (page != null && System.currentTimeMillis() - page.loadedAt <= ttlMillis) return page.rows;
+      }
+      long version = writes.get();
+      List<List<String>> rows = after == null
+         ? esql.executeQueryAndReturnResult(FIRST_PAGE, customerId, limit)
+         : esql.executeQueryAndReturnResult(NEXT_PAGE, customerId,
+              java.sql.Date.valueOf(after.get(4).trim().substring(0, 10)), Integer.parseInt(after.get(0).trim()), limit);
+      synchronized (pages){
+         if (writes.get() != version) return rows;
+         pages.computeIfAbsent(customerId, c -> new LinkedHashMap<String, Page>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Page> eldest){
+               return size() > pagesPerCustomer;
+            }
+         }).put(key, new Page(rows));
+      }
+      return rows;
+   }//end page
+
+   /**
+    * Drops the pages of a customer, e.g. after the customer booked.
+    */
+   public void invalidate(int customerId){
+      writes.incrementAndGet();
+      synchronized (pages){
+         pages.remove(customerId);
+      }
+   }
+
+   public void invalidateAll(){
+      writes.incrementAndGet();
+      synchronized (pages){
+         pages.clear();
+      }
+   }
+
+}//end BookingTimeline
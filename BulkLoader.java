@@ -0,0 +1,428 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.JDBCType;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class loads CSV files into Users, Hotel, Rooms and RoomBookings with
+ * COPY FROM STDIN, which streams rows to the server instead of sending one
+ * INSERT per row. The first line of every file names the columns it holds,
+ * e.g. hotelID,roomNumber,price,imageURL.
+ *
+ * A file is cut into chunks of -batch rows. One thread reads the chunks, a
+ * second validates every field against the column types of the table, and
+ * -workers threads COPY the valid rows of each chunk in a transaction of its
+ * own. Invalid rows are written to FILE.rejects with their line numbers, as
+ * are rows the database refuses: when the COPY of a chunk fails on its data,
+ * the chunk is halved and each half copied again, down to single rows.
+ * Every committed chunk is recorded in the -checkpoint file by the lines it
+ * holds, so a load that was interrupted can be run again and skips what is
+ * already in. Resuming with a different -batch that cuts a recorded chunk
+ * apart is refused. Tables are loaded one after the other, parents first.
+ *
+ * Afterwards the key sequences are moved past the loaded keys and the
+ * running instances of the application are told to drop their caches.
+ *
+ * Usage:
+ *    java BulkLoader DBNAME PORT USER [-users FILE] [-hotels FILE]
+ *                    [-rooms FILE] [-bookings FILE] [-workers N] [-batch N]
+ *                    [-checkpoint FILE]
+ *
+ */
+public class BulkLoader {
+
+   /*
+    * A run of rows of one file, numbered from 0.
+    **/
+   private static class Chunk {
+      final int index;
+      final long firstLine;
+      final List<String> lines;
+      // the valid lines and their line numbers
+      final List<String> rows = new ArrayList<>();
+      final List<Long> rowLines = new ArrayList<>();
+
+      Chunk(int index, long firstLine, List<String> lines){
+         this.index = index;
+         this.firstLine = firstLine;
+         this.lines = lines;
+      }
+   }//end Chunk
+
+   // marks the end of a file in the queues
+   private static final Chunk END = new Chunk(-1, 0, Collections.emptyList());
+
+   private final Hotel esql;
+   private final int workers, batch;
+   private final File checkpoint;
+   // table, file, first line and line count of every committed chunk
+   private final Set<String> committed = new HashSet<>();
+   private final AtomicLong rowsLoaded = new AtomicLong(), rowsRejected = new AtomicLong();
+
+   public BulkLoader(Hotel esql, int workers, int batch, File checkpoint) throws IOException {
+      this.esql = esql;
+      this.workers = workers;
+      this.batch = batch;
+      this.checkpoint = checkpoint;
+      if (checkpoint != null && checkpoint.exists()){
+         try (BufferedReader in = new BufferedReader(new FileReader(checkpoint))){
+            for (String line; (line = in.readLine()) != null; )
+               committed.add(line);
+         }
+      }
+   }//end BulkLoader
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3){
+         System.err.println("Usage: java BulkLoader DBNAME PORT USER [-users FILE] [-hotels FILE] [-rooms FILE] [-bookings FILE] " +
+                            "[-workers N] [-batch N] [-checkpoint FILE]");
+         System.exit(1);
+      }
+      // parents first, so the foreign keys hold
+      Map<String, File> files = new LinkedHashMap<>();
+      files.put("Users", null);
+      files.put("Hotel", null);
+      files.put("Rooms", null);
+      files.put("RoomBookings", null);
+      int workers = 4, batch = 10000;
+      File checkpoint = new File("bulkload.checkpoint");
+      for (int i = 3; i < args.length; ++i){
+         switch (args[i]){
+            case "-users": files.put("Users", new File(args[++i])); break;
+            case "-hotels": files.put("Hotel", new File(args[++i])); break;
+            case "-rooms": files.put("Rooms", new File(args[++i])); break;
+            case "-bookings": files.put("RoomBookings", new File(args[++i])); break;
+            case "-workers": workers = Integer.parseInt(args[++i]); break;
+            case "-batch": batch = Integer.parseInt(args[++i]); break;
+            case "-checkpoint": checkpoint = new File(args[++i]); break;
+            default:
+               System.err.println("Unknown option " + args[i]);
+               System.exit(1);
+         }
+      }
+      Class.forName("org.postgresql.Driver");
+      Hotel esql = new Hotel(args[0], args[1], args[2], "");
+      try{
+         BulkLoader loader = new BulkLoader(esql, workers, batch, checkpoint);
+         for (Map.Entry<String, File> e : files.entrySet())
+            if (e.getValue() != null) loader.load(e.getKey(), e.getValue());
+         loader.finish();
+         System.out.println(loader.rowsLoaded.get() + " rows loaded, " + loader.rowsRejected.get() + " rejected");
+      }finally{
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Loads one CSV file into a table.
+    *
+    * @param table the table to load into
+    * @param file CSV with a header line naming the columns
+    * @throws Exception when the file cannot be read or a chunk cannot be copied
+    */
+   public void load(String table, File file) throws Exception {
+      String header;
+      try (BufferedReader in = new BufferedReader(new FileReader(file))){
+         header = in.readLine();
+      }
+      if (header == null) return;
+      String[] columns = header.trim().split("\\s*,\\s*");
+      int[] types = columnTypes(table, columns);
+      String copy = "COPY " + table + " (" + String.join(", ", columns) + ") FROM STDIN WITH (FORMAT csv)";
+
+      BlockingQueue<Chunk> toValidate = new ArrayBlockingQueue<>(workers * 2);
+      BlockingQueue<Chunk> toCopy = new ArrayBlockingQueue<>(workers * 2);
+      Exception[] failure = new Exception[1];
+      List<Thread> stages = new ArrayList<>();
+      long started = System.nanoTime();
+      long before = rowsLoaded.get();
+
+      Map<Long, Integer> done = committedChunks(table, file);
+      stage("read " + table, stages, failure, () -> {
+         try (BufferedReader in = new BufferedReader(new FileReader(file))){
+            in.readLine();
+            long lineNo = 1;
+            for (int index = 0; ; ++index){
+               List<String> lines = new ArrayList<>(batch);
+               long first = lineNo + 1;
+               for (String line; lines.size() < batch && (line = in.readLine()) != null; ++lineNo)
+                  lines.add(line);
+               if (lines.isEmpty()) break;
+               if (!isCommitted(done, first, lines.size())) toValidate.put(new Chunk(index, first, lines));
+               if (lines.size() < batch) break;
+            }
+         }
+         toValidate.put(END);
+      });
+
+      // shared by the validate and copy stages; println is synchronized
+      PrintWriter rejected = new PrintWriter(new FileWriter(new File(file.getPath() + ".rejects"), true), true);
+      stage("validate " + table, stages, failure, () -> {
+         for (Chunk chunk; (chunk = toValidate.take()) != END; ){
+            for (int i = 0; i < chunk.lines.size(); ++i){
+               String line = chunk.lines.get(i);
+               if (line.trim().isEmpty()) continue;
+               String problem = validate(line, types);
+               if (problem == null){
+                  chunk.rows.add(line);
+                  chunk.rowLines.add(chunk.firstLine + i);
+               }else{
+                  rowsRejected.incrementAndGet();
+                  rejected.println((chunk.firstLine + i) + ": " + problem + ": " + line);
+               }
+            }
+            toCopy.put(chunk);
+         }
+         for (int w = 0; w < workers; ++w)
+            toCopy.put(END);
+      });
+
+      for (int w = 0; w < workers; ++w){
+         stage("copy " + table + " " + w, stages, failure, () -> {
+            for (Chunk chunk; (chunk = toCopy.take()) != END; ){
+               rowsLoaded.addAndGet(copy(copy, chunk.rows, chunk.rowLines, rejected));
+               done(key(table, file, chunk.firstLine, chunk.lines.size()));
+            }
+         });
+      }
+
+      try{
+         for (Thread t : stages)
+            t.start();
+         for (Thread t : stages)
+            t.join();
+      }finally{
+         rejected.close();
+      }
+      if (failure[0] != null) throw failure[0];
+      System.out.printf("%s: %d rows in %.1fs%n", table, rowsLoaded.get() - before, (System.nanoTime() - started) / 1e9);
+   }//end load
+
+   /**
+    * Moves the key sequences past the loaded rows and tells the running
+    * instances to drop the caches that may now be out of date.
+    *
+    * @throws java.sql.SQLException when a sequence cannot be moved or the instances cannot be told
+    */
+   public void finish() throws SQLException {
+      for (String[] key : new String[][]{{"Users", "userID"}, {"Hotel", "hotelID"}})
+         esql.executeQuery("SELECT setval(seq, GREATEST((SELECT MAX(" + key[1] + ") FROM " + key[0] + "), 1)) " +
+                           "FROM (SELECT pg_get_serial_sequence(?, ?) AS seq) s WHERE seq IS NOT NULL",
+                           key[0].toLowerCase(), key[1].toLowerCase());
+      esql.migrations().resyncSequences();
+      esql.announceCacheRefresh();
+   }//end finish
+
+   /*
+    * Copies the rows in a transaction. When the database refuses the data,
+    * e.g. a duplicate key or a missing parent row, the rows are split in
+    * halves that are copied on their own, until the refused rows are single
+    * and go to the rejects. Other failures, e.g. a lost connection, stop the
+    * load as before.
+    *
+    * @return the number of rows copied
+    **/
+   private long copy(String copy, List<String> rows, List<Long> lines, PrintWriter rejected) throws SQLException {
+      if (rows.isEmpty()) return 0;
+      StringBuilder csv = new StringBuilder();
+      for (String row : rows)
+         csv.append(row).append('\n');
+      try{
+         return esql.inTransaction(pc -> copyIn(pc.connection(), copy, new StringReader(csv.toString())));
+      }catch (SQLException e){
+         String state = e.getSQLState();
+         // class 22 is a data exception, class 23 a constraint violation
+         if (state == null || !(state.startsWith("22") || state.startsWith("23"))) throw e;
+         if (rows.size() == 1){
+            rowsRejected.incrementAndGet();
+            rejected.println(lines.get(0) + ": refused by the database: " + String.valueOf(e.getMessage()).replace('\n', ' ') + ": " + rows.get(0));
+            return 0;
+         }
+         int half = rows.size() / 2;
+         return copy(copy, rows.subList(0, half), lines.subList(0, half), rejected)
+            + copy(copy, rows.subList(half, rows.size()), lines.subList(half, lines.size()), rejected);
+      }
+   }//end copy
+
+   /*
+    * One thread of the pipeline.
+    **/
+   private interface Stage {
+      void run() throws Exception;
+   }
+
+   /*
+    * Adds a pipeline thread, not yet started. The first stage to fail keeps
+    * its exception and interrupts the others, so none stays blocked on a
+    * queue; the chunks committed so far stay in the checkpoint.
+    **/
+   private static void stage(String name, List<Thread> stages, Exception[] failure, Stage stage){
+      Thread t = new Thread(() -> {
+         try{
+            stage.run();
+         }catch (Exception e){
+            synchronized (failure){
+               if (failure[0] != null) return;
+               failure[0] = e;
+            }
+            for (Thread other : stages)
+               if (other != Thread.currentThread()) other.interrupt();
+         }
+      }, "bulkload-" + name);
+      t.setDaemon(true);
+      stages.add(t);
+   }
+
+   private synchronized void done(String key) throws IOException {
+      committed.add(key);
+      if (checkpoint == null) return;
+      try (PrintWriter out = new PrintWriter(new FileWriter(checkpoint, true))){
+         out.println(key);
+      }
+   }
+
+   // keyed by lines rather than chunk index, which depends on -batch
+   private static String key(String table, File file, long firstLine, int lines){
+      return table + " " + file.getAbsolutePath() + " " + firstLine + "+" + lines;
+   }
+
+   /*
+    * @return first line to line count of the chunks of the file already committed
+    **/
+   private synchronized Map<Long, Integer> committedChunks(String table, File file){
+      String prefix = table + " " + file.getAbsolutePath() + " ";
+      Map<Long, Integer> chunks = new TreeMap<>();
+      for (String key : committed){
+         if (!key.startsWith(prefix)) continue;
+         String[] range = key.substring(prefix.length()).split("\\+");
+         if (range.length == 2) chunks.put(Long.parseLong(range[0]), Integer.parseInt(range[1]));
+      }
+      return chunks;
+   }
+
+   /*
+    * @return whether exactly these lines were committed before
+    * @throws java.io.IOException when a committed chunk covers only part of them
+    **/
+   private static boolean isCommitted(Map<Long, Integer> done, long firstLine, int lines) throws IOException {
+      Integer count = done.get(firstLine);
+      if (count != null && count == lines) return true;
+      for (Map.Entry<Long, Integer> c : done.entrySet()){
+         if (c.getKey() < firstLine + lines && firstLine < c.getKey() + c.getValue())
+            throw new IOException("Lines " + firstLine + " to " + (firstLine + lines - 1) + " were partly loaded with another -batch; " +
+                                  "run again with the -batch of the checkpoint or remove it");
+      }
+      return false;
+   }
+
+   // the JDBC types of the named columns, read from an empty result
+   private int[] columnTypes(String table, String[] columns) throws SQLException {
+      return esql.inTransaction(pc -> {
+         try (Statement stmt = pc.connection().createStatement()){
+            ResultSetMetaData rsmd = stmt.executeQuery("SELECT " + String.join(", ", columns) + " FROM " + table + " LIMIT 0").getMetaData();
+            int[] types = new int[columns.length];
+            for (int i = 0; i < types.length; ++i)
+               types[i] = rsmd.getColumnType(i + 1);
+            return types;
+         }
+      });
+   }
+
+   /*
+    * @return null when the fields parse as the column types, else what is wrong
+    **/
+   static String validate(String line, int[] types){
+      List<String> fields = fields(line);
+      if (fields.size() != types.length) return "expected " + types.length + " fields, found " + fields.size();
+      for (int i = 0; i < types.length; ++i){
+         String f = fields.get(i);
+         // an empty unquoted field is NULL; the database checks NOT NULL
+         if (f == null) continue;
+         try{
+            switch (types[i]){
+               case Types.INTEGER: case Types.SMALLINT: case Types.BIGINT: Long.parseLong(f.trim()); break;
+               case Types.NUMERIC: case Types.DECIMAL: case Types.DOUBLE: case Types.REAL: case Types.FLOAT:
+                  new BigDecimal(f.trim()); break;
+               case Types.DATE: LocalDate.parse(f.trim()); break;
+               default: break;
+            }
+         }catch (RuntimeException e){
+            return "field " + (i + 1) + " \"" + f + "\" is not a valid " + JDBCType.valueOf(types[i]).getName();
+         }
+      }
+      return null;
+   }
+
+   // splits one CSV line; quoted fields may contain commas and doubled quotes
+   static List<String> fields(String line){
+      List<String> fields = new ArrayList<>();
+      StringBuilder f = new StringBuilder();
+      boolean quoted = false, wasQuoted = false;
+      for (int i = 0; i < line.length(); ++i){
+         char c = line.charAt(i);
+         if (quoted){
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"'){
+               f.append('"');
+               ++i;
+            }else if (c == '"'){
+               quoted = false;
+            }else{
+               f.append(c);
+            }
+         }else if (c == '"'){
+            quoted = wasQuoted = true;
+         }else if (c == ','){
+            fields.add(f.length() == 0 && !wasQuoted ? null : f.toString());
+            f.setLength(0);
+            wasQuoted = false;
+         }else{
+            f.append(c);
+         }
+      }
+      fields.add(f.length() == 0 && !wasQuoted ? null : f.toString());
+      return fields;
+   }
+
+   /*
+    * Streams the rows through the driver's CopyManager. It is reached by
+    * reflection so that this file compiles without the Postgres driver.
+    **/
+   private static long copyIn(Connection conn, String sql, Reader rows) throws SQLException {
+      try{
+         Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+         Object copyApi = pgConnection.getMethod("getCopyAPI").invoke(conn.unwrap(pgConnection));
+         Method copyIn = copyApi.getClass().getMethod("copyIn", String.class, Reader.class);
+         return (Long) copyIn.invoke(copyApi, sql, rows);
+      }catch (java.lang.reflect.InvocationTargetException e){
+         if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+         throw new SQLException("COPY failed: " + e.getCause(), e.getCause());
+      }catch (ReflectiveOperationException e){
+         throw new SQLException("The Postgres driver's copy API is not available: " + e, e);
+      }
+   }
+
+}//end BulkLoader
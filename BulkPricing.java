@@ -0,0 +1,241 @@
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class reprices many rooms at once. A manager writes one rule per line,
+ * either a CSV row or a rule over a range of rooms:
+ *
+ *    12,105,149.00        room 105 of hotel 12 costs 149.00
+ *    12 * +10%            every room of hotel 12 gets 10% dearer
+ *    12 100-199 =149.00   rooms 100 to 199 of hotel 12 cost 149.00
+ *    12 105 -5%           room 105 of hotel 12 gets 5% cheaper
+ *
+ * When several rules match a room, the one written last wins: before they
+ * are sent, earlier rules lose the rooms later ones cover, so no room is
+ * matched twice. The rules are then sent as the rows of a VALUES list and
+ * applied by one UPDATE ... FROM per -Dhotel.pricing.batchSize rules. The
+ * same statement writes a RoomUpdatesLog row for every room it changed. All
+ * batches run in one transaction, so either every rule is applied or none.
+ *
+ */
+public class BulkPricing {
+
+   /**
+    * One repricing rule: the rooms loRoom to hiRoom of a hotel either get a
+    * fixed price or have their price multiplied by a factor.
+    */
+   public static class Rule {
+      public final int hotelId, loRoom, hiRoom;
+      public final BigDecimal price, factor;
+
+      Rule(int hotelId, int loRoom, int hiRoom, BigDecimal price, BigDecimal factor){
+         if (loRoom > hiRoom) throw new IllegalArgumentException("Empty room range " + loRoom + "-" + hiRoom);
+         if (price != null && price.signum() < 0) throw new IllegalArgumentException("Negative price " + price);
+         this.hotelId = hotelId;
+         this.loRoom = loRoom;
+         this.hiRoom = hiRoom;
+         this.price = price;
+         this.factor = factor;
+      }
+
+      public static Rule price(int hotelId, int loRoom, int hiRoom, BigDecimal price){
+         return new Rule(hotelId, loRoom, hiRoom, price, null);
+      }
+
+      // the same change over other rooms of the hotel
+      Rule over(long loRoom, long hiRoom){
+         return new Rule(hotelId, (int) loRoom, (int) hiRoom, price, factor);
+      }
+
+      public static Rule percent(int hotelId, int loRoom, int hiRoom, BigDecimal percent){
+         BigDecimal factor = BigDecimal.ONE.add(percent.movePointLeft(2));
+         if (factor.signum() <= 0) throw new IllegalArgumentException("Change of " + percent + "% leaves no positive price");
+         return new Rule(hotelId, loRoom, hiRoom, null, factor);
+      }
+   }//end Rule
+
+   /**
+    * A room whose price was changed.
+    */
+   public static class Repriced {
+      public final int hotelId, roomNumber;
+      public final BigDecimal price;
+
+      Repriced(int hotelId, int roomNumber, BigDecimal price){
+         this.hotelId = hotelId;
+         this.roomNumber = roomNumber;
+         this.price = price;
+      }
+   }//end Repriced
+
+   static final int BATCH_SIZE = Integer.getInteger("hotel.pricing.batchSize", 500);
+
+   // rule i is the row (i, hotel, lo, hi, price, factor) of the VALUES list
+   static final String UPDATE_HEAD =
+      "WITH rule(i, h, lo, hi, price, factor) AS (VALUES ";
+
+   static final String UPDATE_TAIL =
+      "), pick AS (" +
+      "   SELECT DISTINCT ON (R.hotelID, R.roomNumber) R.hotelID, R.roomNumber, rule.price, rule.factor " +
+      "   FROM Rooms R JOIN rule ON R.hotelID = rule.h AND R.roomNumber BETWEEN rule.lo AND rule.hi " +
+      "   ORDER BY R.hotelID, R.roomNumber, rule.i DESC" +
+      "), changed AS (" +
+      "   UPDATE Rooms R SET price = COALESCE(pick.price, ROUND(R.price * pick.factor, 2)) " +
+      "   FROM pick WHERE R.hotelID = pick.hotelID AND R.roomNumber = pick.roomNumber " +
+      "   RETURNING R.hotelID, R.roomNumber, R.price" +
+      "), logged AS (" +
+      "   INSERT INTO RoomUpdatesLog (updateNumber, managerID, hotelID, roomNumber, updatedOn) " +
+      "   SELECT nextval('roomupdateslog_updatenumber_seq'), ?, hotelID, roomNumber, CURRENT_TIMESTAMP FROM changed" +
+      ") " +
+      "SELECT hotelID, roomNumber, price FROM changed ORDER BY hotelID, roomNumber";
+
+   private final Hotel esql;
+
+   public BulkPricing(Hotel esql){
+      this.esql = esql;
+   }//end BulkPricing
+
+   /**
+    * Reads rules, one per line. Blank lines, lines starting with # and a CSV
+    * header are skipped.
+    *
+    * @param text the rules
+    * @return the rules in the order written
+    * @throws IllegalArgumentException naming the first line that is not a rule
+    */
+   public static List<Rule> parse(String text){
+      List<Rule> rules = new ArrayList<>();
+      String[] lines = text.split("\\r?\\n");
+      for (int n = 0; n < lines.length; ++n){
+         String line = lines[n].trim();
+         if (line.isEmpty() || line.startsWith("#")) continue;
+         try{
+            if (line.contains(",")){
+               String[] f = line.split("\\s*,\\s*");
+               if (f.length != 3) throw new IllegalArgumentException("expected hotel,room,price");
+               // a header such as hotelID,roomNumber,price
+               if (rules.isEmpty() && !f[0].isEmpty() && !Character.isDigit(f[0].charAt(0))) continue;
+               int room = Integer.parseInt(f[1]);
+               rules.add(Rule.price(Integer.parseInt(f[0]), room, room, new BigDecimal(f[2])));
+               continue;
+            }
+            String[] f = line.split("\\s+");
+            if (f.length != 3) throw new IllegalArgumentException("expected hotel rooms change");
+            int hotelId = Integer.parseInt(f[0]);
+            int lo, hi;
+            if (f[1].equals("*")){
+               lo = Integer.MIN_VALUE;
+               hi = Integer.MAX_VALUE;
+            }else if (f[1].indexOf('-', 1) > 0){
+               int dash = f[1].indexOf('-', 1);
+               lo = Integer.parseInt(f[1].substring(0, dash));
+               hi = Integer.parseInt(f[1].substring(dash + 1));
+            }else{
+               lo = hi = Integer.parseInt(f[1]);
+            }
+            String change = f[2];
+            if (change.startsWith("=")){
+               rules.add(Rule.price(hotelId, lo, hi, new BigDecimal(change.substring(1))));
+            }else if (change.endsWith("%")){
+               rules.add(Rule.percent(hotelId, lo, hi, new BigDecimal(change.substring(change.startsWith("+") ? 1 : 0, change.length() - 1))));
+            }else{
+               throw new IllegalArgumentException("change must be =price or +/-percent%");
+            }
+         }catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("Line " + (n + 1) + " \"" + line + "\": " + e.getMessage());
+         }
+      }
+      return rules;
+   }//end parse
+
+   /**
+    * Applies the rules and logs every changed room under the manager.
+    *
+    * @param managerId the manager the RoomUpdatesLog rows are written for
+    * @return the changed rooms with their new prices
+    * @throws java.sql.SQLException when a batch failed; then no rule is applied
+    */
+   public List<Repriced> apply(int managerId, List<Rule> given) throws SQLException {
+      // the rules of one batch cannot see those of another, so they must not overlap
+      List<Rule> rules = resolve(given);
+      if (rules.isEmpty()) return new ArrayList<>();
+      return esql.inTransaction(pc -> {
+         List<Repriced> changed = new ArrayList<>();
+         for (int from = 0; from < rules.size(); from += BATCH_SIZE){
+            int to = Math.min(rules.size(), from + BATCH_SIZE);
+            // every batch of full size has the same text, so the statement cache reuses it
+            PreparedStatement stmt = pc.statements().prepare(statement(to - from));
+            int p = 1;
+            for (int i = from; i < to; ++i){
+               Rule rule = rules.get(i);
+               stmt.setInt(p++, i);
+               stmt.setInt(p++, rule.hotelId);
+               stmt.setInt(p++, rule.loRoom);
+               stmt.setInt(p++, rule.hiRoom);
+               stmt.setBigDecimal(p++, rule.price);
+               stmt.setBigDecimal(p++, rule.factor);
+            }
+            stmt.setInt(p, managerId);
+            try (ResultSet rs = stmt.executeQuery()){
+               while (rs.next())
+                  changed.add(new Repriced(rs.getInt(1), rs.getInt(2), rs.getBigDecimal(3)));
+            }
+         }
+         return changed;
+      });
+   }//end apply
+
+   /**
+    * Cuts from every rule the rooms a later rule of the same hotel covers,
+    * dropping rules that are left with none.
+    *
+    * @return the rules in the given order, no two of them matching the same room
+    */
+   static List<Rule> resolve(List<Rule> rules){
+      // per hotel, the rooms the later rules cover, as merged ranges lo to hi
+      Map<Integer, TreeMap<Long, Long>> covered = new HashMap<>();
+      List<Rule> resolved = new ArrayList<>();
+      for (int i = rules.size() - 1; i >= 0; --i){
+         Rule rule = rules.get(i);
+         TreeMap<Long, Long> taken = covered.computeIfAbsent(rule.hotelId, h -> new TreeMap<>());
+         long lo = rule.loRoom, hi = rule.hiRoom;
+         // the parts of lo to hi between the covered ranges, from the last part down
+         long next = hi;
+         for (Map.Entry<Long, Long> c : taken.headMap(hi, true).descendingMap().entrySet()){
+            if (c.getValue() < lo) break;
+            if (c.getValue() < next) resolved.add(rule.over(c.getValue() + 1, next));
+            next = Math.min(next, c.getKey() - 1);
+         }
+         if (next >= lo) resolved.add(rule.over(lo, next));
+         // merge lo to hi into the covered ranges
+         Map.Entry<Long, Long> before = taken.floorEntry(lo);
+         if (before != null && before.getValue() >= lo - 1){
+            lo = before.getKey();
+            hi = Math.max(hi, before.getValue());
+         }
+         for (Map.Entry<Long, Long> after; (after = taken.ceilingEntry(lo)) != null && after.getKey() <= hi + 1; ){
+            hi = Math.max(hi, after.getValue());
+            taken.remove(after.getKey());
+         }
+         taken.put(lo, hi);
+      }
+      Collections.reverse(resolved);
+      return resolved;
+   }//end resolve
+
+   private static String statement(int rules){
+      StringBuilder sql = new StringBuilder(UPDATE_HEAD);
+      for (int i = 0; i < rules; ++i)
+         sql.append(i == 0 ? "(?::int, ?::int, ?::int, ?::int, ?::numeric, ?::numeric)" : ", (?, ?, ?, ?, ?, ?)");
+      return sql.append(UPDATE_TAIL).toString();
+   }
+
+}//end BulkPricing
@@ -0,0 +1,328 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines a bounded pool of physical database connections that is
+ * shared by every session of the Hotel application. Connections are borrowed
+ * for the duration of a single statement and handed back afterwards, so many
+ * front desks can talk to Postgres at the same time without opening a
+ * connection per click.
+ *
+ */
+public class ConnectionPool {
+
+   /**
+    * Opens a new physical connection. The pool does not care where the
+    * connection comes from, which keeps it independent of the driver.
+    */
+   public interface ConnectionFactory {
+      Connection create() throws SQLException;
+   }//end ConnectionFactory
+
+   /**
+    * Pool sizing and housekeeping settings. Every value can be overridden
+    * with a -Dhotel.pool.* system property.
+    */
+   public static class Config {
+      int minSize = 2;
+      int maxSize = 10;
+      long idleTimeoutMillis = 5 * 60 * 1000;
+      long borrowTimeoutMillis = 30 * 1000;
+      int validationTimeoutSeconds = 2;
+      long validationIntervalMillis = 1000; // skip validation for connections returned more recently
+      long leakThresholdMillis = 60 * 1000; // 0 disables leak detection
+      long maintenanceIntervalMillis = 30 * 1000;
+      int statementCacheSize = 32; // prepared statements kept per connection, 0 disables
+
+      public static Config fromSystemProperties(){
+         Config c = new Config();
+         c.minSize = Integer.getInteger("hotel.pool.min", c.minSize);
+         c.maxSize = Integer.getInteger("hotel.pool.max", c.maxSize);
+         c.idleTimeoutMillis = Long.getLong("hotel.pool.idleTimeoutMillis", c.idleTimeoutMillis);
+         c.borrowTimeoutMillis = Long.getLong("hotel.pool.borrowTimeoutMillis", c.borrowTimeoutMillis);
+         c.validationTimeoutSeconds = Integer.getInteger("hotel.pool.validationTimeoutSeconds", c.validationTimeoutSeconds);
+         c.validationIntervalMillis = Long.getLong("hotel.pool.validationIntervalMillis", c.validationIntervalMillis);
+         c.leakThresholdMillis = Long.getLong("hotel.pool.leakThresholdMillis", c.leakThresholdMillis);
+         c.maintenanceIntervalMillis = Long.getLong("hotel.pool.maintenanceIntervalMillis", c.maintenanceIntervalMillis);
+         c.statementCacheSize = Integer.getInteger("hotel.pool.statementCacheSize", c.statementCacheSize);
+         if (c.maxSize < 1) c.maxSize = 1;
+         if (c.minSize > c.maxSize) c.minSize = c.maxSize;
+         return c;
+      }
+   }//end Config
+
+   /**
+    * A physical connection together with the bookkeeping the pool needs and
+    * its own cache of prepared statements.
+    */
+   public static class PooledConnection {
+      final Connection connection;
+      final StatementCache statements;
+      final long createdAt = System.currentTimeMillis();
+      volatile long lastReturnedAt = createdAt;
+      volatile long borrowedAt;
+      volatile Throwable borrowSite;
+      volatile boolean leakReported;
+
+      PooledConnection(Connection connection, int statementCacheSize){
+         this.connection = connection;
+         this.statements = new StatementCache(connection, statementCacheSize);
+      }
+
+      public Connection connection(){
+         return connection;
+      }
+
+      public StatementCache statements(){
+         return statements;
+      }
+   }//end PooledConnection
+
+   private final ConnectionFactory factory;
+   private final Config config;
+   private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+   private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+   private final Semaphore permits;
+   private final ScheduledExecutorService maintenance;
+   private volatile boolean closed = false;
+
+   // metrics
+   private final AtomicLong created = new AtomicLong();
+   private final AtomicLong destroyed = new AtomicLong();
+   private final AtomicLong borrows = new AtomicLong();
+   private final AtomicLong borrowTimeouts = new AtomicLong();
+   private final AtomicLong validationFailures = new AtomicLong();
+   private final AtomicLong leaksDetected = new AtomicLong();
+   private final AtomicLong totalWaitNanos = new AtomicLong();
+   private final AtomicLong maxWaitNanos = new AtomicLong();
+
+   /**
+    * Creates the pool and eagerly opens the configured minimum number of
+    * connections, so a bad URL or password fails here rather than on the
+    * first click.
+    *
+    * @param factory opens new physical connections
+    * @param config sizing and housekeeping settings
+    * @throws java.sql.SQLException when the initial connections cannot be opened
+    */
+   public ConnectionPool(ConnectionFactory factory, Config config) throws SQLException {
+      this.factory = factory;
+      this.config = config;
+      this.permits = new Semaphore(config.maxSize, true);
+      for (int i = 0; i < Math.max(1, config.minSize); ++i)
+         idle.offerFirst(open());
+
+      this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "hotel-pool-maintenance");
+         t.setDaemon(true);
+         return t;
+      });
+      this.maintenance.scheduleWithFixedDelay(this::maintain,
+         config.maintenanceIntervalMillis, config.maintenanceIntervalMillis, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection, waiting up to the borrow timeout when the pool is
+    * exhausted. Connections that sat idle longer than the validation interval
+    * are validated before they are handed out.
+    *
+    * @return a validated connection that must be given back with release
+    * @throws java.sql.SQLException when the pool is closed, exhausted or the database is unreachable
+    */
+   public PooledConnection borrow() throws SQLException {
+      if (closed) throw new SQLException("Connection pool is closed");
+      long start = System.nanoTime();
+      try{
+         if (!permits.tryAcquire(config.borrowTimeoutMillis, TimeUnit.MILLISECONDS)){
+            borrowTimeouts.incrementAndGet();
+            throw new SQLException("Timed out after " + config.borrowTimeoutMillis +
+               "ms waiting for a database connection (" + borrowed.size() + " in use)");
+         }
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a database connection");
+      }
+      long waited = System.nanoTime() - start;
+      totalWaitNanos.addAndGet(waited);
+      maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+      try{
+         PooledConnection pc;
+         while ((pc = idle.pollFirst()) != null){
+            if (isValid(pc)) break;
+            validationFailures.incrementAndGet();
+            destroy(pc);
+         }
+         if (pc == null) pc = open();
+         pc.borrowedAt = System.currentTimeMillis();
+         pc.borrowSite = config.leakThresholdMillis > 0 ? new Throwable("Connection borrowed here") : null;
+         pc.leakReported = false;
+         borrowed.add(pc);
+         borrows.incrementAndGet();
+         return pc;
+      }catch (SQLException | RuntimeException e){
+         permits.release();
+         throw e;
+      }
+   }//end borrow
+
+   /**
+    * Gives a borrowed connection back to the pool. Any open transaction is
+    * rolled back so the next borrower starts from a clean autocommit state.
+    *
+    * @param pc the connection obtained from borrow
+    */
+   public void release(PooledConnection pc){
+      if (pc == null || !borrowed.remove(pc)) return;
+      try{
+         boolean reusable = !closed && !pc.connection.isClosed();
+         if (reusable && !pc.connection.getAutoCommit()){
+            pc.connection.rollback();
+            pc.connection.setAutoCommit(true);
+         }
+         if (reusable){
+            pc.lastReturnedAt = System.currentTimeMillis();
+            pc.borrowSite = null;
+            idle.offerFirst(pc);
+         }else{
+            destroy(pc);
+         }
+      }catch (SQLException e){
+         destroy(pc);
+      }finally{
+         permits.release();
+      }
+   }//end release
+
+   /**
+    * Opens a connection from the pool's factory that the pool does not
+    * manage, for long-lived sessions such as a LISTEN connection that would
+    * otherwise hold a pooled connection forever. The caller closes it.
+    *
+    * @return a new physical connection
+    * @throws java.sql.SQLException when the database is unreachable
+    */
+   public Connection openUnpooled() throws SQLException {
+      if (closed) throw new SQLException("Connection pool is closed", "08003");
+      return factory.create();
+   }//end openUnpooled
+
+   /**
+    * Closes every idle connection and refuses further borrows. Connections
+    * still in use are closed as they are released.
+    */
+   public void close(){
+      closed = true;
+      maintenance.shutdownNow();
+      PooledConnection pc;
+      while ((pc = idle.pollFirst()) != null)
+         destroy(pc);
+   }//end close
+
+   /**
+    * @return a point-in-time snapshot of the pool counters
+    */
+   public Metrics metrics(){
+      Metrics m = new Metrics();
+      m.idle = idle.size();
+      m.active = borrowed.size();
+      m.maxSize = config.maxSize;
+      m.created = created.get();
+      m.destroyed = destroyed.get();
+      m.borrows = borrows.get();
+      m.borrowTimeouts = borrowTimeouts.get();
+      m.validationFailures = validationFailures.get();
+      m.leaksDetected = leaksDetected.get();
+      m.avgWaitMillis = m.borrows == 0 ? 0 : totalWaitNanos.get() / 1e6 / m.borrows;
+      m.maxWaitMillis = maxWaitNanos.get() / 1e6;
+      // approximate: the per-connection counters are not synchronized
+      for (PooledConnection pc : idle){
+         m.statementHits += pc.statements.hits();
+         m.statementMisses += pc.statements.misses();
+      }
+      for (PooledConnection pc : borrowed){
+         m.statementHits += pc.statements.hits();
+         m.statementMisses += pc.statements.misses();
+      }
+      return m;
+   }//end metrics
+
+   public static class Metrics {
+      public int idle, active, maxSize;
+      public long created, destroyed, borrows, borrowTimeouts, validationFailures, leaksDetected;
+      public long statementHits, statementMisses;
+      public double avgWaitMillis, maxWaitMillis;
+
+      public String toString(){
+         return String.format("pool active=%d idle=%d max=%d created=%d destroyed=%d borrows=%d " +
+            "timeouts=%d invalid=%d leaks=%d avgWait=%.2fms maxWait=%.2fms stmtHits=%d stmtMisses=%d",
+            active, idle, maxSize, created, destroyed, borrows,
+            borrowTimeouts, validationFailures, leaksDetected, avgWaitMillis, maxWaitMillis,
+            statementHits, statementMisses);
+      }
+   }//end Metrics
+
+   // housekeeping
+
+   private PooledConnection open() throws SQLException {
+      PooledConnection pc = new PooledConnection(factory.create(), config.statementCacheSize);
+      created.incrementAndGet();
+      return pc;
+   }
+
+   private void destroy(PooledConnection pc){
+      pc.statements.clear();
+      try{
+         pc.connection.close();
+      }catch (SQLException e){
+         // ignored.
+      }
+      destroyed.incrementAndGet();
+   }
+
+   private boolean isValid(PooledConnection pc){
+      if (System.currentTimeMillis() - pc.lastReturnedAt < config.validationIntervalMillis)
+         return true;
+      try{
+         return pc.connection.isValid(config.validationTimeoutSeconds);
+      }catch (SQLException e){
+         return false;
+      }
+   }
+
+   /*
+    * Evicts connections that sat idle past the idle timeout (keeping the
+    * minimum size), and reports connections held longer than the leak
+    * threshold together with the stack that borrowed them.
+    **/
+   private void maintain(){
+      long now = System.currentTimeMillis();
+      int surplus = idle.size() + borrowed.size() - config.minSize;
+      for (PooledConnection pc : idle){
+         if (surplus <= 0) break;
+         if (now - pc.lastReturnedAt > config.idleTimeoutMillis && idle.removeLastOccurrence(pc)){
+            destroy(pc);
+            --surplus;
+         }
+      }
+      for (PooledConnection pc : borrowed){
+         if (config.leakThresholdMillis <= 0) break;
+         if (!pc.leakReported && now - pc.borrowedAt > config.leakThresholdMillis){
+            pc.leakReported = true;
+            leaksDetected.incrementAndGet();
+            System.err.println("Possible connection leak: held for " + (now - pc.borrowedAt) + "ms");
+            Throwable site = pc.borrowSite;
+            if (site != null) site.printStackTrace();
+         }
+      }
+   }//end maintain
+
+}//end ConnectionPool
@@ -0,0 +1,78 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JComponent;
+import javax.swing.SwingWorker;
+
+/**
+ * This class runs database work off the Swing event dispatch thread. The task
+ * runs on a SwingWorker background thread and its result (or error) is handed
+ * to a callback back on the event dispatch thread, so the dialog keeps
+ * repainting while the round trip is in flight.
+ *
+ */
+public class DbWorker<T> extends SwingWorker<T, Void> {
+
+   /**
+    * The database work; runs on a background thread and must not touch Swing.
+    */
+   public interface Task<T> {
+      T call() throws Exception;
+   }//end Task
+
+   /**
+    * Receives the outcome on the event dispatch thread.
+    */
+   public interface Callback<T> {
+      void accept(T value);
+   }//end Callback
+
+   private final Task<T> task;
+   private final Callback<T> onDone;
+   private final Callback<Exception> onError;
+   private final JComponent trigger;
+
+   private DbWorker(Task<T> task, Callback<T> onDone, Callback<Exception> onError, JComponent trigger){
+      this.task = task;
+      this.onDone = onDone;
+      this.onError = onError;
+      this.trigger = trigger;
+   }//end DbWorker
+
+   /**
+    * Starts the task in the background.
+    *
+    * @param trigger the button that started the task; disabled until it finishes so it is not submitted twice. May be null.
+    * @param task the database work
+    * @param onDone receives the result on the event dispatch thread
+    * @param onError receives the failure on the event dispatch thread
+    * @return the running worker
+    */
+   public static <T> DbWorker<T> run(JComponent trigger, Task<T> task, Callback<T> onDone, Callback<Exception> onError){
+      DbWorker<T> worker = new DbWorker<>(task, onDone, onError, trigger);
+      if (trigger != null) trigger.setEnabled(false);
+      worker.execute();
+      return worker;
+   }//end run
+
+   @Override
+   protected T doInBackground() throws Exception {
+      return task.call();
+   }
+
+   @Override
+   protected void done(){
+      if (trigger != null) trigger.setEnabled(true);
+      try{
+         onDone.accept(get());
+      }catch (CancellationException e){
+         // nobody is waiting for the result any more.
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }catch (ExecutionException e){
+         Throwable cause = e.getCause();
+         onError.accept(cause instanceof Exception ? (Exception) cause : new Exception(cause));
+      }
+   }//end done
+
+}//end DbWorker
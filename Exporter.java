@@ -0,0 +1,425 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * This class writes the rows of a query to a file in the background, e.g. the
+ * booking or repair history of a manager for the finance team. The rows are
+ * read with streamQuery, through a cursor of -Dhotel.stream.fetchSize rows,
+ * and written as they arrive, so memory use does not grow with the result.
+ *
+ * Two formats are written:
+ *    CSV      gzip compressed CSV with a header line (.csv.gz)
+ *    COLUMNS  a compact columnar file (.hcol): rows are cut into groups of
+ *             -Dhotel.export.rowGroup rows and every column of a group is
+ *             deflated on its own, which compresses the repeating IDs and
+ *             dates far better than rows do. readColumns reads it back.
+ *
+ * At most -Dhotel.export.threads exports run at once; more wait their turn.
+ * A file is written under FILE.part and renamed when complete, so a failed or
+ * cancelled export leaves nothing that looks finished.
+ *
+ */
+public class Exporter {
+
+   public enum Format {
+      CSV(".csv.gz"), COLUMNS(".hcol");
+
+      public final String extension;
+
+      Format(String extension){
+         this.extension = extension;
+      }
+   }//end Format
+
+   public enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+   /**
+    * Receives the progress of an export, from the export thread: every
+    * -Dhotel.export.progressRows rows and once when it ends.
+    */
+   public interface Progress {
+      void update(Job job);
+   }//end Progress
+
+   /**
+    * One export; lets the caller follow and cancel it.
+    */
+   public static class Job {
+      public final File file;
+      public final Format format;
+      private final Hotel.QueryHandle handle = new Hotel.QueryHandle();
+      private final CountDownLatch finished = new CountDownLatch(1);
+      private final AtomicLong rows = new AtomicLong(), bytes = new AtomicLong();
+      private volatile State state = State.QUEUED;
+      private volatile Exception error;
+
+      Job(File file, Format format){
+         this.file = file;
+         this.format = format;
+      }
+
+      public State state(){
+         return state;
+      }
+
+      public long rows(){
+         return rows.get();
+      }
+
+      /**
+       * @return compressed bytes written so far
+       */
+      public long bytes(){
+         return bytes.get();
+      }
+
+      /**
+       * @return why the export failed, null unless it did
+       */
+      public Exception error(){
+         return error;
+      }
+
+      /**
+       * Stops the query on the server; the partial file is deleted.
+       */
+      public void cancel(){
+         handle.cancel();
+      }
+
+      /**
+       * @return true if the export ended within the time
+       */
+      public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+         return finished.await(timeout, unit);
+      }
+
+      public String toString(){
+         switch (state){
+            case QUEUED: return "Waiting to export...";
+            case RUNNING: return String.format("Exporting... %d rows, %d KB", rows(), bytes() / 1024);
+            case DONE: return String.format("Exported %d rows to %s (%d KB)", rows(), file.getName(), bytes() / 1024);
+            case CANCELLED: return "Export cancelled after " + rows() + " rows";
+            default: return "Export failed: " + error.getMessage();
+         }
+      }
+   }//end Job
+
+   /*
+    * Where the rows of a running export go.
+    **/
+   private interface Sink {
+      void row(String[] values) throws IOException;
+
+      void close() throws IOException;
+   }//end Sink
+
+   // "HCOL" and the format version
+   static final int MAGIC = 0x48434f4c, VERSION = 1;
+
+   static final int ROW_GROUP = Integer.getInteger("hotel.export.rowGroup", 10000);
+   static final int PROGRESS_ROWS = Integer.getInteger("hotel.export.progressRows", 1000);
+
+   private final Hotel esql;
+   private final ExecutorService threads;
+   private final Set<Job> running = ConcurrentHashMap.newKeySet();
+
+   public Exporter(Hotel esql){
+      this.esql = esql;
+      int n = Integer.getInteger("hotel.export.threads", 2);
+      this.threads = new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+         Thread t = new Thread(r, "hotel-export");
+         t.setDaemon(true);
+         return t;
+      });
+   }//end Exporter
+
+   /**
+    * Starts writing the rows of a query to a file.
+    *
+    * @param query the query, with ? placeholders
+    * @param columns the names written as the header, one per selected column
+    * @param format how the file is written
+    * @param file the file to write; replaced if it exists
+    * @param progress told about progress, may be null
+    * @param params the values bound to the placeholders, in order
+    * @return the running export
+    */
+   public Job export(String query, String[] columns, Format format, File file, Progress progress, Object... params){
+      Job job = new Job(file, format);
+      threads.execute(() -> run(job, query, columns, progress, params));
+      return job;
+   }//end export
+
+   /**
+    * Cancels the exports still running or waiting.
+    */
+   public void close(){
+      for (Runnable waiting : threads.shutdownNow())
+         waiting.run();
+      for (Job job : running)
+         job.cancel();
+   }//end close
+
+   private void run(Job job, String query, String[] columns, Progress progress, Object[] params){
+      if (threads.isShutdown() || job.handle.isCancelled()){
+         end(job, State.CANCELLED, null, progress);
+         return;
+      }
+      job.state = State.RUNNING;
+      running.add(job);
+      if (progress != null) progress.update(job);
+      File part = new File(job.file.getPath() + ".part");
+      OutputStream out = null;
+      Sink sink = null;
+      try{
+         out = new BufferedOutputStream(counting(new FileOutputStream(part), job.bytes), 64 * 1024);
+         sink = job.format == Format.CSV ? csv(out, columns) : columns(out, columns);
+         Sink to = sink;
+         esql.streamQuery(query, job.handle, values -> {
+            try{
+               to.row(values);
+            }catch (IOException e){
+               throw new SQLException("Export not written: " + e.getMessage(), e);
+            }
+            if (job.rows.incrementAndGet() % PROGRESS_ROWS == 0 && progress != null) progress.update(job);
+         }, params);
+         sink.close();
+         sink = null;
+         out = null;
+         if (job.file.exists() && !job.file.delete()) throw new IOException("Cannot replace " + job.file);
+         if (!part.renameTo(job.file)) throw new IOException("Cannot rename " + part + " to " + job.file);
+         running.remove(job);
+         end(job, State.DONE, null, progress);
+      }catch (Exception e){
+         // the sink closes the stream; without one, e.g. when the header failed, close it here
+         try{
+            if (sink != null) sink.close();
+            else if (out != null) out.close();
+         }catch (IOException ignored){
+            // the file is deleted anyway.
+         }
+         part.delete();
+         running.remove(job);
+         end(job, job.handle.isCancelled() ? State.CANCELLED : State.FAILED, e, progress);
+      }
+   }//end run
+
+   private static void end(Job job, State state, Exception error, Progress progress){
+      job.error = error;
+      job.state = state;
+      job.finished.countDown();
+      if (progress != null) progress.update(job);
+   }
+
+   // counts the bytes that reach the file
+   private static OutputStream counting(OutputStream out, AtomicLong bytes){
+      return new FilterOutputStream(out){
+         @Override
+         public void write(int b) throws IOException {
+            out.write(b);
+            bytes.incrementAndGet();
+         }
+
+         @Override
+         public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes.addAndGet(len);
+         }
+      };
+   }
+
+   private static Sink csv(OutputStream out, String[] columns) throws IOException {
+      Writer w = new OutputStreamWriter(new GZIPOutputStream(out, 64 * 1024), StandardCharsets.UTF_8);
+      Sink sink = new Sink(){
+         public void row(String[] values) throws IOException {
+            for (int i = 0; i < values.length; ++i){
+               if (i > 0) w.write(',');
+               if (values[i] != null) w.write(csvField(values[i].trim()));
+            }
+            w.write("\r\n");
+         }
+
+         public void close() throws IOException {
+            w.close();
+         }
+      };
+      sink.row(columns);
+      return sink;
+   }
+
+   // quotes the field when it holds a separator, a quote or a line break
+   static String csvField(String value){
+      for (int i = 0; i < value.length(); ++i){
+         char c = value.charAt(i);
+         if (c == ',' || c == '"' || c == '\n' || c == '\r')
+            return '"' + value.replace("\"", "\"\"") + '"';
+      }
+      return value;
+   }
+
+   /*
+    * The columnar file: MAGIC, VERSION, the column count and names, then row
+    * groups of (row count, per column: deflated length and bytes), ended by a
+    * row count of 0. Within a column a value is its UTF-8 length plus one as a
+    * varint followed by the bytes; 0 is NULL.
+    **/
+   private static Sink columns(OutputStream out, String[] columns) throws IOException {
+      DataOutputStream file = new DataOutputStream(out);
+      file.writeInt(MAGIC);
+      file.writeInt(VERSION);
+      file.writeInt(columns.length);
+      for (String column : columns)
+         file.writeUTF(column);
+      return new Sink(){
+         final ByteArrayOutputStream[] group = new ByteArrayOutputStream[columns.length];
+         int rows = 0;
+
+         {
+            for (int i = 0; i < group.length; ++i)
+               group[i] = new ByteArrayOutputStream();
+         }
+
+         public void row(String[] values) throws IOException {
+            for (int i = 0; i < group.length; ++i){
+               String v = values[i] == null ? null : values[i].trim();
+               if (v == null){
+                  group[i].write(0);
+               }else{
+                  byte[] b = v.getBytes(StandardCharsets.UTF_8);
+                  writeVarint(group[i], b.length + 1);
+                  group[i].write(b);
+               }
+            }
+            if (++rows == ROW_GROUP) flush();
+         }
+
+         void flush() throws IOException {
+            if (rows == 0) return;
+            file.writeInt(rows);
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+            for (ByteArrayOutputStream column : group){
+               deflated.reset();
+               try (DeflaterOutputStream d = new DeflaterOutputStream(deflated)){
+                  column.writeTo(d);
+               }
+               file.writeInt(deflated.size());
+               deflated.writeTo(file);
+               column.reset();
+            }
+            rows = 0;
+         }
+
+         public void close() throws IOException {
+            flush();
+            file.writeInt(0);
+            file.close();
+         }
+      };
+   }
+
+   private static void writeVarint(OutputStream out, int value) throws IOException {
+      while ((value & ~0x7f) != 0){
+         out.write((value & 0x7f) | 0x80);
+         value >>>= 7;
+      }
+      out.write(value);
+   }
+
+   private static int readVarint(InputStream in) throws IOException {
+      int value = 0;
+      for (int shift = 0; ; shift += 7){
+         int b = in.read();
+         if (b < 0) throw new EOFException();
+         value |= (b & 0x7f) << shift;
+         if ((b & 0x80) == 0) return value;
+      }
+   }
+
+   /**
+    * Reads a file written in the COLUMNS format back as rows, the header
+    * first, holding one row group in memory at a time.
+    *
+    * @throws java.io.IOException when the file cannot be read or is not in the format
+    * @throws java.sql.SQLException when the handler throws it
+    */
+   public static void readColumns(File file, Hotel.RowHandler handler) throws IOException, SQLException {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+         if (in.readInt() != MAGIC) throw new IOException(file + " is not a columnar export");
+         if (in.readInt() != VERSION) throw new IOException(file + " was written by another version");
+         String[] columns = new String[in.readInt()];
+         for (int i = 0; i < columns.length; ++i)
+            columns[i] = in.readUTF();
+         handler.row(columns);
+         for (int rows; (rows = in.readInt()) > 0; ){
+            String[][] group = new String[columns.length][];
+            for (int c = 0; c < columns.length; ++c){
+               byte[] deflated = new byte[in.readInt()];
+               in.readFully(deflated);
+               DataInputStream column = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(deflated)));
+               group[c] = new String[rows];
+               for (int r = 0; r < rows; ++r){
+                  int length = readVarint(column);
+                  if (length == 0) continue;
+                  byte[] b = new byte[length - 1];
+                  column.readFully(b);
+                  group[c][r] = new String(b, StandardCharsets.UTF_8);
+               }
+            }
+            for (int r = 0; r < rows; ++r){
+               String[] row = new String[columns.length];
+               for (int c = 0; c < columns.length; ++c)
+                  row[c] = group[c][r];
+               handler.row(row);
+            }
+         }
+      }
+   }//end readColumns
+
+   /**
+    * Prints a columnar export as CSV.
+    *
+    * Usage: java Exporter FILE.hcol
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length != 1){
+         System.err.println("Usage: java Exporter FILE.hcol");
+         System.exit(1);
+      }
+      readColumns(new File(args[0]), row -> {
+         String[] fields = Arrays.copyOf(row, row.length);
+         for (int i = 0; i < fields.length; ++i)
+            fields[i] = fields[i] == null ? "" : csvField(fields[i]);
+         System.out.println(String.join(",", fields));
+      });
+   }//end main
+
+}//end Exporter
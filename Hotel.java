@@ -16,6 +16,7 @@ import java.text.SimpleDateFormat; //Also for passing dates into SQL
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -41,17 +42,52 @@ import java.awt.event.*;
  */
 public class Hotel {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by all sessions.
+   private ConnectionPool _pool = null;
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
-   int bookingId = 500; //for bookingID PKeys
-   int updateNumber = 50; //for updateNumber pkeys
-   int repairId = 500; //for repairID keys
-   int requestNumber = 500;
+
+   // in-memory spatial index over hotel coordinates, loaded on the first search
+   private HotelIndex hotelIndex = null;
+   // -Dhotel.search.pushdown=true filters by bounding box in the database instead
+   static final boolean SEARCH_PUSHDOWN = Boolean.getBoolean("hotel.search.pushdown");
+   static final double SEARCH_RADIUS = 30;
+   // per-hotel bitmaps of occupied nights, used by viewRooms
+   private final RoomAvailability availability =
+      new RoomAvailability(Long.getLong("hotel.availability.maxAgeMillis", 5 * 60 * 1000));
+   // price and image URL of every room, evicted when a manager changes them
+   private final RoomCatalogue catalogue = new RoomCatalogue(this);
+   // single-statement booking path with database-side conflict detection
+   private final BookingService bookings = new BookingService(this);
+   // pages of each customer's bookings, newest first
+   private final BookingTimeline timeline = new BookingTimeline(this);
+   // per-hotel booking counts behind viewRegularCustomers
+   private final RegularCustomers regulars = new RegularCustomers();
+   // repair requests filed in one statement with sequence keys
+   private final RepairRequests repairs = new RepairRequests(this);
+   // write-behind appender of RoomUpdatesLog
+   private final AuditLog audit = new AuditLog(this);
+   // set-based repricing of many rooms
+   private final BulkPricing pricing = new BulkPricing(this);
+   // latency, rows and errors per statement and per menu action
+   private final OperationMetrics metrics = new OperationMetrics();
+   // statements over -Dhotel.slowQuery.millis with sampled plans
+   private final SlowQueryLog slowQueries = new SlowQueryLog(this);
+   // background exports of query results to files
+   private final Exporter exporter = new Exporter(this);
+   // the operations behind the menus, shared with the HTTP front end
+   private final HotelService service = new HotelService(this);
+
+   // versioned DDL applied by initialize
+   private final Migrations migrations = new Migrations(this);
+   // -Dhotel.schema.check=false skips explaining the hot queries at startup
+   static final boolean SCHEMA_CHECK = Boolean.parseBoolean(System.getProperty("hotel.schema.check", "true"));
+
+   // hotel to manager lookups for the authorization checks
+   private final OwnershipCache owners = new OwnershipCache(this);
 
    static Font largeFont = new Font("Liberation Serif", Font.BOLD, 25);
    static Font smallFont = new Font("Liberation Serif", Font.PLAIN, 15);
@@ -73,9 +109,17 @@ public class Hotel {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the pool of physical connections
+         this._pool = new ConnectionPool(() -> DriverManager.getConnection(url, user, passwd),
+                                         ConnectionPool.Config.fromSystemProperties());
          System.out.println("Done");
+
+         // keep the in-memory structures current with our own bookings
+         this.bookings.addListener((bookingId, customerId, hotelId, roomNumber, date) -> {
+            this.availability.markBooked(hotelId, roomNumber, date);
+            this.regulars.booked(bookingId, hotelId, customerId, date);
+            this.timeline.invalidate(customerId);
+         });
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
@@ -91,20 +135,33 @@ public class Hotel {
    }
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
-    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.  Values are passed
+    * as bind parameters for the ? placeholders of the statement, which is
+    * prepared once per connection and then served from the statement cache.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long started = System.nanoTime();
+      ConnectionPool.PooledConnection pc = this._pool.borrow();
+      PreparedStatement stmt = null;
+      boolean failed = true;
+      int rows = 0;
+      try{
+         // prepares (or reuses) the statement and binds the parameters
+         stmt = prepare(pc, sql, params);
 
-      // close the instruction
-      stmt.close ();
+         // issues the update instruction
+         rows = stmt.executeUpdate ();
+         failed = false;
+         return rows;
+      }finally{
+         release(pc, sql, stmt, failed);
+         finished(sql, params, started, rows, 0, failed);
+      }
    }//end executeUpdate
 
    /**
@@ -112,42 +169,53 @@ public class Hotel {
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
-    * @param query the input query string
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      long started = System.nanoTime();
+      ConnectionPool.PooledConnection pc = this._pool.borrow();
+      PreparedStatement stmt = null;
+      boolean failed = true;
       int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+      try{
+         // prepares (or reuses) the statement and binds the parameters
+         stmt = prepare(pc, query, params);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (rs.next()){
+            if(outputHeader){
+               for(int i = 1; i <= numCol; i++){
+                  System.out.print(rsmd.getColumnName(i) + "\t");
+               }
+               System.out.println();
+               outputHeader = false;
+            }
+            for (int i=1; i<=numCol; ++i)
+               System.out.print (rs.getString (i) + "\t");
+            System.out.println ();
+            ++rowCount;
+         }//end while
+         rs.close ();
+         failed = false;
+         return rowCount;
+      }finally{
+         release(pc, query, stmt, failed);
+         finished(query, params, started, rowCount, 0, failed);
+      }
    }//end executeQuery
 
    /**
@@ -155,104 +223,519 @@ public class Hotel {
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long started = System.nanoTime();
+      ConnectionPool.PooledConnection pc = this._pool.borrow();
+      PreparedStatement stmt = null;
+      boolean failed = true;
       List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+      long bytes = 0;
+      try{
+         // prepares (or reuses) the statement and binds the parameters
+         stmt = prepare(pc, query, params);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         while (rs.next()){
+            List<String> record = new ArrayList<String>(numCol);
+            for (int i=1; i<=numCol; ++i){
+               String value = rs.getString (i);
+               if (value != null) bytes += 2L * value.length();
+               record.add(value);
+            }
+            result.add(record);
+         }//end while
+         rs.close ();
+         failed = false;
+         return result;
+      }finally{
+         release(pc, query, stmt, failed);
+         finished(query, params, started, result.size(), bytes, failed);
+      }
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results column by
+    * column, with numbers and dates kept in their own types so they can be
+    * read without parsing.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as typed columns
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultTable executeQueryAndReturnTable (String query, Object... params) throws SQLException {
+      long started = System.nanoTime();
+      ConnectionPool.PooledConnection pc = this._pool.borrow();
+      PreparedStatement stmt = null;
+      boolean failed = true;
+      ResultTable result = null;
+      try{
+         // prepares (or reuses) the statement and binds the parameters
+         stmt = prepare(pc, query, params);
+
+         // issues the query instruction and reads the rows into typed columns
+         ResultSet rs = stmt.executeQuery ();
+         result = ResultTable.read(rs);
+         rs.close ();
+         failed = false;
+         return result;
+      }finally{
+         release(pc, query, stmt, failed);
+         finished(query, params, started, result == null ? 0 : result.rows(),
+                  result == null ? 0 : result.bytes(), failed);
+      }
+   }//end executeQueryAndReturnTable
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public int executeQuery (String query, Object... params) throws SQLException {
+      long started = System.nanoTime();
+      ConnectionPool.PooledConnection pc = this._pool.borrow();
+      PreparedStatement stmt = null;
+      boolean failed = true;
+      int rowCount = 0;
+      try{
+         // prepares (or reuses) the statement and binds the parameters
+         stmt = prepare(pc, query, params);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+
+         // iterates through the result set and count nuber of results.
+         while (rs.next()){
+            rowCount++;
+         }//end while
+         rs.close ();
+         failed = false;
+         return rowCount;
+      }finally{
+         release(pc, query, stmt, failed);
+         finished(query, params, started, rowCount, 0, failed);
+      }
+   }
+
+   /**
+    * Receives the rows of a streamed query one at a time.
+    */
+   public interface RowHandler {
+      void row(String[] values) throws SQLException;
+   }//end RowHandler
+
+   /**
+    * Lets another thread cancel a query started with streamQuery.
+    */
+   public static class QueryHandle {
+      private Statement statement;
+      private boolean cancelled;
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+      synchronized void attach(Statement statement) throws SQLException {
+         if (cancelled) throw new SQLException("Query cancelled", "57014");
+         this.statement = statement;
+      }
 
-       int rowCount = 0;
+      synchronized void detach(){
+         this.statement = null;
+      }
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+      /**
+       * Cancels the running statement on the server; a query that has not
+       * started yet will not start.
+       */
+      public synchronized void cancel(){
+         cancelled = true;
+         if (statement == null) return;
+         try{
+            statement.cancel();
+         }catch (SQLException e){
+            // ignored.
+         }
+      }
+
+      public synchronized boolean isCancelled(){
+         return cancelled;
+      }
+   }//end QueryHandle
+
+   static final int STREAM_FETCH_SIZE = Integer.getInteger("hotel.stream.fetchSize", 500);
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+    * the rows to a handler as they are fetched, instead of collecting them
+    * into a list first. The driver reads the result through a cursor in
+    * chunks of the fetch size, so memory use does not grow with the result.
+    *
+    * @param query the input query string with ? placeholders
+    * @param handle lets another thread cancel the query, may be null
+    * @param handler receives each row
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query or it was cancelled
+    */
+   public int streamQuery (String query, QueryHandle handle, RowHandler handler, Object... params) throws SQLException {
+      long started = System.nanoTime();
+      ConnectionPool.PooledConnection pc = this._pool.borrow();
+      PreparedStatement stmt = null;
+      boolean failed = true;
+      int rowCount = 0;
+      long bytes = 0;
+      try{
+         // the Postgres driver only honours the fetch size inside a transaction
+         pc.connection().setAutoCommit(false);
+         stmt = prepare(pc, query, params);
+         stmt.setFetchSize(STREAM_FETCH_SIZE);
+         if (handle != null) handle.attach(stmt);
+
+         ResultSet rs = stmt.executeQuery ();
+         int numCol = rs.getMetaData ().getColumnCount ();
+         while (rs.next()){
+            String[] record = new String[numCol];
+            for (int i=1; i<=numCol; ++i){
+               record[i-1] = rs.getString (i);
+               if (record[i-1] != null) bytes += 2L * record[i-1].length();
+            }
+            handler.row(record);
+            ++rowCount;
+         }//end while
+         rs.close ();
+         failed = false;
+         return rowCount;
+      }finally{
+         if (handle != null) handle.detach();
+         if (stmt != null){
+            try{
+               // the statement stays in the cache; later users expect the default
+               stmt.setFetchSize(0);
+            }catch (SQLException e){
+               failed = true;
+            }
+         }
+         // release() rolls back the read-only transaction
+         release(pc, query, stmt, failed);
+         finished(query, params, started, rowCount, bytes, failed);
+      }
+   }//end streamQuery
+
+   /*
+    * Looks up the statement in the connection's statement cache and binds
+    * the parameters in order.
+    **/
+   private static PreparedStatement prepare(ConnectionPool.PooledConnection pc, String sql, Object[] params) throws SQLException {
+      PreparedStatement stmt = pc.statements().prepare(sql);
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject(i + 1, params[i]);
+      return stmt;
+   }
+
+   /*
+    * Records a statement that finished in the metrics and, if it was slow,
+    * in the slow query log.
+    **/
+   private void finished(String sql, Object[] params, long started, long rows, long bytes, boolean failed){
+      long nanos = System.nanoTime() - started;
+      this.metrics.statement(sql, nanos, rows, bytes, failed);
+      this.slowQueries.check(sql, params, nanos, rows, failed);
    }
 
+   /*
+    * Hands the connection back to the pool. A statement that failed is
+    * dropped from the cache since it may be left in an unusable state.
+    **/
+   private void release(ConnectionPool.PooledConnection pc, String sql, PreparedStatement stmt, boolean failed){
+      try{
+         if (!pc.statements().enabled()){
+            if (stmt != null) stmt.close();
+         }else if (failed){
+            pc.statements().evict(sql);
+         }
+      }catch (SQLException e){
+         // ignored.
+      }finally{
+         this._pool.release(pc);
+      }
+   }
+
+   /**
+    * Work that runs inside one database transaction on one pooled connection.
+    */
+   public interface Transaction<T> {
+      T run(ConnectionPool.PooledConnection pc) throws SQLException;
+   }//end Transaction
+
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Method to run several statements as one transaction. The connection is
+    * switched out of autocommit, committed when the work returns and rolled
+    * back when it throws.
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
-    * @throws java.sql.SQLException when failed to execute the query
+    * @param work the statements to run; use pc.statements() to prepare them
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when the work or the commit failed
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-      Statement stmt = this._connection.createStatement ();
+   public <T> T inTransaction(Transaction<T> work) throws SQLException {
+      ConnectionPool.PooledConnection pc = this._pool.borrow();
+      try{
+         pc.connection().setAutoCommit(false);
+         T result = work.run(pc);
+         pc.connection().commit();
+         return result;
+      }catch (SQLException | RuntimeException e){
+         try{
+            pc.connection().rollback();
+         }catch (SQLException ignored){
+            // the connection is probably gone; the pool will drop it
+         }
+         throw e;
+      }finally{
+         // release() restores autocommit for the next borrower
+         this._pool.release(pc);
+      }
+   }//end inTransaction
 
-      ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+   /**
+    * Returns the spatial index of hotel coordinates, building it on first use.
+    * Hotels added since the last call are picked up at most once per refresh
+    * interval (-Dhotel.index.refreshMillis), reading only the new rows. The
+    * whole table is read again once per -Dhotel.index.reloadMillis, which
+    * picks up hotels that were moved, renamed or deleted.
+    *
+    * @return the spatial index
+    * @throws java.sql.SQLException when failed to load the hotels
+    */
+   public synchronized HotelIndex hotelIndex() throws SQLException {
+      if (this.hotelIndex == null){
+         HotelIndex index = new HotelIndex(Double.parseDouble(System.getProperty("hotel.index.cellSize", "5")));
+         index.reload(this);
+         this.hotelIndex = index;
+      }else if (!this.hotelIndex.reloadIfOlderThan(this, Long.getLong("hotel.index.reloadMillis", 10 * 60 * 1000))){
+         this.hotelIndex.refreshIfOlderThan(this, Long.getLong("hotel.index.refreshMillis", 60 * 1000));
+      }
+      return this.hotelIndex;
    }
 
-   public int getNewUserID(String sql) throws SQLException {
-      Statement stmt = this._connection.createStatement ();
-      ResultSet rs = stmt.executeQuery (sql);
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+   /**
+    * Drops everything cached from the tables, e.g. after they were loaded in
+    * bulk behind the services' backs. The caches fill again on next use; the
+    * hotel owners are read right away. Other instances are told with
+    * announceCacheRefresh().
+    */
+   public void refreshCaches(){
+      synchronized (this){
+         this.hotelIndex = null;
+      }
+      this.availability.invalidateAll();
+      this.catalogue.clear();
+      this.regulars.invalidateAll();
+      this.timeline.invalidateAll();
+      try{
+         this.owners.warm();
+      }catch (SQLException e){
+         System.err.println("Warning - hotel owners not re-read: " + e.getMessage());
+      }
+   }//end refreshCaches
+
+   /**
+    * Tells every running instance listening for ownership changes, this one
+    * included, to drop its caches, e.g. after a bulk load.
+    *
+    * @throws java.sql.SQLException when the notification cannot be sent
+    */
+   public void announceCacheRefresh() throws SQLException {
+      executeQuery("SELECT pg_notify(?, '')", OwnershipCache.CACHES_CHANNEL);
+   }//end announceCacheRefresh
+
+   /**
+    * @return the room availability engine
+    */
+   public RoomAvailability availability(){
+      return this.availability;
    }
+
    /**
-    * Method to close the physical connection if it is open.
+    * @return the cache of room prices and image URLs
     */
-   public void cleanup(){
+   public RoomCatalogue catalogue(){
+      return this.catalogue;
+   }
+
+   /**
+    * @return the pages of the customers' bookings
+    */
+   public BookingTimeline timeline(){
+      return this.timeline;
+   }
+
+   /**
+    * @return the booking path
+    */
+   public BookingService bookings(){
+      return this.bookings;
+   }
+
+   /**
+    * Migrates the schema the services rely on and starts their background
+    * work. Failures are reported as warnings; the services then fall back to
+    * slower paths. Only without the room-night constraint, which every
+    * booking relies on, does it not start.
+    *
+    * @throws IllegalStateException when the room-night constraint is missing and cannot be made
+    */
+   public void initialize(){
+      try{
+         this.metrics.start();
+      }catch (Exception e){
+         System.err.println("Warning - operation metrics not published over JMX: " + e.getMessage());
+      }
+      boolean migrated = false;
       try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
+         for (Migrations.Migration m : this.migrations.migrate()){
+            System.err.println("Applied schema migration " + m.version + ": " + m.description);
+            int conflicts = m.version == 1 ? this.migrations.conflicts() : 0;
+            if (conflicts > 0)
+               System.err.println("Warning - " + conflicts + " double bookings were moved to " + Migrations.CONFLICTS);
+         }
+         migrated = true;
       }catch (SQLException e){
-         // ignored.
-      }//end try
+         System.err.println("Warning - schema not migrated: " + e.getMessage());
+         // every booking names the room-night constraint in ON CONFLICT and would fail without it
+         if (!this.migrations.canBook())
+            throw new IllegalStateException("Bookings cannot be made without the room-night constraint: " + e.getMessage(), e);
+      }
+      if (migrated && SCHEMA_CHECK){
+         try{
+            for (Migrations.Check c : this.migrations.check())
+               if (!c.usesIndex) System.err.println("Warning - " + c);
+         }catch (SQLException e){
+            System.err.println("Warning - query plans not checked: " + e.getMessage());
+         }
+      }
+      if (migrated){
+         this.audit.start();
+         this.owners.listen(this._pool);
+      }else{
+         // without the trigger no notifications come; the cache refreshes on a timer instead
+         System.err.println("Warning - ownership notifications not installed, using a timed refresh");
+      }
+      // count the regular customers of every hotel while the menus come up
+      Thread regularsLoader = new Thread(() -> {
+         try{
+            this.regulars.loadAll(this);
+         }catch (SQLException e){
+            System.err.println("Warning - regular customers are read per hotel: " + e.getMessage());
+         }
+      }, "hotel-regulars-load");
+      regularsLoader.setDaemon(true);
+      regularsLoader.start();
+   }//end initialize
+
+   /**
+    * @return the schema migrations
+    */
+   public Migrations migrations(){
+      return this.migrations;
+   }
+
+   /**
+    * @return the repair request path
+    */
+   public RepairRequests repairs(){
+      return this.repairs;
+   }
+
+   /**
+    * @return the room update log
+    */
+   public AuditLog audit(){
+      return this.audit;
+   }
+
+   /**
+    * @return the bulk repricing path
+    */
+   public BulkPricing pricing(){
+      return this.pricing;
+   }
+
+   /**
+    * @return the per-operation metrics
+    */
+   public OperationMetrics metrics(){
+      return this.metrics;
+   }
+
+   /**
+    * @return the background file exports
+    */
+   public Exporter exporter(){
+      return this.exporter;
+   }
+
+   /**
+    * @return the operations behind the menus
+    */
+   public HotelService service(){
+      return this.service;
+   }
+
+   /**
+    * @return the per-hotel regular customer counts
+    */
+   public RegularCustomers regulars(){
+      return this.regulars;
+   }
+
+   /**
+    * @return the cache of hotel owners
+    */
+   public OwnershipCache owners(){
+      return this.owners;
+   }
+
+   /**
+    * @return the connection pool backing this instance, e.g. for its metrics
+    */
+   public ConnectionPool getPool(){
+      return this._pool;
+   }
+
+   /**
+    * Method to close the pooled physical connections.
+    */
+   public void cleanup(){
+      this.owners.close();
+      this.exporter.close();
+      this.audit.close();
+      this.metrics.close();
+      this.slowQueries.close();
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    // gui methods
 
-   public static String loginMenu(JFrame frame, Hotel esql){
+   public static Session loginMenu(JFrame frame, Hotel esql){
       JLabel userLabel, passLabel, errorLabel;
       JTextField userField, passField;
       JDialog dialog = new JDialog(frame,"Login", true);
@@ -273,17 +756,22 @@ public class Hotel {
 
       JButton button = new JButton("Login");
       errorLabel = new JLabel();
+      // the session of a successful login, stays null when the dialog is closed
+      Session[] session = new Session[1];
 
       button.addActionListener(e -> {
          String username = userField.getText();
          String password = passField.getText();
-         String userId = LogIn(esql,username,password);
-         if(userId == null){
-            errorLabel.setText("Invalid Credentials");
-         }
-         else{
-            dialog.dispose();
-         }
+         errorLabel.setText("Checking...");
+         DbWorker.run(button, () -> LogIn(esql,username,password), res -> {
+            if(res == null){
+               errorLabel.setText("Invalid Credentials");
+            }
+            else{
+               session[0] = res;
+               dialog.dispose();
+            }
+         }, err -> errorLabel.setText("ERROR: " + err.getMessage()));
       });
 
       loginPanel.add(errorLabel);
@@ -296,7 +784,7 @@ public class Hotel {
       dialog.setVisible(true);
       
       // continue execution here
-      return userField.getText();
+      return session[0];
    }
 
    public static int mainMenu(JFrame frame, Map<String,Integer> options){
@@ -367,6 +855,7 @@ public class Hotel {
          String dbport = args[1];
          String user = args[2];
          esql = new Hotel (dbname, dbport, user, "");
+         esql.initialize();
 
          boolean keepon = true;
          Map<String,Integer> ops = new HashMap<>();
@@ -376,33 +865,33 @@ public class Hotel {
             ops.put("Create user",1);
             ops.put("Log in", 2);
             ops.put("Exit", 9);
-            String authorisedUserID = null;
-            boolean userIsManager = false;
+            Session session = null;
             switch (mainMenu(frame,ops)){
                case 1: CreateUser(frame,esql); break;
                case 2: 
-                  authorisedUserID = loginMenu(frame,esql);
-                  userIsManager = isManager(esql,authorisedUserID);
+                  session = loginMenu(frame,esql);
+                  if(session != null && session.isManager())
+                     esql.owners().prime(session.userId(), session.managedHotels());
                   break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
-            if (authorisedUserID == null) continue;
+            if (session == null) continue;
             boolean usermenu = true;
-            System.out.println(userIsManager + " " + authorisedUserID);
             while(usermenu) {
                ops.clear();
                ops.put("View Hotels within 30 units",1);
                ops.put("View Rooms",2);
                ops.put("Book a Room",3);
+               ops.put("Book multiple Rooms",11);
                ops.put("View recent booking history",4);
 
                //the following functionalities basically used by managers
-               if(userIsManager){
+               if(session.isManager()){
                   ops.put("Update Room Information",5);
                   ops.put("View 5 recent Room Updates Info",6);
                   ops.put("View booking history of the hotel",7);
-                  ops.put("View 5 regular Customers",8);
+                  ops.put("View regular Customers",8);
                   ops.put("Place room repair Request to a company",9);
                   ops.put("View room repair Requests history",10);
                }
@@ -410,18 +899,19 @@ public class Hotel {
                ops.put("Log out",20);
                int userChoice = mainMenu(frame,ops);
                frame.setVisible(false);
-               if(userIsManager){
+               if(session.isManager()){
                   switch (userChoice){
                      case 1: viewHotels(esql,frame); break;
                      case 2: viewRooms(esql,frame); break;
-                     case 3: bookRooms(esql,authorisedUserID,frame); break;
-                     case 4: viewRecentBookingsfromCustomer(esql,authorisedUserID,frame); break;
-                     case 5: updateRoomInfo(esql, authorisedUserID,frame); break;
-                     case 6: viewRecentUpdates(esql, authorisedUserID,frame); break;
-                     case 7: viewBookingHistoryofHotel(esql, authorisedUserID,frame); break;
-                     case 8: viewRegularCustomers(esql, authorisedUserID,frame); break;
-                     case 9: placeRoomRepairRequests(esql, authorisedUserID,frame); break;
-                     case 10: viewRoomRepairHistory(esql,authorisedUserID,frame); break;
+                     case 3: bookRooms(esql,session,frame); break;
+                     case 11: bookMultipleRooms(esql,session,frame); break;
+                     case 4: viewRecentBookingsfromCustomer(esql,session,frame); break;
+                     case 5: updateRoomInfo(esql, session,frame); break;
+                     case 6: viewRecentUpdates(esql, session,frame); break;
+                     case 7: viewBookingHistoryofHotel(esql, session,frame); break;
+                     case 8: viewRegularCustomers(esql, session,frame); break;
+                     case 9: placeRoomRepairRequests(esql, session,frame); break;
+                     case 10: viewRoomRepairHistory(esql,session,frame); break;
                      case 20: usermenu = false; break;
                      default : System.out.println("Unrecognized choice!"); break;
                   }
@@ -430,8 +920,9 @@ public class Hotel {
                   switch (userChoice){
                      case 1: viewHotels(esql,frame); break;
                      case 2: viewRooms(esql,frame); break;
-                     case 3: bookRooms(esql, authorisedUserID,frame); break;
-                     case 4: viewRecentBookingsfromCustomer(esql,authorisedUserID,frame); break;
+                     case 3: bookRooms(esql, session,frame); break;
+                     case 11: bookMultipleRooms(esql, session,frame); break;
+                     case 4: viewRecentBookingsfromCustomer(esql,session,frame); break;
                      case 20: usermenu = false; break;
                      default : System.out.println("Unrecognized choice!"); break;
                   }
@@ -444,6 +935,10 @@ public class Hotel {
          // make sure to cleanup the created table and close the connection.
          try{
             if(esql != null) {
+               System.out.println(esql.bookings().stats());
+               System.out.println(esql.audit().stats());
+               System.out.println(esql.catalogue().stats());
+               System.out.print(esql.metrics().dump());
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
                System.out.println("Destroying GUI...");
@@ -500,22 +995,19 @@ public class Hotel {
 
       JButton submitButton = new JButton("Register");
       submitButton.addActionListener(e -> {
-         try{
-            // people can have the same names i guess
-            String name = userField.getText();
-            String password = passField.getText();
-            if(name.length() == 0 || password.length() == 0){
-               errorLabel.setText("ERROR: invalid name or password");
-               return;
-            }
-            String type="Customer";
-            String query = String.format("INSERT INTO USERS (name, password, userType) VALUES ('%s','%s', '%s')", name, password, type);
-            esql.executeUpdate(query);
-            System.out.println ("User successfully created with userID = " + esql.getNewUserID("SELECT last_value FROM users_userID_seq"));
-            errorLabel.setText("User create with userID = " + esql.getNewUserID("SELECT last_value FROM users_userID_seq"));
-         }catch(Exception err){
-            errorLabel.setText("ERROR: " + err.getMessage());
+         // people can have the same names i guess
+         String name = userField.getText();
+         String password = passField.getText();
+         if(name.length() == 0 || password.length() == 0){
+            errorLabel.setText("ERROR: invalid name or password");
+            return;
          }
+         String type="Customer";
+         String query = "INSERT INTO USERS (name, password, userType) VALUES (?, ?, ?) RETURNING userID";
+         DbWorker.run(submitButton, () -> esql.executeQueryAndReturnResult(query, name, password, type).get(0).get(0), newUserID -> {
+            System.out.println ("User successfully created with userID = " + newUserID);
+            errorLabel.setText("User create with userID = " + newUserID);
+         }, err -> errorLabel.setText("ERROR: " + err.getMessage()));
       });
       
       JPanel formPanel = new JPanel();
@@ -536,42 +1028,18 @@ public class Hotel {
 
 
    /*
-    * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * Checks the user ID and password and reads the user's role and managed
+    * hotels in the same query.
+    * @return the session of the user, or null when the credentials are wrong
     **/
-   public static String LogIn(Hotel esql, String userID, String password){
+   public static Session LogIn(Hotel esql, String userID, String password){
      try{
-         String query = String.format("SELECT * FROM USERS WHERE userID = '%s' AND password = '%s'", userID, password);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0)
-            return userID;
-         return null;
+         return Session.login(esql, Integer.parseInt(userID.trim()), password);
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return null;
       }
    }//end
-
-
-   /*
-    * Check if user is a manager or not
-    * @return true if manager, false if userID does not exist or is customer
-    **/
-   public static boolean isManager(Hotel esql, String userID){
-      try{
-         String query = String.format("SELECT DISTINCT userType FROM USERS WHERE userID = %s", userID);
-	      String manager = "manager", admin = "admin";
-         List<List<String>> res = esql.executeQueryAndReturnResult(query);
-         if(res.size() > 0 && res.get(0).size() > 0 && res.get(0).get(0).contains(manager) || res.get(0).get(0).contains(admin)){
-            return true;
-         }
-         return false;
-      }
-      catch(Exception e){
-         System.err.println (e.getMessage ());
-         return false;
-      }
-   }//end
    // Rest of the functions definition go in here
 
    /*
@@ -602,26 +1070,17 @@ public class Hotel {
 
          submitButton = new JButton("Search");
          submitButton.addActionListener(e -> {
+            DefaultTableModel tableModel = (DefaultTableModel) resTable.getModel();
+            tableModel.setRowCount(0);
             try{
-               DefaultTableModel tableModel = (DefaultTableModel) resTable.getModel();
-               tableModel.setRowCount(0);
                double lat = Double.parseDouble(latField.getText());
                double lon = Double.parseDouble(lonField.getText());
-               String getHotelPoints = "SELECT hotelName, latitude, longitude, hotelID FROM Hotel";
-               List<List<String>> res = esql.executeQueryAndReturnResult(getHotelPoints);
-               int rowCount = 1;
-               for(int i = 0; i < res.size(); i++){
-                  double dis = calculateDistance(lat, lon, Double.parseDouble(res.get(i).get(1)), Double.parseDouble(res.get(i).get(2)));
-                  if(dis <= 30){
-                     System.out.println(String.valueOf(rowCount) + ". Name: " + res.get(i).get(0) + "Hotel ID: " + res.get(i).get(3));
-                     rowCount++;
-                     tableModel.addRow(new Object[]{res.get(i).get(0),res.get(i).get(3)});
-                  }
-               }
+               DbWorker.run(submitButton, () -> esql.service().hotelsNear(lat, lon), res -> {
+                  for(HotelIndex.Match m : res)
+                     tableModel.addRow(new Object[]{m.hotel.name,m.hotel.hotelId});
+               }, err -> tableModel.addRow(new Object[]{"ERROR",err.getMessage()}));
             }catch(Exception err){
-               DefaultTableModel errorModel = (DefaultTableModel) resTable.getModel();
-               errorModel.setRowCount(0);
-               errorModel.addRow(new Object[]{"ERROR",err.getMessage()});
+               tableModel.addRow(new Object[]{"ERROR",err.getMessage()});
             }
          });
          inputPane.add(submitButton);
@@ -651,11 +1110,11 @@ public class Hotel {
          // System.out.println("Enter date (yyyy-mm-dd): ");
          // String date = in.readLine();
          JDialog dialog = new JDialog(frame,"Big Boat Lodge", true);
-         JLabel idLabel, dateLabel;
-         JTextField idField, dateField;
+         JLabel idLabel, dateLabel, endLabel;
+         JTextField idField, dateField, endField;
          JButton submitButton, exitButton;
          JPanel inputPane = new JPanel();
-         DefaultTableModel model = new DefaultTableModel(new String[]{"Room #","Price","Availability","Booking Date"},0);
+         DefaultTableModel model = new DefaultTableModel(new String[]{"Room #","Price","Availability","Date(s)"},0);
          JTable resTable = new JTable(model);
          inputPane.setLayout(new BoxLayout(inputPane, BoxLayout.Y_AXIS));
 
@@ -671,37 +1130,31 @@ public class Hotel {
          inputPane.add(dateLabel);
          inputPane.add(dateField);
 
+         endLabel = new JLabel("Until (optional):");
+         endField = new JTextField();
+         endLabel.setFont(smallFont);
+         inputPane.add(endLabel);
+         inputPane.add(endField);
+
          submitButton = new JButton("Search");
          submitButton.addActionListener(e -> {
+            DefaultTableModel tableModel = (DefaultTableModel) resTable.getModel();
+            tableModel.setRowCount(0);
             try{
-               DefaultTableModel tableModel = (DefaultTableModel) resTable.getModel();
-               tableModel.setRowCount(0);
                int id = Integer.parseInt(idField.getText());
-               String date = dateField.getText();
-               String query = "SELECT DISTINCT Rooms.roomNumber, Rooms.price, RoomBookings.bookingDate " +
-                  "FROM Rooms, RoomBookings WHERE Rooms.hotelID = " + 
-                  id + " AND RoomBookings.hotelID = " + id;
-               List<List<String>> res = esql.executeQueryAndReturnResult(query);
-               int rowCount = 1;
-               for(int i = 0; i < res.size(); i++){
-                  boolean available = true;
-                  if(res.get(i).get(2).contains(date)){
-                     available = false;
-                  }
-                  String avail = "";
-                  if(available){
-                     avail = "Available!";
-                  } else{
-                     avail = "Unavailable";
+               java.time.LocalDate start = java.time.LocalDate.parse(dateField.getText().trim());
+               java.time.LocalDate end = endField.getText().trim().isEmpty()
+                  ? start : java.time.LocalDate.parse(endField.getText().trim());
+               String dates = start.equals(end) ? start.toString() : start + " to " + end;
+               DbWorker.run(submitButton, () -> esql.service().rooms(id, start, end), res -> {
+                  for(RoomAvailability.RoomStatus room : res){
+                     String avail = room.available ? "Available!" : "Unavailable";
+                     String price = String.format("%.2f", room.price);
+                     tableModel.addRow(new Object[]{room.roomNumber,price,avail,dates});
                   }
-                  System.out.println(String.valueOf(rowCount)+". " + res.get(i).get(0) + "\t" + res.get(i).get(1) + "\t" + avail + res.get(i).get(2) );
-                  tableModel.addRow(new Object[]{res.get(i).get(0),res.get(i).get(1),avail,res.get(i).get(2)});
-                  rowCount++;
-               }
+               }, err -> tableModel.addRow(new Object[]{"ERROR",err.getMessage(),"",""}));
             }catch(Exception err){
-               DefaultTableModel errorModel = (DefaultTableModel) resTable.getModel();
-               errorModel.setRowCount(0);
-               errorModel.addRow(new Object[]{"ERROR",err.getMessage(),"",""});
+               tableModel.addRow(new Object[]{"ERROR",err.getMessage(),"",""});
             }
          });
          inputPane.add(submitButton);
@@ -723,7 +1176,7 @@ public class Hotel {
          System.err.println(e.getMessage());
       }
    }
-   public static void bookRooms(Hotel esql, String userID, JFrame frame) {
+   public static void bookRooms(Hotel esql, Session session, JFrame frame) {
       try{
          JDialog dialog = new JDialog(frame,"Big Boat Lodge", true);
          JLabel idLabel, roomLabel, dateLabel, statusLabel, detailLabel; 
@@ -762,26 +1215,28 @@ public class Hotel {
          submitButton.addActionListener(e -> {
             try{
                int id = Integer.parseInt(idField.getText());
-               String date = dateField.getText();
-               String roomNum = roomField.getText();
-               String query = "SELECT bookingDate FROM RoomBookings WHERE roomNumber = " + roomNum + " AND hotelID = " + id;	
-               List<List<String>> res1 = esql.executeQueryAndReturnResult(query);
-               for(int i = 0; i < res1.size(); i++){
-                  if(res1.get(i).get(0).contains(date)){
+               java.time.LocalDate date = java.time.LocalDate.parse(dateField.getText().trim());
+               int roomNum = Integer.parseInt(roomField.getText());
+               statusLabel.setText("");
+               detailLabel.setText("Booking...");
+               DbWorker.run(submitButton, () -> esql.service().book(session, id, roomNum, date), res -> {
+                  if(res.status == BookingService.Status.NO_SUCH_ROOM){
+                     statusLabel.setText("FAILURE");
+                     detailLabel.setText("Hotel " + id + " has no Room #" + roomNum + ".");
+                     return;
+                  }
+                  if(res.status == BookingService.Status.UNAVAILABLE){
                      statusLabel.setText("FAILURE");
                      detailLabel.setText("Room Unavailable on Selected Date. Please Try Again Later.");
-                     System.out.println("Room Unavailable on Selected Date. Please Try Again Later.");
                      return;
                   }
-               }
-               String query2 = "SELECT price FROM Rooms WHERE HotelId = " + id + " AND roomNumber = " + roomNum;
-               List<List<String>> res2 = esql.executeQueryAndReturnResult(query2);
-               String price = String.format("Room #%s booked successfully for %s", roomNum, res2.get(0).get(0));
-               System.out.println(price);
-               statusLabel.setText("SUCCESS");
-               detailLabel.setText(price);
-               String update = String.format("INSERT INTO RoomBookings (bookingID, customerID, hotelID, roomNumber, bookingDate) values (%s, %s, %s, %s,'" + date + "')", ++esql.bookingId, userID, id, roomNum);
-               esql.executeUpdate(update);
+                  String price = String.format("Room #%s booked successfully for %s", roomNum, res.price);
+                  statusLabel.setText("SUCCESS");
+                  detailLabel.setText(price);
+               }, err -> {
+                  statusLabel.setText("SYSTEM ERROR");
+                  detailLabel.setText("Error: " + err.getMessage());
+               });
             }catch(Exception err){
                statusLabel.setText("SYSTEM ERROR");
                detailLabel.setText("Error: " + err.getMessage());
@@ -805,49 +1260,125 @@ public class Hotel {
          System.err.println(e.getMessage());
       }
    }
-   public static void viewRecentBookingsfromCustomer(Hotel esql, String authorisedUserId, JFrame frame) {
+   /*
+    * Books several rooms and nights at once, one line per room:
+    * hotelID, roomNumber, first night[, last night]
+    **/
+   public static void bookMultipleRooms(Hotel esql, Session session, JFrame frame) {
       JDialog dialog = new JDialog(frame,"Big Boat Lodge", true);
-      JButton exitButton;
+      JLabel linesLabel, statusLabel;
+      JTextArea linesArea;
+      JButton submitButton, exitButton;
       JPanel inputPane = new JPanel(), outputPane = new JPanel();
-      inputPane.setLayout(new BoxLayout(inputPane, BoxLayout.PAGE_AXIS));
-      outputPane.setLayout(new BoxLayout(outputPane, BoxLayout.PAGE_AXIS));
-      DefaultTableModel model = new DefaultTableModel(new String[]{"Hotel ID","Room #","Price","Booking Date"},0);
+      inputPane.setLayout(new BoxLayout(inputPane, BoxLayout.Y_AXIS));
+      outputPane.setLayout(new BoxLayout(outputPane, BoxLayout.Y_AXIS));
+      DefaultTableModel model = new DefaultTableModel(new String[]{"Hotel ID","Room #","Dates","Status"},0);
       JTable resTable = new JTable(model);
-      try{
-         String query = "SELECT DISTINCT RB.hotelId, RB.roomNumber, R.price, RB.bookingDate " +
-            "FROM RoomBookings RB, Rooms R " +
-            "WHERE RB.customerID=" + Integer.parseInt(authorisedUserId) + " AND RB.roomNumber = R.roomNumber " +
-            "ORDER BY bookingDate DESC " +
-            "LIMIT 5";
-         List<List<String>> res = esql.executeQueryAndReturnResult(query);
+
+      linesLabel = new JLabel("<html>One room per line:<br>hotel, room, YYYY-MM-DD[, YYYY-MM-DD]</html>");
+      linesLabel.setFont(smallFont);
+      linesArea = new JTextArea(8, 20);
+      inputPane.add(linesLabel);
+      inputPane.add(new JScrollPane(linesArea));
+
+      statusLabel = new JLabel("");
+      statusLabel.setFont(smallFont);
+      outputPane.add(new JScrollPane(resTable));
+      outputPane.add(statusLabel);
+
+      submitButton = new JButton("Book Rooms");
+      submitButton.addActionListener(e -> {
          DefaultTableModel tableModel = (DefaultTableModel) resTable.getModel();
          tableModel.setRowCount(0);
-         for(int i = 0; i < res.size(); ++i){
-            tableModel.addRow(new Object[]{res.get(i).get(0),res.get(i).get(1),res.get(i).get(2),res.get(i).get(3)});
+         try{
+            List<BookingService.BatchItem> items = new ArrayList<>();
+            for(String line : linesArea.getText().split("\n")){
+               if(line.trim().isEmpty()) continue;
+               String[] f = line.split(",");
+               java.time.LocalDate start = java.time.LocalDate.parse(f[2].trim());
+               java.time.LocalDate end = f.length > 3 ? java.time.LocalDate.parse(f[3].trim()) : start;
+               items.add(new BookingService.BatchItem(Integer.parseInt(f[0].trim()), Integer.parseInt(f[1].trim()), start, end));
+            }
+            statusLabel.setText("Booking " + items.size() + " rooms...");
+            DbWorker.run(submitButton, () -> esql.service().bookBatch(session, items), res -> {
+               int bookedCount = 0;
+               for(BookingService.BatchResult r : res){
+                  String dates = r.item.start.equals(r.item.end) ? r.item.start.toString() : r.item.start + " to " + r.item.end;
+                  String status = r.status == BookingService.Status.BOOKED ? "Booked at " + r.price
+                     : r.status == BookingService.Status.UNAVAILABLE ? "Unavailable" : "No such room";
+                  if(r.status == BookingService.Status.BOOKED) bookedCount++;
+                  tableModel.addRow(new Object[]{r.item.hotelId,r.item.roomNumber,dates,status});
+               }
+               statusLabel.setText(bookedCount + " of " + res.size() + " rooms booked.");
+            }, err -> statusLabel.setText("Error: " + err.getMessage()));
+         }catch(Exception err){
+            statusLabel.setText("Error: " + err.getMessage());
          }
-         exitButton = new JButton("Go back");
-         exitButton.addActionListener(e -> {
-            dialog.dispose();
+      });
+      inputPane.add(submitButton);
+
+      exitButton = new JButton("Go back");
+      exitButton.addActionListener(e -> {
+         dialog.dispose();
+      });
+      inputPane.add(exitButton);
+
+      JSplitPane queryPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT,inputPane,outputPane);
+      dialog.add(queryPane);
+      dialog.setSize(700,300);
+      dialog.setLocation(200,100);
+      dialog.setResizable(false);
+      dialog.setVisible(true);
+   }
+   public static void viewRecentBookingsfromCustomer(Hotel esql, Session session, JFrame frame) {
+      JDialog dialog = new JDialog(frame,"Big Boat Lodge", true);
+      JButton exitButton;
+      JPanel inputPane = new JPanel();
+      inputPane.setLayout(new BoxLayout(inputPane, BoxLayout.PAGE_AXIS));
+      DefaultTableModel model = new DefaultTableModel(new String[]{"Booking ID","Hotel ID","Room #","Price","Booking Date"},0);
+      JTable resTable = new JTable(model);
+      JLabel statusLabel = new JLabel("");
+      JButton moreButton = new JButton("Load more");
+      // the last booking shown; the next page starts after it
+      List<List<String>> last = new ArrayList<>();
+      Runnable loadMore = () -> {
+         List<String> after = last.isEmpty() ? null : last.get(0);
+         statusLabel.setText("Loading...");
+         DbWorker.run(moreButton, () -> esql.service().bookingTimelinePage(session, after, BookingTimeline.PAGE_SIZE), rows -> {
+            for(List<String> row : rows){
+               model.addRow(row.toArray());
+            }
+            if(!rows.isEmpty()){
+               last.clear();
+               last.add(rows.get(rows.size() - 1));
+            }
+            boolean more = rows.size() == BookingTimeline.PAGE_SIZE;
+            moreButton.setEnabled(more);
+            statusLabel.setText(model.getRowCount() + (more ? "+ bookings" : " bookings"));
+         }, err -> {
+            System.err.println(err.getMessage());
+            statusLabel.setText("Error: " + err.getMessage());
          });
-         inputPane.add(exitButton);
-         JSplitPane queryPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT,new JScrollPane(resTable),inputPane);
-         queryPane.setResizeWeight(1.0);
-         dialog.add(queryPane);
-         dialog.setSize(500,300);
-         dialog.setLocation(200,100);
-         dialog.setResizable(false);
-         dialog.setVisible(true);
-      }
-      catch(Exception err){
-         System.out.println("huh??");
-         System.err.println(err.getMessage());
-         DefaultTableModel errorModel = (DefaultTableModel) resTable.getModel();
-         errorModel.setRowCount(0);
-         errorModel.addRow(new Object[]{"ERROR",err.getMessage(),"",""});
-      }
+      };
+      moreButton.addActionListener(e -> loadMore.run());
+      loadMore.run();
+      exitButton = new JButton("Go back");
+      exitButton.addActionListener(e -> {
+         dialog.dispose();
+      });
+      inputPane.add(statusLabel);
+      inputPane.add(moreButton);
+      inputPane.add(exitButton);
+      JSplitPane queryPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT,new JScrollPane(resTable),inputPane);
+      queryPane.setResizeWeight(1.0);
+      dialog.add(queryPane);
+      dialog.setSize(500,300);
+      dialog.setLocation(200,100);
+      dialog.setResizable(false);
+      dialog.setVisible(true);
    }
 
-   public static void updateRoomInfo(Hotel esql, String userID, JFrame frame) {
+   public static void updateRoomInfo(Hotel esql, Session session, JFrame frame) {
       JDialog dialog = new JDialog(frame,"Big Boat Lodge", true);
       JLabel roomLabel1, roomLabel2, priceLabel, imageLabel, status1, status2, detail1, detail2, hotelLabel1, hotelLabel2;
       JTextField roomField1, roomField2, priceField, imageField, hotelField1, hotelField2;
@@ -908,67 +1439,51 @@ public class Hotel {
 
       submitButton1 = new JButton("Update Price");
       submitButton1.addActionListener(e -> {
-         try{
-            String hotelID = hotelField1.getText();
-            String roomNum = roomField1.getText();
-            String newPrice = priceField.getText();
-            String idcheck = "SELECT managerUserId From Hotel Where hotelID = " + hotelID;
-            List<List<String>> checker = esql.executeQueryAndReturnResult(idcheck);
-            if(!checker.get(0).get(0).equals(userID)){ 
-               System.out.println("Invalid Manager ID!"); 
-               status1.setText("UNAUTHORIZED");
-               detail1.setText("User does not manage Hotel " + hotelID + ".");
-               return;
+         String hotelID = hotelField1.getText();
+         String roomNum = roomField1.getText();
+         String newPrice = priceField.getText();
+         status1.setText("");
+         detail1.setText("Updating...");
+         // returns the status and detail lines to show
+         DbWorker.run(submitButton1, () -> {
+            try{
+               esql.service().updatePrice(session, Integer.parseInt(hotelID.trim()), Integer.parseInt(roomNum.trim()), new java.math.BigDecimal(newPrice.trim()));
+            }catch(HotelService.NotAuthorized err){
+               return new String[]{"UNAUTHORIZED", err.getMessage()};
             }
-            System.out.println("Manager Validated!");
-            String update = "UPDATE Rooms SET price = " + newPrice + " WHERE hotelId = " + hotelID + " AND roomNumber = " + roomNum;	
-            esql.executeUpdate(update);
-            System.out.println("Successfully update Room #" + roomNum + " to: " + newPrice);
-            status1.setText("SUCCESS");
-            detail1.setText("Successfully update Room #" + roomNum + " to: " + newPrice + ".");
-            SimpleDateFormat tstamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            Timestamp curr = new Timestamp(System.currentTimeMillis());
-            String time = tstamp.format(curr);
-            
-            String insertUpdate = String.format("INSERT INTO RoomUpdatesLog (updateNumber, managerID, hotelID, roomNumber, updatedOn) values (%s, %s, %s, %s,'" + curr + "')", ++esql.updateNumber, userID, hotelID, roomNum);
-            esql.executeUpdate(insertUpdate);
-         }catch(Exception err){
+            return new String[]{"SUCCESS", "Successfully update Room #" + roomNum + " to: " + newPrice + "."};
+         }, res -> {
+            status1.setText(res[0]);
+            detail1.setText(res[1]);
+         }, err -> {
             status1.setText("SYSTEM ERROR");
             detail1.setText("Error: " + err.getMessage());
-         }
+         });
       });
       inputPane1.add(submitButton1);
 
       submitButton2 = new JButton("Update Url");
       submitButton2.addActionListener(e -> {
-         try{
-            String hotelID = hotelField1.getText();
-            String roomNum = roomField1.getText();
-            String url = imageField.getText();
-            String idcheck = "SELECT managerUserId From Hotel Where hotelID = " + hotelID;
-            List<List<String>> checker = esql.executeQueryAndReturnResult(idcheck);
-            if(!checker.get(0).get(0).equals(userID)){ 
-               System.out.println("Invalid Manager ID!"); 
-               status1.setText("UNAUTHORIZED");
-               detail1.setText("User does not manage Hotel " + hotelID + ".");
-               return;
+         String hotelID = hotelField2.getText();
+         String roomNum = roomField2.getText();
+         String url = imageField.getText();
+         status2.setText("");
+         detail2.setText("Updating...");
+         // returns the status and detail lines to show
+         DbWorker.run(submitButton2, () -> {
+            try{
+               esql.service().updateImageUrl(session, Integer.parseInt(hotelID.trim()), Integer.parseInt(roomNum.trim()), url);
+            }catch(HotelService.NotAuthorized err){
+               return new String[]{"UNAUTHORIZED", err.getMessage()};
             }
-            System.out.println("Manager Validated!");
-            String update = "UPDATE ROOMS Set imageurl = '" + url + "' WHERE hotelId = " + hotelID + " AND roomNumber = " + roomNum;
-            esql.executeUpdate(update);
-            System.out.println("Successfully update Room #" +roomNum + " to: " + url);
-            status2.setText("SUCCESS");
-            detail2.setText("Successfully update image url of Room #" +roomNum + " to: " + url + ".");
-            SimpleDateFormat tstamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            Timestamp curr = new Timestamp(System.currentTimeMillis());
-            String time = tstamp.format(curr);
-            
-            String insertUpdate = String.format("INSERT INTO RoomUpdatesLog (updateNumber, managerID, hotelID, roomNumber, updatedOn) values (%s, %s, %s, %s,'" + curr + "')", ++esql.updateNumber, userID, hotelID, roomNum);
-            esql.executeUpdate(insertUpdate); 
-         }catch(Exception err){
+            return new String[]{"SUCCESS", "Successfully update image url of Room #" +roomNum + " to: " + url + "."};
+         }, res -> {
+            status2.setText(res[0]);
+            detail2.setText(res[1]);
+         }, err -> {
             status2.setText("SYSTEM ERROR");
             detail2.setText("Error: " + err.getMessage());
-         }
+         });
       });
       inputPane2.add(submitButton2);
       exitButton1 = new JButton("Go back");
@@ -982,18 +1497,71 @@ public class Hotel {
       inputPane1.add(exitButton1);
       inputPane2.add(exitButton2);
 
+      // bulk repricing: rules typed in or loaded from a CSV, applied in one transaction
+      JPanel inputPane3 = new JPanel(), outputPane3 = new JPanel();
+      inputPane3.setLayout(new BoxLayout(inputPane3, BoxLayout.Y_AXIS));
+      outputPane3.setLayout(new BoxLayout(outputPane3, BoxLayout.Y_AXIS));
+      JLabel rulesLabel = new JLabel("<html>One rule per line:<br>hotel, room, price<br>hotel 100-199 =149.00<br>hotel * +10%</html>");
+      rulesLabel.setFont(smallFont);
+      JTextArea rulesArea = new JTextArea(6, 20);
+      inputPane3.add(rulesLabel);
+      inputPane3.add(new JScrollPane(rulesArea));
+      DefaultTableModel repriced = new DefaultTableModel(new String[]{"Hotel ID","Room #","New Price"},0);
+      JLabel status3 = new JLabel("");
+      status3.setFont(smallFont);
+      outputPane3.add(new JScrollPane(new JTable(repriced)));
+      outputPane3.add(status3);
+
+      JButton loadButton = new JButton("Load CSV...");
+      loadButton.addActionListener(e -> {
+         JFileChooser chooser = new JFileChooser();
+         if(chooser.showOpenDialog(dialog) != JFileChooser.APPROVE_OPTION) return;
+         try{
+            rulesArea.setText(new String(java.nio.file.Files.readAllBytes(chooser.getSelectedFile().toPath()), "UTF-8"));
+         }catch(Exception err){
+            status3.setText("Error: " + err.getMessage());
+         }
+      });
+      inputPane3.add(loadButton);
+
+      JButton submitButton3 = new JButton("Apply Prices");
+      submitButton3.addActionListener(e -> {
+         repriced.setRowCount(0);
+         List<BulkPricing.Rule> rules;
+         try{
+            rules = BulkPricing.parse(rulesArea.getText());
+         }catch(IllegalArgumentException err){
+            status3.setText("Error: " + err.getMessage());
+            return;
+         }
+         status3.setText("Applying " + rules.size() + " rules...");
+         DbWorker.run(submitButton3, () -> esql.service().updatePrices(session, rules), res -> {
+            for(BulkPricing.Repriced r : res)
+               repriced.addRow(new Object[]{r.hotelId, r.roomNumber, r.price});
+            status3.setText(res.size() + " rooms repriced.");
+         }, err -> status3.setText("Error: " + err.getMessage()));
+      });
+      inputPane3.add(submitButton3);
+      JButton exitButton3 = new JButton("Go back");
+      exitButton3.addActionListener(e -> {
+         dialog.dispose();
+      });
+      inputPane3.add(exitButton3);
+
       JSplitPane sPane1 = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT,inputPane1,outputPane1);
       JSplitPane sPane2 = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT,inputPane2,outputPane2);
+      JSplitPane sPane3 = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT,inputPane3,outputPane3);
       JTabbedPane tPane = new JTabbedPane();
       tPane.addTab("Update Price",sPane1);
       tPane.addTab("Update URL",sPane2);
+      tPane.addTab("Bulk Pricing",sPane3);
       dialog.add(tPane);
-      dialog.setSize(500,300);
+      dialog.setSize(700,350);
       dialog.setLocation(200,100);
       dialog.setResizable(false);
       dialog.setVisible(true);
 	}
-   public static void viewRecentUpdates(Hotel esql, String userID, JFrame frame) {
+   public static void viewRecentUpdates(Hotel esql, Session session, JFrame frame) {
       JDialog dialog = new JDialog(frame,"Big Boat Lodge", true);
       JButton exitButton;
       JPanel inputPane = new JPanel(), outputPane = new JPanel();
@@ -1002,17 +1570,26 @@ public class Hotel {
       DefaultTableModel model = new DefaultTableModel(new String[]{"Update #","Manager ID","Hotel ID","Room #","Updated Date"},0);
       JTable resTable = new JTable(model);
       try{
-         String query = "SELECT * FROM RoomUpdatesLog WHERE managerID = " + userID + " ORDER BY updatedOn DESC LIMIT 5";
-         List<List<String>> res = esql.executeQueryAndReturnResult(query);
-         DefaultTableModel tableModel = (DefaultTableModel) resTable.getModel();
-         tableModel.setRowCount(0);
-         for(int i = 0; i < res.size(); ++i){
-            tableModel.addRow(new Object[]{res.get(i).get(0),res.get(i).get(1),res.get(i).get(2),res.get(i).get(3),res.get(i).get(4)});
-         }
+         JLabel statusLabel = new JLabel("Loading...");
+         // the service writes the queued log records first, so the manager's own changes show
+         DbWorker<ResultTable> worker = DbWorker.run(null, () -> esql.service().recentUpdates(session), res -> {
+            for(int i = 0; i < res.rows(); ++i){
+               Object[] row = new Object[res.columns()];
+               for(int j = 0; j < row.length; ++j)
+                  row[j] = res.getString(i, j);
+               model.addRow(row);
+            }
+            statusLabel.setText(res.rows() + " rows");
+         }, err -> {
+            System.err.println(err.getMessage());
+            statusLabel.setText("Error: " + (err instanceof HotelService.NotAuthorized ? "Unauthorized operation" : err.getMessage()));
+         });
          exitButton = new JButton("Go back");
          exitButton.addActionListener(e -> {
+            worker.cancel(false);
             dialog.dispose();
          });
+         inputPane.add(statusLabel);
          inputPane.add(exitButton);
          JSplitPane queryPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT,new JScrollPane(resTable),inputPane);
          queryPane.setResizeWeight(1.0);
@@ -1029,7 +1606,7 @@ public class Hotel {
          errorModel.addRow(new Object[]{"ERROR",err.getMessage(),"",""});
       }
 	}
-   public static void viewBookingHistoryofHotel(Hotel esql, String userID, JFrame frame) {
+   public static void viewBookingHistoryofHotel(Hotel esql, Session session, JFrame frame) {
       JDialog dialog = new JDialog(frame,"Big Boat Lodge", true);
       JCheckBox rangeBox = new JCheckBox("Provide date range?",true);
       JLabel startLabel, endLabel;
@@ -1068,46 +1645,52 @@ public class Hotel {
       });
 
       submitButton = new JButton("Search");
+      // the search currently paging into the table, if any
+      PagedTableModel[] running = new PagedTableModel[1];
+      JLabel statusLabel = new JLabel("");
+      String[] columns = new String[]{"Booking ID","User Name","Hotel ID","Room Number","Booking Date"};
       submitButton.addActionListener(e -> {
          try{
-            String query = null;
-            if(rangeBox.isSelected()){
-               String startDate = startField.getText();
-               String endDate = endField.getText();
-               query = "SELECT RB.bookingID, U.name, RB.hotelID, RB.roomNumber, RB.bookingDate " +
-                  "FROM Users U, Hotel H, RoomBookings RB " + 
-                  "WHERE RB.customerID = u.userID AND " +
-                  "H.HotelID = RB.HotelId AND H.managerUserID = " + userID + 
-                  " AND RB.bookingDate >= '" + startDate + "' AND RB.bookingDate <= '" + endDate +"'";		
-            }
-            else{
-               query = "SELECT RB.bookingID, U.name, RB.hotelID, RB.roomNumber, RB.bookingDate " +
-                  "FROM Users U, Hotel H, RoomBookings RB WHERE " +
-                  "RB.customerID = u.userID AND " +
-                  "H.HotelID = RB.HotelId AND H.managerUserID = " + userID;
-            }
-            List<List<String>> res = esql.executeQueryAndReturnResult(query);
-            DefaultTableModel tableModel = (DefaultTableModel) resTable.getModel();
-            tableModel.setRowCount(0);
-            System.out.println("PRINTING TABLE " + res.size());
-            for(int i = 0; i < res.size(); ++i){
-               System.out.println(res.get(i));
-               tableModel.addRow(new Object[]{res.get(i).get(0),res.get(i).get(1),res.get(i).get(2),res.get(i).get(3),res.get(i).get(4)});
-            }
+            if(running[0] != null) running[0].stop();
+            boolean ranged = rangeBox.isSelected();
+            java.time.LocalDate startDate = ranged ? java.time.LocalDate.parse(startField.getText().trim()) : null;
+            java.time.LocalDate endDate = ranged ? java.time.LocalDate.parse(endField.getText().trim()) : null;
+            // pages continue after the (bookingDate, bookingID) of the last row shown
+            running[0] = new PagedTableModel(columns, statusLabel, (after, limit) ->
+               esql.service().bookingHistoryPage(session, startDate, endDate, after, limit));
+            statusLabel.setText("Loading...");
+            resTable.setModel(running[0]);
          }catch(Exception err){
             System.err.print(err.getMessage());
-            DefaultTableModel errorModel = (DefaultTableModel) resTable.getModel();
-            errorModel.setRowCount(0);
+            DefaultTableModel errorModel = new DefaultTableModel(columns,0);
             errorModel.addRow(new Object[]{"ERROR",err.getMessage(),"","",""});
+            resTable.setModel(errorModel);
          }
       });	
       buttonPane.add(submitButton);
 
+      JButton cancelButton = new JButton("Cancel");
+      cancelButton.addActionListener(e -> {
+         if(running[0] != null) running[0].stop();
+      });
+      buttonPane.add(cancelButton);
+
+      JButton exportButton = new JButton("Export...");
+      exportButton.addActionListener(e -> exportFromDialog(dialog, statusLabel, (format, file, progress) -> {
+         boolean ranged = rangeBox.isSelected();
+         java.time.LocalDate startDate = ranged ? java.time.LocalDate.parse(startField.getText().trim()) : null;
+         java.time.LocalDate endDate = ranged ? java.time.LocalDate.parse(endField.getText().trim()) : null;
+         return esql.service().exportBookingHistory(session, startDate, endDate, format, file, progress);
+      }));
+      buttonPane.add(exportButton);
+
       exitButton = new JButton("Go back");
       exitButton.addActionListener(e -> {
+         if(running[0] != null) running[0].stop();
          dialog.dispose();
       });
       buttonPane.add(exitButton);
+      buttonPane.add(statusLabel);
 
       inputPane.add(rangeBox);
       inputPane.add(fieldsPane);
@@ -1121,45 +1704,61 @@ public class Hotel {
       dialog.setResizable(false);
       dialog.setVisible(true);
 	}
-   public static void viewRegularCustomers(Hotel esql, String userID, JFrame frame) {
+   public static void viewRegularCustomers(Hotel esql, Session session, JFrame frame) {
       JDialog dialog = new JDialog(frame,"Big Boat Lodge",true);
       JPanel inputPane = new JPanel();
-      DefaultTableModel model = new DefaultTableModel(new String[]{"Name"},0);
+      DefaultTableModel model = new DefaultTableModel(new String[]{"Name","Bookings"},0);
       JTable resTable = new JTable(model); 
       JLabel hotelLabel = new JLabel("Hotel ID:");
       JTextField hotelField = new JTextField();
+      JLabel countLabel = new JLabel("How many:");
+      JTextField countField = new JTextField("5");
+      JLabel monthsLabel = new JLabel("Months back (blank for all):");
+      JTextField monthsField = new JTextField();
       JButton submitButton, exitButton;
 
       inputPane.setLayout(new BoxLayout(inputPane,BoxLayout.Y_AXIS));
       hotelLabel.setFont(smallFont);
       inputPane.add(hotelLabel);
       inputPane.add(hotelField);
+      countLabel.setFont(smallFont);
+      inputPane.add(countLabel);
+      inputPane.add(countField);
+      monthsLabel.setFont(smallFont);
+      inputPane.add(monthsLabel);
+      inputPane.add(monthsField);
 
       submitButton = new JButton("Search");
       submitButton.addActionListener(e -> {
+         DefaultTableModel tableModel = (DefaultTableModel) resTable.getModel();
+         tableModel.setRowCount(0);
          try{
-            String hotelID = hotelField.getText();
-            String idcheck = "SELECT managerUserId From Hotel Where hotelID = " + hotelID;
-            List<List<String>> checker = esql.executeQueryAndReturnResult(idcheck);
-            DefaultTableModel tableModel = (DefaultTableModel) resTable.getModel();
-            tableModel.setRowCount(0);
-            if(!checker.get(0).get(0).equals(userID)){
-               System.out.println("Invalid Manager ID!");
-               tableModel.addRow(new Object[]{"Error: Unauthorized operation"});
-               return;
-            }
-            System.out.println("Manager Validated!");
-            String query = "SELECT U.name FROM Users U, RoomBookings R1 WHERE R1.hotelID = " + hotelID + " AND R1.customerID = U.userID GROUP BY U.name ORDER BY COUNT(*) DESC  LIMIT 5";
-            List<List<String>> res = esql.executeQueryAndReturnResult(query);
-            for(int i = 0; i < res.size(); ++i){
-               tableModel.addRow(new Object[]{res.get(i).get(0)});
-            }
+            int hotelID = Integer.parseInt(hotelField.getText().trim());
+            int k = Integer.parseInt(countField.getText().trim());
+            int months = monthsField.getText().trim().isEmpty() ? 0 : Integer.parseInt(monthsField.getText().trim());
+            // returns the customers to list, or null when the user does not manage the hotel
+            DbWorker.run(submitButton, () -> {
+               try{
+                  return esql.service().regularCustomers(session, hotelID, k, months);
+               }catch(HotelService.NotAuthorized err){
+                  return null;
+               }
+            }, res -> {
+               if(res == null){
+                  tableModel.addRow(new Object[]{"Error: Unauthorized operation"});
+                  return;
+               }
+               for(RegularCustomers.Regular r : res){
+                  tableModel.addRow(new Object[]{r.name, r.bookings});
+               }
+            }, err -> {
+               System.err.print(err.getMessage());
+               tableModel.addRow(new Object[]{"ERROR " + err.getMessage()});
+            });
          }
          catch(Exception err){
             System.err.print(err.getMessage());
-            DefaultTableModel errorModel = (DefaultTableModel) resTable.getModel();
-            errorModel.setRowCount(0);
-            errorModel.addRow(new Object[]{"ERROR " + err.getMessage()});
+            tableModel.addRow(new Object[]{"ERROR " + err.getMessage()});
          }
       });
       inputPane.add(submitButton);
@@ -1177,7 +1776,7 @@ public class Hotel {
       dialog.setResizable(false);
       dialog.setVisible(true);
 	}
-   public static void placeRoomRepairRequests(Hotel esql, String userID, JFrame frame) {
+   public static void placeRoomRepairRequests(Hotel esql, Session session, JFrame frame) {
       JDialog dialog = new JDialog(frame,"Big Boat Lodge",true);
       JLabel hotelLabel, roomLabel, companyLabel, statusLabel, detailLabel;
       JTextField hotelField, roomField, companyField;
@@ -1186,7 +1785,7 @@ public class Hotel {
       outputPane.setLayout(new BoxLayout(outputPane,BoxLayout.Y_AXIS));
 
       hotelLabel = new JLabel("Hotel ID:");
-      roomLabel = new JLabel("Room Number:");
+      roomLabel = new JLabel("Room Number(s), comma separated:");
       companyLabel = new JLabel("Company ID:");
       statusLabel = new JLabel("");
       detailLabel = new JLabel("");
@@ -1209,38 +1808,34 @@ public class Hotel {
 
       JButton submitButton = new JButton("Place Request");
       submitButton.addActionListener(e -> {
-         try{
-            String hotelID = hotelField.getText();
-            String roomNum = roomField.getText();
-            String companyID = companyField.getText();
-            String idcheck = "SELECT managerUserId From Hotel Where hotelID = " + hotelID;
-            List<List<String>> checker = esql.executeQueryAndReturnResult(idcheck);
-            if(!checker.get(0).get(0).equals(userID)){
-               System.out.println("Invalid Manager ID!");
-               statusLabel.setText("UNAUTHORIZED");
-               detailLabel.setText("User not authorized to perform operation on hotel " + hotelID + ".");
-               return;
+         String hotelID = hotelField.getText();
+         String roomNum = roomField.getText();
+         String companyID = companyField.getText();
+         statusLabel.setText("");
+         detailLabel.setText("Placing request...");
+         // returns the status and detail lines to show
+         DbWorker.run(submitButton, () -> {
+            List<RepairRequests.Item> items = new ArrayList<>();
+            for(String room : roomNum.split(","))
+               items.add(new RepairRequests.Item(Integer.parseInt(hotelID.trim()), Integer.parseInt(room.trim()), Integer.parseInt(companyID.trim())));
+            List<RepairRequests.Placed> placed;
+            try{
+               placed = esql.service().placeRepairRequests(session, items);
+            }catch(HotelService.NotAuthorized err){
+               return new String[]{"UNAUTHORIZED", "User not authorized to perform operation on hotel " + hotelID + "."};
             }
-            SimpleDateFormat tstamp = new SimpleDateFormat("yyyy-MM-dd");
-            Timestamp curr = new Timestamp(System.currentTimeMillis());
-            String time = tstamp.format(curr);
-
-            System.out.println("Manager Validated!");
-            String query = String.format("INSERT INTO RoomRepairs (repairID, companyID, hotelID, roomNumber, repairDate) values (" + ++esql.repairId + ", %s, %s, %s, '" + time + "')", companyID, hotelID, roomNum);
-            esql.executeUpdate(query);
-            String tempQuery = "SELECT repairID from RoomRepairs WHERE hotelID = " + hotelID + " ORDER BY repairDate DESC";
-            List<List<String>> res1 = esql.executeQueryAndReturnResult(tempQuery);
-            String repairId = res1.get(0).get(0);
-            String anotherQuery = String.format("INSERT INTO RoomRepairRequests (requestNumber, managerID, repairID) values (" + ++esql.requestNumber + ", %s, " + repairId + ")" , userID); 
-            esql.executeUpdate(anotherQuery);
-            statusLabel.setText("SUCCESS");
-            detailLabel.setText("Successfully placed room repair request (" + esql.requestNumber + "," + repairId + "," + userID + ")!");
-         }
-         catch(Exception err){
+            StringBuilder filed = new StringBuilder();
+            for(RepairRequests.Placed p : placed)
+               filed.append(" (").append(p.requestNumber).append(",").append(p.repairId).append(",").append(session.userId()).append(")");
+            return new String[]{"SUCCESS", "Successfully placed room repair request" + (placed.size() > 1 ? "s" : "") + filed + "!"};
+         }, res -> {
+            statusLabel.setText(res[0]);
+            detailLabel.setText(res[1]);
+         }, err -> {
             System.err.print(err.getMessage());
             statusLabel.setText("FAILURE");
             detailLabel.setText("ERROR: " + err.getMessage());
-         }
+         });
       });
       inputPane.add(submitButton);
 
@@ -1257,17 +1852,14 @@ public class Hotel {
       dialog.setResizable(false);
       dialog.setVisible(true);
 	}
-   public static void viewRoomRepairHistory(Hotel esql, String userID, JFrame frame) {
+   public static void viewRoomRepairHistory(Hotel esql, Session session, JFrame frame) {
       JDialog dialog = new JDialog(frame,"Big Boat Lodge",true);
       DefaultTableModel model = new DefaultTableModel(new String[]{"Company ID","Hotel ID","Room Number","Repair Date"},0);
       JTable resTable = new JTable(model);
+      JLabel statusLabel = new JLabel("");
+      QueryWorker worker = null;
       try{
-         DefaultTableModel tableModel = (DefaultTableModel) resTable.getModel();
-         String query = "SELECT RR.companyID, RR.hotelID, RR.roomNumber, RR.repairDate FROM RoomRepairRequests RRR, RoomRepairs RR WHERE RRR.managerID = " + userID + " AND RRR.repairID = RR.repairID";
-         List<List<String>> res = esql.executeQueryAndReturnResult(query);
-         for(int i = 0; i < res.size(); ++i){
-            tableModel.addRow(new Object[]{res.get(i).get(0),res.get(i).get(1),res.get(i).get(2),res.get(i).get(3)});
-         }
+         worker = QueryWorker.start(esql, model, statusLabel, null, HotelService.REPAIR_HISTORY, session.userId());
       }catch(Exception e){
          DefaultTableModel errorModel = (DefaultTableModel) resTable.getModel();
          errorModel.addRow(new Object[]{"ERROR",e.getMessage(),"",""});
@@ -1276,9 +1868,16 @@ public class Hotel {
       JPanel buttonPane = new JPanel();
       buttonPane.setLayout(new BoxLayout(buttonPane,BoxLayout.PAGE_AXIS));
       JButton exitButton = new JButton("Go back");
+      QueryWorker running = worker;
       exitButton.addActionListener(e -> {
+         if(running != null) running.cancelQuery();
          dialog.dispose();
       });
+      JButton exportButton = new JButton("Export...");
+      exportButton.addActionListener(e -> exportFromDialog(dialog, statusLabel, (format, file, progress) ->
+         esql.service().exportRepairHistory(session, format, file, progress)));
+      buttonPane.add(statusLabel);
+      buttonPane.add(exportButton);
       buttonPane.add(exitButton);
       JSplitPane sPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT,new JScrollPane(resTable),buttonPane);
       sPane.setResizeWeight(1.0);
@@ -1289,6 +1888,43 @@ public class Hotel {
       dialog.setVisible(true);
    }
 
+   /*
+    * Starts an export of what a dialog shows, given the format and file the
+    * user picked.
+    **/
+   interface ExportStart {
+      Exporter.Job start(Exporter.Format format, File file, Exporter.Progress progress) throws Exception;
+   }
+
+   /*
+    * Asks for the file to export to, the file type choosing the format, and
+    * follows the export in the status label. The export goes on in the
+    * background after the dialog is closed.
+    **/
+   static void exportFromDialog(JDialog dialog, JLabel statusLabel, ExportStart export){
+      JFileChooser chooser = new JFileChooser();
+      javax.swing.filechooser.FileNameExtensionFilter csv =
+         new javax.swing.filechooser.FileNameExtensionFilter("Compressed CSV (*.csv.gz)", "gz");
+      javax.swing.filechooser.FileNameExtensionFilter columns =
+         new javax.swing.filechooser.FileNameExtensionFilter("Columnar (*.hcol)", "hcol");
+      chooser.setAcceptAllFileFilterUsed(false);
+      chooser.addChoosableFileFilter(csv);
+      chooser.addChoosableFileFilter(columns);
+      chooser.setFileFilter(csv);
+      if(chooser.showSaveDialog(dialog) != JFileChooser.APPROVE_OPTION) return;
+      Exporter.Format format = chooser.getFileFilter() == columns ? Exporter.Format.COLUMNS : Exporter.Format.CSV;
+      File file = chooser.getSelectedFile();
+      if(!file.getName().endsWith(format.extension)) file = new File(file.getPath() + format.extension);
+      try{
+         export.start(format, file, job -> SwingUtilities.invokeLater(() -> statusLabel.setText(job.toString())));
+      }catch(HotelService.NotAuthorized err){
+         statusLabel.setText("Error: Unauthorized operation");
+      }catch(Exception err){
+         System.err.println(err.getMessage());
+         statusLabel.setText("Error: " + err.getMessage());
+      }
+   }
+
 }//end Hotel
 //And the boat floats...
 
@@ -0,0 +1,497 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves the HotelService operations as HTTP/JSON on the JDK's
+ * built-in server, for booking channels that are not the Swing client.
+ *
+ * POST /login with userId and password returns a token that the other
+ * endpoints expect in an "Authorization: Bearer" header. Parameters are
+ * read from the query string and, for POST, from a form-encoded body.
+ * A token expires after -Dhotel.http.sessionIdleMillis without use and
+ * -Dhotel.http.sessionTtlMillis after login; at most
+ * -Dhotel.http.maxSessions are kept, the least recently used going first.
+ *
+ *    POST /login                 userId, password
+ *    POST /logout
+ *    GET  /hotels                lat, lon
+ *    GET  /rooms                 hotelId, date[, until]
+ *    POST /bookings              hotelId, room, date
+ *    GET  /bookings/recent
+ *    GET  /bookings/timeline     [afterDate, afterId, limit]
+ *    POST /rooms/price           hotelId, room, price
+ *    POST /rooms/prices          rules (one per line, see BulkPricing)
+ *    POST /rooms/image           hotelId, room, url
+ *    GET  /updates/recent
+ *    GET  /history               [start, end, afterDate, afterId, limit]
+ *    GET  /regulars              hotelId[, k, months]
+ *    POST /repairs               hotelId, room, companyId
+ *    POST /repairs/batch         hotelId, rooms (comma separated), companyId
+ *    GET  /repairs
+ *
+ * Requests run on virtual threads when the JDK has them and on a fixed pool
+ * of -Dhotel.http.threads threads otherwise; either way the connection pool
+ * bounds how many of them talk to the database at once.
+ *
+ * Usage:
+ *    java HotelHttpServer DBNAME PORT USER [HTTPPORT]
+ *
+ */
+public class HotelHttpServer {
+
+   /*
+    * One endpoint. Returns the JSON body of a 200 response.
+    **/
+   private interface Endpoint {
+      String handle(Request request) throws Exception;
+   }//end Endpoint
+
+   /*
+    * Thrown for answers other than 200.
+    **/
+   private static class HttpError extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      final int status;
+
+      HttpError(int status, String message){
+         super(message);
+         this.status = status;
+      }
+   }//end HttpError
+
+   /*
+    * The parameters and session of one request.
+    **/
+   private class Request {
+      final Map<String, String> params;
+      final String token;
+
+      Request(Map<String, String> params, String token){
+         this.params = params;
+         this.token = token;
+      }
+
+      String string(String name) throws HttpError {
+         String value = params.get(name);
+         if (value == null || value.isEmpty()) throw new HttpError(400, "Missing parameter " + name);
+         return value;
+      }
+
+      int integer(String name) throws HttpError {
+         return Integer.parseInt(string(name).trim());
+      }
+
+      int integer(String name, int otherwise) throws HttpError {
+         return params.containsKey(name) ? integer(name) : otherwise;
+      }
+
+      LocalDate date(String name) throws HttpError {
+         return LocalDate.parse(string(name).trim());
+      }
+
+      Session session() throws HttpError {
+         Login login = token == null ? null : sessions.get(token);
+         long now = System.currentTimeMillis();
+         if (login != null && login.expired(now)){
+            sessions.remove(token, login);
+            login = null;
+         }
+         if (login == null) throw new HttpError(401, "Log in first");
+         login.lastUsed = now;
+         return login.session;
+      }
+   }//end Request
+
+   /*
+    * The session behind a token, with when it was made and last used.
+    **/
+   private static class Login {
+      final Session session;
+      final long createdAt = System.currentTimeMillis();
+      volatile long lastUsed = createdAt;
+
+      Login(Session session){
+         this.session = session;
+      }
+
+      boolean expired(long now){
+         return now - lastUsed > SESSION_IDLE_MILLIS || now - createdAt > SESSION_TTL_MILLIS;
+      }
+   }//end Login
+
+   // a token is dropped after this long unused, and after this long in any case
+   static final long SESSION_IDLE_MILLIS = Long.getLong("hotel.http.sessionIdleMillis", 30 * 60 * 1000);
+   static final long SESSION_TTL_MILLIS = Long.getLong("hotel.http.sessionTtlMillis", 12 * 60 * 60 * 1000);
+   static final int MAX_SESSIONS = Integer.getInteger("hotel.http.maxSessions", 10000);
+
+   private final HotelService service;
+   private final HttpServer server;
+   private final ExecutorService executor;
+   private final Map<String, Login> sessions = new ConcurrentHashMap<>();
+   private final SecureRandom random = new SecureRandom();
+
+   public HotelHttpServer(HotelService service, int port) throws IOException {
+      this.service = service;
+      this.server = HttpServer.create(new InetSocketAddress(port), Integer.getInteger("hotel.http.backlog", 1024));
+      this.executor = newExecutor();
+      this.server.setExecutor(executor);
+      routes();
+   }//end HotelHttpServer
+
+   public void start(){
+      server.start();
+   }
+
+   public void stop(){
+      server.stop(1);
+      executor.shutdown();
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3){
+         System.err.println("Usage: java HotelHttpServer DBNAME PORT USER [HTTPPORT]");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      Hotel esql = new Hotel(args[0], args[1], args[2], "");
+      esql.initialize();
+      int port = args.length > 3 ? Integer.parseInt(args[3]) : 8080;
+      HotelHttpServer server = new HotelHttpServer(esql.service(), port);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+         server.stop();
+         esql.cleanup();
+      }));
+      server.start();
+      System.out.println("Listening on port " + port);
+   }//end main
+
+   /*
+    * Drops the expired tokens and, if that is not enough, the least recently
+    * used one, so logging in again and again cannot grow the map.
+    **/
+   private synchronized void makeRoom(){
+      long now = System.currentTimeMillis();
+      sessions.entrySet().removeIf(e -> e.getValue().expired(now));
+      while (sessions.size() >= MAX_SESSIONS){
+         Map.Entry<String, Login> oldest = null;
+         for (Map.Entry<String, Login> e : sessions.entrySet())
+            if (oldest == null || e.getValue().lastUsed < oldest.getValue().lastUsed) oldest = e;
+         if (oldest == null) break;
+         sessions.remove(oldest.getKey());
+      }
+   }
+
+   private void routes(){
+      route("/login", "POST", r -> {
+         Session session = service.login(r.integer("userId"), r.string("password"));
+         if (session == null) throw new HttpError(401, "Invalid Credentials");
+         byte[] bytes = new byte[16];
+         random.nextBytes(bytes);
+         StringBuilder token = new StringBuilder();
+         for (byte b : bytes)
+            token.append(String.format("%02x", b));
+         if (sessions.size() >= MAX_SESSIONS) makeRoom();
+         sessions.put(token.toString(), new Login(session));
+         return new Json().object().field("token", token.toString()).field("userId", session.userId())
+                          .field("role", session.role().name()).end().toString();
+      });
+      route("/logout", "POST", r -> {
+         if (r.token != null) sessions.remove(r.token);
+         return "{}";
+      });
+      route("/hotels", "GET", r -> {
+         Json json = new Json().array();
+         for (HotelIndex.Match m : service.hotelsNear(Double.parseDouble(r.string("lat")), Double.parseDouble(r.string("lon"))))
+            json.object().field("hotelId", m.hotel.hotelId).field("name", m.hotel.name)
+                .field("distance", m.distance).end();
+         return json.end().toString();
+      });
+      route("/rooms", "GET", r -> {
+         LocalDate start = r.date("date");
+         LocalDate end = r.params.containsKey("until") ? r.date("until") : start;
+         Json json = new Json().array();
+         for (RoomAvailability.RoomStatus room : service.rooms(r.integer("hotelId"), start, end))
+            json.object().field("room", room.roomNumber).field("price", room.price).field("available", room.available).end();
+         return json.end().toString();
+      });
+      route("/bookings", "POST", r -> {
+         BookingService.Result res = service.book(r.session(), r.integer("hotelId"), r.integer("room"), r.date("date"));
+         return new Json().object().field("status", res.status.name()).field("bookingId", res.bookingId)
+                          .field("price", res.price).end().toString();
+      });
+      route("/bookings/recent", "GET", r -> table(service.recentBookings(r.session())));
+      route("/bookings/timeline", "GET", r -> {
+         List<String> after = null;
+         if (r.params.containsKey("afterId")){
+            // only the key columns of the previous page's last row are used
+            after = new ArrayList<>();
+            after.add(r.string("afterId"));
+            after.add(null);
+            after.add(null);
+            after.add(null);
+            after.add(r.string("afterDate"));
+         }
+         int limit = Math.min(r.integer("limit", BookingTimeline.PAGE_SIZE), 1000);
+         Json json = new Json().array();
+         for (List<String> row : service.bookingTimelinePage(r.session(), after, limit))
+            json.object().field("bookingId", row.get(0)).field("hotelId", row.get(1)).field("room", row.get(2))
+                .field("price", row.get(3)).field("date", row.get(4)).end();
+         return json.end().toString();
+      });
+      route("/rooms/price", "POST", r -> {
+         service.updatePrice(r.session(), r.integer("hotelId"), r.integer("room"), new BigDecimal(r.string("price").trim()));
+         return "{}";
+      });
+      route("/rooms/prices", "POST", r -> {
+         Json json = new Json().array();
+         for (BulkPricing.Repriced room : service.updatePrices(r.session(), BulkPricing.parse(r.string("rules"))))
+            json.object().field("hotelId", room.hotelId).field("room", room.roomNumber).field("price", room.price).end();
+         return json.end().toString();
+      });
+      route("/rooms/image", "POST", r -> {
+         service.updateImageUrl(r.session(), r.integer("hotelId"), r.integer("room"), r.string("url"));
+         return "{}";
+      });
+      route("/updates/recent", "GET", r -> table(service.recentUpdates(r.session())));
+      route("/history", "GET", r -> {
+         List<String> after = null;
+         if (r.params.containsKey("afterId")){
+            // only the key columns of the previous page's last row are used
+            after = new ArrayList<>();
+            after.add(r.string("afterId"));
+            after.add(null);
+            after.add(null);
+            after.add(null);
+            after.add(r.string("afterDate"));
+         }
+         LocalDate start = r.params.containsKey("start") ? r.date("start") : null;
+         LocalDate end = r.params.containsKey("end") ? r.date("end") : null;
+         int limit = Math.min(r.integer("limit", PagedTableModel.PAGE_SIZE), 1000);
+         Json json = new Json().array();
+         for (List<String> row : service.bookingHistoryPage(r.session(), start, end, after, limit))
+            json.object().field("bookingId", row.get(0)).field("customer", row.get(1)).field("hotelId", row.get(2))
+                .field("room", row.get(3)).field("date", row.get(4)).end();
+         return json.end().toString();
+      });
+      route("/regulars", "GET", r -> {
+         Json json = new Json().array();
+         for (RegularCustomers.Regular c : service.regularCustomers(r.session(), r.integer("hotelId"), r.integer("k", 5), r.integer("months", 0)))
+            json.object().field("customerId", c.customerId).field("name", c.name).field("bookings", c.bookings).end();
+         return json.end().toString();
+      });
+      route("/repairs", "POST", r -> {
+         RepairRequests.Placed placed = service.placeRepairRequest(r.session(),
+            new RepairRequests.Item(r.integer("hotelId"), r.integer("room"), r.integer("companyId")));
+         return new Json().object().field("requestNumber", placed.requestNumber).field("repairId", placed.repairId).end().toString();
+      });
+      route("/repairs/batch", "POST", r -> {
+         List<RepairRequests.Item> items = new ArrayList<>();
+         for (String room : r.string("rooms").split(","))
+            items.add(new RepairRequests.Item(r.integer("hotelId"), Integer.parseInt(room.trim()), r.integer("companyId")));
+         Json json = new Json().array();
+         for (RepairRequests.Placed p : service.placeRepairRequests(r.session(), items))
+            json.object().field("requestNumber", p.requestNumber).field("repairId", p.repairId)
+                .field("room", p.item.roomNumber).end();
+         return json.end().toString();
+      });
+      route("/repairs", "GET", r -> table(service.repairHistory(r.session())));
+   }//end routes
+
+   // one context per path; the method picks the endpoint
+   private final Map<String, Map<String, Endpoint>> endpoints = new HashMap<>();
+
+   private void route(String path, String method, Endpoint endpoint){
+      Map<String, Endpoint> byMethod = endpoints.get(path);
+      if (byMethod == null){
+         Map<String, Endpoint> created = new HashMap<>();
+         endpoints.put(path, created);
+         server.createContext(path, exchange -> serve(exchange, path, created));
+         byMethod = created;
+      }
+      byMethod.put(method, endpoint);
+   }//end route
+
+   private void serve(HttpExchange exchange, String path, Map<String, Endpoint> byMethod) throws IOException {
+      int status = 200;
+      String body;
+      try{
+         // contexts match by prefix; /rooms must not answer /rooms/price/x
+         if (!exchange.getRequestURI().getPath().equals(path)) throw new HttpError(404, "No such endpoint");
+         Endpoint endpoint = byMethod.get(exchange.getRequestMethod());
+         if (endpoint == null) throw new HttpError(405, "Method not allowed");
+         body = endpoint.handle(new Request(params(exchange), token(exchange)));
+      }catch (HttpError e){
+         status = e.status;
+         body = error(e.getMessage());
+      }catch (HotelService.NotAuthorized e){
+         status = 403;
+         body = error(e.getMessage());
+      }catch (NumberFormatException | DateTimeParseException e){
+         status = 400;
+         body = error("Bad parameter: " + e.getMessage());
+      }catch (IllegalArgumentException e){
+         status = 400;
+         body = error(e.getMessage());
+      }catch (Exception e){
+         // SQL text and class names stay in the server log; the client gets an id to quote
+         String incident = UUID.randomUUID().toString().substring(0, 8);
+         System.err.println("HTTP " + exchange.getRequestMethod() + " " + path + " failed, incident " + incident + ":");
+         e.printStackTrace();
+         status = 500;
+         body = error("Internal error, incident " + incident);
+      }
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()){
+         out.write(bytes);
+      }
+   }//end serve
+
+   private static String error(String message){
+      return new Json().object().field("error", message).end().toString();
+   }
+
+   private static String table(ResultTable res){
+      Json json = new Json().array();
+      for (int i = 0; i < res.rows(); ++i){
+         json.object();
+         for (int c = 0; c < res.columns(); ++c)
+            json.field(res.columnName(c), res.getString(i, c));
+         json.end();
+      }
+      return json.end().toString();
+   }
+
+   private static Map<String, String> params(HttpExchange exchange) throws IOException {
+      Map<String, String> params = new HashMap<>();
+      decode(exchange.getRequestURI().getRawQuery(), params);
+      if ("POST".equals(exchange.getRequestMethod())){
+         try (InputStream in = exchange.getRequestBody()){
+            decode(new String(in.readAllBytes(), StandardCharsets.UTF_8), params);
+         }
+      }
+      return params;
+   }
+
+   private static void decode(String form, Map<String, String> into){
+      if (form == null || form.isEmpty()) return;
+      for (String pair : form.split("&")){
+         int eq = pair.indexOf('=');
+         String key = eq < 0 ? pair : pair.substring(0, eq);
+         String value = eq < 0 ? "" : pair.substring(eq + 1);
+         into.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+      }
+   }
+
+   private static String token(HttpExchange exchange){
+      String header = exchange.getRequestHeaders().getFirst("Authorization");
+      if (header == null || !header.startsWith("Bearer ")) return null;
+      return header.substring("Bearer ".length()).trim();
+   }
+
+   /*
+    * Virtual threads when the running JDK has them (21 and later), looked up
+    * by reflection so that the server also builds and runs on older JDKs.
+    **/
+   private static ExecutorService newExecutor(){
+      try{
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }catch (ReflectiveOperationException e){
+         return Executors.newFixedThreadPool(Integer.getInteger("hotel.http.threads", 200));
+      }
+   }
+
+   /*
+    * Just enough of a JSON writer for the responses above.
+    **/
+   static class Json {
+      private final StringBuilder out = new StringBuilder();
+      // whether each open object or array already has a member
+      private final ArrayDeque<Boolean> members = new ArrayDeque<>();
+      private final ArrayDeque<Character> closers = new ArrayDeque<>();
+
+      Json object(){
+         return open('{', '}');
+      }
+
+      Json array(){
+         return open('[', ']');
+      }
+
+      Json end(){
+         members.pop();
+         out.append(closers.pop());
+         return this;
+      }
+
+      Json field(String name, Object value){
+         separate();
+         quote(name);
+         out.append(':');
+         if (value == null) out.append("null");
+         else if (value instanceof Number || value instanceof Boolean) out.append(value);
+         else quote(value.toString());
+         return this;
+      }
+
+      private Json open(char opener, char closer){
+         separate();
+         out.append(opener);
+         members.push(false);
+         closers.push(closer);
+         return this;
+      }
+
+      private void separate(){
+         if (members.isEmpty()) return;
+         if (members.pop()) out.append(',');
+         members.push(true);
+      }
+
+      private void quote(String s){
+         out.append('"');
+         for (int i = 0; i < s.length(); ++i){
+            char c = s.charAt(i);
+            switch (c){
+               case '"': out.append("\\\""); break;
+               case '\\': out.append("\\\\"); break;
+               case '\n': out.append("\\n"); break;
+               case '\r': out.append("\\r"); break;
+               case '\t': out.append("\\t"); break;
+               default:
+                  if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                  else out.append(c);
+            }
+         }
+         out.append('"');
+      }
+
+      @Override
+      public String toString(){
+         return out.toString();
+      }
+   }//end Json
+
+}//end HotelHttpServer
@@ -0,0 +1,296 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class defines an in-memory spatial index over hotel coordinates. The
+ * plane is cut into square grid cells and every hotel is kept in the bucket of
+ * the cell it falls into, so radius and k-nearest searches only look at the
+ * cells around the query point instead of every hotel in the table.
+ *
+ * Distances use Hotel.calculateDistance, i.e. the same euclidean distance on
+ * latitude/longitude the menu has always used.
+ *
+ * refresh() only adds hotels with a higher hotelID than any loaded, so hotels
+ * that were moved, renamed or deleted stay as they were until reload() reads
+ * the whole table again.
+ *
+ */
+public class HotelIndex {
+
+   /**
+    * A hotel position as stored in the index.
+    */
+   public static class Entry {
+      public final int hotelId;
+      public final String name;
+      public final double latitude, longitude;
+
+      public Entry(int hotelId, String name, double latitude, double longitude){
+         this.hotelId = hotelId;
+         this.name = name;
+         this.latitude = latitude;
+         this.longitude = longitude;
+      }
+   }//end Entry
+
+   /**
+    * An index entry together with its distance to the query point.
+    */
+   public static class Match {
+      public final Entry hotel;
+      public final double distance;
+
+      Match(Entry hotel, double distance){
+         this.hotel = hotel;
+         this.distance = distance;
+      }
+   }//end Match
+
+   private final double cellSize;
+   private final Map<Long, List<Entry>> cells = new HashMap<>();
+   private final Map<Integer, Entry> byId = new HashMap<>();
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+   private int highestLoadedId = Integer.MIN_VALUE;
+   private volatile long lastRefresh = 0;
+   private volatile long lastReload = 0;
+
+   public HotelIndex(double cellSize){
+      this.cellSize = cellSize;
+   }//end HotelIndex
+
+   /**
+    * Loads the hotels added since the last load. The first call reads the
+    * whole table; later calls only read rows with a higher hotelID, so new
+    * hotels are picked up cheaply. Changes to hotels already loaded are not.
+    *
+    * @param esql the database to read from
+    * @return the number of hotels added
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int refresh(Hotel esql) throws SQLException {
+      int after;
+      lock.readLock().lock();
+      try{
+         after = highestLoadedId;
+      }finally{
+         lock.readLock().unlock();
+      }
+      String query = "SELECT hotelID, hotelName, latitude, longitude FROM Hotel WHERE hotelID > ? ORDER BY hotelID";
+      ResultTable res = esql.executeQueryAndReturnTable(query, after);
+      for (int i = 0; i < res.rows(); ++i)
+         put(new Entry(res.getInt(i, 0), res.getString(i, 1), res.getDouble(i, 2), res.getDouble(i, 3)));
+      lastRefresh = System.currentTimeMillis();
+      return res.rows();
+   }//end refresh
+
+   /**
+    * Refreshes the index when the last refresh is older than maxAgeMillis.
+    */
+   public void refreshIfOlderThan(Hotel esql, long maxAgeMillis) throws SQLException {
+      if (System.currentTimeMillis() - lastRefresh > maxAgeMillis)
+         refresh(esql);
+   }
+
+   /**
+    * Reads the whole table again and replaces the content of the index with
+    * it, so hotels moved, renamed or deleted since the last load are seen.
+    * Searches keep using the old content until the table has been read.
+    *
+    * @param esql the database to read from
+    * @return the number of hotels in the index
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int reload(Hotel esql) throws SQLException {
+      String query = "SELECT hotelID, hotelName, latitude, longitude FROM Hotel";
+      ResultTable res = esql.executeQueryAndReturnTable(query);
+      lock.writeLock().lock();
+      try{
+         cells.clear();
+         byId.clear();
+         highestLoadedId = Integer.MIN_VALUE;
+         for (int i = 0; i < res.rows(); ++i)
+            putLocked(new Entry(res.getInt(i, 0), res.getString(i, 1), res.getDouble(i, 2), res.getDouble(i, 3)));
+      }finally{
+         lock.writeLock().unlock();
+      }
+      lastReload = lastRefresh = System.currentTimeMillis();
+      return res.rows();
+   }//end reload
+
+   /**
+    * Reloads the index when the last full read is older than maxAgeMillis.
+    *
+    * @return whether the index was reloaded
+    */
+   public boolean reloadIfOlderThan(Hotel esql, long maxAgeMillis) throws SQLException {
+      if (System.currentTimeMillis() - lastReload <= maxAgeMillis) return false;
+      reload(esql);
+      return true;
+   }
+
+   /**
+    * Adds a hotel or moves it to its new position.
+    */
+   public void put(Entry hotel){
+      lock.writeLock().lock();
+      try{
+         putLocked(hotel);
+      }finally{
+         lock.writeLock().unlock();
+      }
+   }//end put
+
+   public void remove(int hotelId){
+      lock.writeLock().lock();
+      try{
+         removeLocked(hotelId);
+      }finally{
+         lock.writeLock().unlock();
+      }
+   }//end remove
+
+   public int size(){
+      lock.readLock().lock();
+      try{
+         return byId.size();
+      }finally{
+         lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Returns the hotels within radius of the point, nearest first. Only the
+    * cells overlapping the bounding square of the circle are visited.
+    */
+   public List<Match> withinRadius(double lat, double lon, double radius){
+      List<Match> result = new ArrayList<>();
+      int span = (int) Math.ceil(radius / cellSize);
+      long row = cellOf(lat), col = cellOf(lon);
+      lock.readLock().lock();
+      try{
+         for (long r = row - span; r <= row + span; ++r){
+            for (long c = col - span; c <= col + span; ++c){
+               List<Entry> bucket = cells.get(cellKey(r, c));
+               if (bucket == null) continue;
+               for (Entry h : bucket){
+                  double dis = Hotel.calculateDistance(lat, lon, h.latitude, h.longitude);
+                  if (dis <= radius) result.add(new Match(h, dis));
+               }
+            }
+         }
+      }finally{
+         lock.readLock().unlock();
+      }
+      result.sort(Comparator.comparingDouble(m -> m.distance));
+      return result;
+   }//end withinRadius
+
+   /**
+    * Returns the k hotels nearest to the point, nearest first. Rings of cells
+    * are searched outwards from the query cell until no unvisited cell can be
+    * closer than the current k-th match.
+    */
+   public List<Match> nearest(double lat, double lon, int k){
+      if (k <= 0) return Collections.emptyList();
+      PriorityQueue<Match> best = new PriorityQueue<>(Comparator.comparingDouble((Match m) -> m.distance).reversed());
+      long row = cellOf(lat), col = cellOf(lon);
+      lock.readLock().lock();
+      try{
+         int total = byId.size();
+         int seen = 0;
+         for (int ring = 0; seen < total; ++ring){
+            // every cell in this ring is at least (ring - 1) cells away from the point
+            if (best.size() == k && (ring - 1) * cellSize > best.peek().distance) break;
+            // sparse outskirts: visiting the remaining occupied cells directly is cheaper
+            if ((long) (2 * ring + 1) * (2 * ring + 1) > 4L * cells.size() + 9){
+               for (Map.Entry<Long, List<Entry>> cell : cells.entrySet()){
+                  long r = cell.getKey() >> 32, c = (int) (long) cell.getKey();
+                  if (Math.max(Math.abs(r - row), Math.abs(c - col)) < ring) continue;
+                  for (Entry h : cell.getValue())
+                     offer(best, k, h, Hotel.calculateDistance(lat, lon, h.latitude, h.longitude));
+               }
+               break;
+            }
+            for (long r = row - ring; r <= row + ring; ++r){
+               for (long c = col - ring; c <= col + ring; ++c){
+                  if (Math.abs(r - row) != ring && Math.abs(c - col) != ring) continue;
+                  List<Entry> bucket = cells.get(cellKey(r, c));
+                  if (bucket == null) continue;
+                  seen += bucket.size();
+                  for (Entry h : bucket)
+                     offer(best, k, h, Hotel.calculateDistance(lat, lon, h.latitude, h.longitude));
+               }
+            }
+         }
+      }finally{
+         lock.readLock().unlock();
+      }
+      List<Match> result = new ArrayList<>(best);
+      result.sort(Comparator.comparingDouble(m -> m.distance));
+      return result;
+   }//end nearest
+
+   /**
+    * Answers a radius search without the in-memory index by pushing the
+    * bounding box of the circle down to the database, then dropping the
+    * corners of the box in Java.
+    *
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<Match> withinRadiusInDatabase(Hotel esql, double lat, double lon, double radius) throws SQLException {
+      String query = "SELECT hotelID, hotelName, latitude, longitude FROM Hotel " +
+         "WHERE latitude BETWEEN ? AND ? AND longitude BETWEEN ? AND ?";
+      ResultTable res = esql.executeQueryAndReturnTable(query, lat - radius, lat + radius, lon - radius, lon + radius);
+      List<Match> result = new ArrayList<>();
+      for (int i = 0; i < res.rows(); ++i){
+         Entry h = new Entry(res.getInt(i, 0), res.getString(i, 1), res.getDouble(i, 2), res.getDouble(i, 3));
+         double dis = Hotel.calculateDistance(lat, lon, h.latitude, h.longitude);
+         if (dis <= radius) result.add(new Match(h, dis));
+      }
+      result.sort(Comparator.comparingDouble(m -> m.distance));
+      return result;
+   }//end withinRadiusInDatabase
+
+   private static void offer(PriorityQueue<Match> best, int k, Entry h, double dis){
+      if (best.size() < k){
+         best.add(new Match(h, dis));
+      }else if (dis < best.peek().distance){
+         best.poll();
+         best.add(new Match(h, dis));
+      }
+   }
+
+   private void putLocked(Entry hotel){
+      removeLocked(hotel.hotelId);
+      cells.computeIfAbsent(cellKey(cellOf(hotel.latitude), cellOf(hotel.longitude)), k -> new ArrayList<>()).add(hotel);
+      byId.put(hotel.hotelId, hotel);
+      highestLoadedId = Math.max(highestLoadedId, hotel.hotelId);
+   }
+
+   private void removeLocked(int hotelId){
+      Entry old = byId.remove(hotelId);
+      if (old == null) return;
+      long key = cellKey(cellOf(old.latitude), cellOf(old.longitude));
+      List<Entry> bucket = cells.get(key);
+      if (bucket != null){
+         bucket.remove(old);
+         if (bucket.isEmpty()) cells.remove(key);
+      }
+   }
+
+   private long cellOf(double coordinate){
+      return (long) Math.floor(coordinate / cellSize);
+   }
+
+   private static long cellKey(long row, long col){
+      return (row << 32) ^ (col & 0xffffffffL);
+   }
+
+}//end HotelIndex
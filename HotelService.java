@@ -0,0 +1,374 @@
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class holds the operations behind the menus without any user
+ * interface, so that the Swing dialogs and the HTTP front end run the same
+ * code. Every method takes plain values and returns plain results; checks a
+ * dialog used to report with a status line are thrown as NotAuthorized.
+ * Every method is timed as a menu action in the operation metrics.
+ *
+ */
+public class HotelService {
+
+   /**
+    * Thrown when the user may not perform the operation, e.g. a manager
+    * acting on a hotel someone else manages.
+    */
+   public static class NotAuthorized extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      public NotAuthorized(String message){
+         super(message);
+      }
+   }//end NotAuthorized
+
+   static final String RECENT_BOOKINGS =
+      "SELECT RB.hotelId, RB.roomNumber, R.price, RB.bookingDate " +
+      "FROM RoomBookings RB, Rooms R " +
+      "WHERE RB.customerID = ? AND RB.hotelID = R.hotelID AND RB.roomNumber = R.roomNumber " +
+      "ORDER BY RB.bookingDate DESC, RB.bookingID DESC " +
+      "LIMIT 5";
+
+   static final String UPDATE_PRICE =
+      "UPDATE Rooms SET price = ? WHERE hotelId = ? AND roomNumber = ?";
+
+   static final String UPDATE_IMAGE_URL =
+      "UPDATE Rooms SET imageurl = ? WHERE hotelId = ? AND roomNumber = ?";
+
+   static final String RECENT_UPDATES =
+      "SELECT * FROM RoomUpdatesLog WHERE managerID = ? ORDER BY updatedOn DESC LIMIT 5";
+
+   static final String REPAIR_HISTORY =
+      "SELECT RR.companyID, RR.hotelID, RR.roomNumber, RR.repairDate " +
+      "FROM RoomRepairRequests RRR, RoomRepairs RR WHERE RRR.managerID = ? AND RRR.repairID = RR.repairID";
+
+   static final String[] BOOKING_HISTORY_COLUMNS = {"bookingID", "customerName", "hotelID", "roomNumber", "bookingDate"};
+
+   static final String[] REPAIR_HISTORY_COLUMNS = {"companyID", "hotelID", "roomNumber", "repairDate"};
+
+   private final Hotel esql;
+
+   public HotelService(Hotel esql){
+      this.esql = esql;
+   }//end HotelService
+
+   /**
+    * @return the session of the user, or null when the credentials are wrong
+    */
+   public Session login(int userId, String password) throws SQLException {
+      return timed("login", () -> Session.login(esql, userId, password));
+   }
+
+   /**
+    * @return the hotels within the search radius, nearest first
+    */
+   public List<HotelIndex.Match> hotelsNear(double lat, double lon) throws SQLException {
+      return timed("hotelsNear", () -> Hotel.SEARCH_PUSHDOWN
+         ? HotelIndex.withinRadiusInDatabase(esql, lat, lon, Hotel.SEARCH_RADIUS)
+         : esql.hotelIndex().withinRadius(lat, lon, Hotel.SEARCH_RADIUS));
+   }//end hotelsNear
+
+   /**
+    * @return every room of the hotel and whether it is free from start to end
+    */
+   public List<RoomAvailability.RoomStatus> rooms(int hotelId, LocalDate start, LocalDate end) throws SQLException {
+      return timed("rooms", () -> {
+         if (end.isBefore(start)) throw new IllegalArgumentException("End date is before the start date");
+         return esql.availability().rooms(esql, hotelId, start, end);
+      });
+   }//end rooms
+
+   public BookingService.Result book(Session session, int hotelId, int roomNumber, LocalDate date) throws SQLException {
+      return timed("book", () -> esql.bookings().book(session.userId(), hotelId, roomNumber, date));
+   }
+
+   public List<BookingService.BatchResult> bookBatch(Session session, List<BookingService.BatchItem> items) throws SQLException {
+      return timed("bookBatch", () -> esql.bookings().bookBatch(session.userId(), items));
+   }
+
+   /**
+    * @return hotel, room, price and date of the user's five latest bookings
+    */
+   public ResultTable recentBookings(Session session) throws SQLException {
+      return timed("recentBookings", () -> esql.executeQueryAndReturnTable(RECENT_BOOKINGS, session.userId()));
+   }
+
+   /**
+    * @param after the last row of the previous page, null for the newest bookings
+    * @return bookingID, hotelID, roomNumber, price and bookingDate of the
+    *         user's bookings, newest first
+    */
+   public List<List<String>> bookingTimelinePage(Session session, List<String> after, int limit) throws SQLException {
+      return timed("bookingTimelinePage", () -> esql.timeline().page(session.userId(), after, limit));
+   }
+
+   /**
+    * Changes the price of a room of a hotel the user manages and logs the
+    * update.
+    *
+    * @throws NotAuthorized when the user does not manage the hotel
+    */
+   public void updatePrice(Session session, int hotelId, int roomNumber, BigDecimal price) throws SQLException, NotAuthorized {
+      timed("updatePrice", () -> {
+         requireManagerOf(session, hotelId);
+         esql.audit().update(pc -> {
+            PreparedStatement update = pc.statements().prepare(UPDATE_PRICE);
+            update.setBigDecimal(1, price);
+            update.setInt(2, hotelId);
+            update.setInt(3, roomNumber);
+            return update.executeUpdate();
+         }, logRecord(session, hotelId, roomNumber));
+         esql.catalogue().evict(hotelId, roomNumber);
+         return null;
+      });
+   }//end updatePrice
+
+   /**
+    * Changes the image URL of a room of a hotel the user manages and logs
+    * the update.
+    *
+    * @throws NotAuthorized when the user does not manage the hotel
+    */
+   public void updateImageUrl(Session session, int hotelId, int roomNumber, String url) throws SQLException, NotAuthorized {
+      timed("updateImageUrl", () -> {
+         requireManagerOf(session, hotelId);
+         esql.audit().update(pc -> {
+            PreparedStatement update = pc.statements().prepare(UPDATE_IMAGE_URL);
+            update.setString(1, url);
+            update.setInt(2, hotelId);
+            update.setInt(3, roomNumber);
+            return update.executeUpdate();
+         }, logRecord(session, hotelId, roomNumber));
+         esql.catalogue().evict(hotelId, roomNumber);
+         return null;
+      });
+   }//end updateImageUrl
+
+   /**
+    * Reprices every room matched by the rules in one transaction and logs
+    * each changed room.
+    *
+    * @return the changed rooms with their new prices
+    * @throws NotAuthorized when the user does not manage one of the hotels
+    */
+   public List<BulkPricing.Repriced> updatePrices(Session session, List<BulkPricing.Rule> rules) throws SQLException, NotAuthorized {
+      return timed("updatePrices", () -> {
+         Set<Integer> checked = new HashSet<>();
+         for (BulkPricing.Rule rule : rules)
+            if (checked.add(rule.hotelId)) requireManagerOf(session, rule.hotelId);
+         List<BulkPricing.Repriced> repriced = esql.pricing().apply(session.userId(), rules);
+         for (BulkPricing.Repriced room : repriced)
+            esql.catalogue().evict(room.hotelId, room.roomNumber);
+         return repriced;
+      });
+   }//end updatePrices
+
+   /**
+    * @return the five latest room updates made by the manager
+    * @throws NotAuthorized when the user is not a manager
+    */
+   public ResultTable recentUpdates(Session session) throws SQLException, NotAuthorized {
+      return timed("recentUpdates", () -> {
+         requireManager(session);
+         flushAudit();
+         return esql.executeQueryAndReturnTable(RECENT_UPDATES, session.userId());
+      });
+   }
+
+   /**
+    * Writes the updates still queued by the write-behind log, so a manager's
+    * own latest changes show up in the recent updates. When that fails the
+    * updates written so far are shown; the flusher keeps retrying the rest.
+    */
+   public void flushAudit(){
+      try{
+         esql.audit().flush();
+      }catch (SQLException e){
+         System.err.println("Warning - recent updates may miss queued records: " + e.getMessage());
+      }
+   }//end flushAudit
+
+   /**
+    * Reads one page of the bookings of all hotels the manager manages, in
+    * (bookingDate, bookingID) order.
+    *
+    * @param start first booking date, null for no lower bound
+    * @param end last booking date, null for no upper bound
+    * @param after the last row of the previous page, null for the first page
+    * @return bookingID, customer name, hotelID, roomNumber and bookingDate per row
+    * @throws NotAuthorized when the user is not a manager
+    */
+   public List<List<String>> bookingHistoryPage(Session session, LocalDate start, LocalDate end,
+                                                List<String> after, int limit) throws SQLException, NotAuthorized {
+      return timed("bookingHistoryPage", () -> {
+         requireManager(session);
+         List<Object> params = new ArrayList<>();
+         String query = bookingHistory(session, start, end, params);
+         if (after != null){
+            query += " AND (RB.bookingDate, RB.bookingID) > (?, ?)";
+            params.add(java.sql.Date.valueOf(after.get(4).substring(0, 10)));
+            params.add(Integer.parseInt(after.get(0).trim()));
+         }
+         query += " ORDER BY RB.bookingDate, RB.bookingID LIMIT ?";
+         params.add(limit);
+         return esql.executeQueryAndReturnResult(query, params.toArray());
+      });
+   }//end bookingHistoryPage
+
+   /**
+    * Writes the bookings at the hotels the user manages to a file in the
+    * background, in booking date order.
+    *
+    * @param start first booking date, null for no lower bound
+    * @param end last booking date, null for no upper bound
+    * @param progress told about progress from the export thread, may be null
+    * @return the running export
+    * @throws NotAuthorized when the user is not a manager
+    */
+   public Exporter.Job exportBookingHistory(Session session, LocalDate start, LocalDate end, Exporter.Format format,
+                                            File file, Exporter.Progress progress) throws SQLException, NotAuthorized {
+      return timed("exportBookingHistory", () -> {
+         requireManager(session);
+         List<Object> params = new ArrayList<>();
+         String query = bookingHistory(session, start, end, params) + " ORDER BY RB.bookingDate, RB.bookingID";
+         return esql.exporter().export(query, BOOKING_HISTORY_COLUMNS, format, file, progress, params.toArray());
+      });
+   }//end exportBookingHistory
+
+   // the bookings at the user's hotels between the dates, unordered
+   private static String bookingHistory(Session session, LocalDate start, LocalDate end, List<Object> params){
+      String query = "SELECT RB.bookingID, U.name, RB.hotelID, RB.roomNumber, RB.bookingDate " +
+         "FROM Users U, Hotel H, RoomBookings RB " +
+         "WHERE RB.customerID = U.userID AND " +
+         "H.hotelID = RB.hotelID AND H.managerUserID = ?";
+      params.add(session.userId());
+      if (start != null){
+         query += " AND RB.bookingDate >= ?";
+         params.add(java.sql.Date.valueOf(start));
+      }
+      if (end != null){
+         query += " AND RB.bookingDate <= ?";
+         params.add(java.sql.Date.valueOf(end));
+      }
+      return query;
+   }
+
+   /**
+    * @param months calendar months back to count, 0 for all time
+    * @return the k customers with the most bookings at the hotel
+    * @throws NotAuthorized when the user does not manage the hotel
+    */
+   public List<RegularCustomers.Regular> regularCustomers(Session session, int hotelId, int k, int months) throws SQLException, NotAuthorized {
+      return timed("regularCustomers", () -> {
+         requireManagerOf(session, hotelId);
+         return esql.regulars().top(esql, hotelId, k, months);
+      });
+   }//end regularCustomers
+
+   /**
+    * Books a repair of a room with a company and files the request, both in
+    * one statement.
+    *
+    * @return the request number and the repair ID
+    * @throws NotAuthorized when the user does not manage the hotel
+    */
+   public RepairRequests.Placed placeRepairRequest(Session session, RepairRequests.Item item) throws SQLException, NotAuthorized {
+      return timed("placeRepairRequest", () -> {
+         requireManagerOf(session, item.hotelId);
+         return esql.repairs().place(session.userId(), item);
+      });
+   }//end placeRepairRequest
+
+   /**
+    * Files repair requests for many rooms at once; all of them or none.
+    *
+    * @return one result per item, in the same order
+    * @throws NotAuthorized when the user does not manage one of the hotels
+    */
+   public List<RepairRequests.Placed> placeRepairRequests(Session session, List<RepairRequests.Item> items) throws SQLException, NotAuthorized {
+      return timed("placeRepairRequests", () -> {
+         for (RepairRequests.Item item : items)
+            requireManagerOf(session, item.hotelId);
+         if (items.size() == 1){
+            List<RepairRequests.Placed> result = new ArrayList<>();
+            result.add(esql.repairs().place(session.userId(), items.get(0)));
+            return result;
+         }
+         return esql.repairs().placeBatch(session.userId(), items);
+      });
+   }//end placeRepairRequests
+
+   /**
+    * @return company, hotel, room and date of every repair the manager requested
+    * @throws NotAuthorized when the user is not a manager
+    */
+   public ResultTable repairHistory(Session session) throws SQLException, NotAuthorized {
+      return timed("repairHistory", () -> {
+         requireManager(session);
+         return esql.executeQueryAndReturnTable(REPAIR_HISTORY, session.userId());
+      });
+   }
+
+   /**
+    * Writes every repair the manager requested to a file in the background.
+    *
+    * @param progress told about progress from the export thread, may be null
+    * @return the running export
+    * @throws NotAuthorized when the user is not a manager
+    */
+   public Exporter.Job exportRepairHistory(Session session, Exporter.Format format, File file,
+                                           Exporter.Progress progress) throws SQLException, NotAuthorized {
+      return timed("exportRepairHistory", () -> {
+         requireManager(session);
+         return esql.exporter().export(REPAIR_HISTORY + " ORDER BY RR.repairDate, RR.repairID", REPAIR_HISTORY_COLUMNS,
+                                       format, file, progress, session.userId());
+      });
+   }//end exportRepairHistory
+
+   /*
+    * The body of a service method; E is NotAuthorized for the manager
+    * operations and inferred as RuntimeException for the others.
+    **/
+   private interface Action<T, E extends Exception> {
+      T run() throws SQLException, E;
+   }
+
+   // records the method as action.<name> in the operation metrics
+   private <T, E extends Exception> T timed(String name, Action<T, E> action) throws SQLException, E {
+      long started = System.nanoTime();
+      boolean failed = true;
+      T result = null;
+      try{
+         result = action.run();
+         failed = false;
+         return result;
+      }finally{
+         long rows = result instanceof List ? ((List<?>) result).size()
+                   : result instanceof ResultTable ? ((ResultTable) result).rows() : 0;
+         esql.metrics().record("action." + name, System.nanoTime() - started, rows, 0, failed);
+      }
+   }
+
+   private static AuditLog.Record logRecord(Session session, int hotelId, int roomNumber){
+      return new AuditLog.Record(session.userId(), hotelId, roomNumber, new Timestamp(System.currentTimeMillis()));
+   }
+
+   private static void requireManager(Session session) throws NotAuthorized {
+      if (!session.isManager()) throw new NotAuthorized("User " + session.userId() + " is not a manager.");
+   }
+
+   private void requireManagerOf(Session session, int hotelId) throws SQLException, NotAuthorized {
+      if (!session.isManager() || !esql.owners().manages(session.userId(), hotelId))
+         throw new NotAuthorized("User does not manage Hotel " + hotelId + ".");
+   }
+
+}//end HotelService
@@ -0,0 +1,114 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records latencies in nanoseconds into log-linear buckets so that
+ * percentiles can be read without keeping every sample. Each power of two is
+ * split into 16 buckets, which bounds the error of a percentile to about 6%
+ * while the whole histogram stays a fixed array of counters. Recording is
+ * lock-free and may be done from several threads.
+ *
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BUCKETS = 16;
+   private static final int SUB_BITS = 4;
+   private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final LongAdder total = new LongAdder();
+   private final LongAdder sum = new LongAdder();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * Records one latency.
+    *
+    * @param nanos the latency in nanoseconds, negative values count as 0
+    */
+   public void record(long nanos){
+      if (nanos < 0) nanos = 0;
+      counts.incrementAndGet(bucket(nanos));
+      total.increment();
+      sum.add(nanos);
+      long m;
+      while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos));
+   }//end record
+
+   public long count(){
+      return total.sum();
+   }
+
+   public long max(){
+      return max.get();
+   }
+
+   /**
+    * @return the mean latency in nanoseconds, 0 when nothing was recorded
+    */
+   public double mean(){
+      long n = total.sum();
+      return n == 0 ? 0 : (double) sum.sum() / n;
+   }
+
+   /**
+    * @param percentile between 0 and 100
+    * @return the latency in nanoseconds below which the given share of the
+    *         samples fall, 0 when nothing was recorded
+    */
+   public long percentile(double percentile){
+      long n = total.sum();
+      if (n == 0) return 0;
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+      long seen = 0;
+      for (int b = 0; b < BUCKETS; ++b){
+         seen += counts.get(b);
+         if (seen >= rank) return Math.min(upperBound(b), max.get());
+      }
+      return max.get();
+   }//end percentile
+
+   /**
+    * Adds the samples of another histogram to this one.
+    */
+   public void add(LatencyHistogram other){
+      for (int b = 0; b < BUCKETS; ++b)
+         counts.addAndGet(b, other.counts.get(b));
+      total.add(other.total.sum());
+      sum.add(other.sum.sum());
+      long m, o = other.max.get();
+      while (o > (m = max.get()) && !max.compareAndSet(m, o));
+   }//end add
+
+   public void reset(){
+      for (int b = 0; b < BUCKETS; ++b)
+         counts.set(b, 0);
+      total.reset();
+      sum.reset();
+      max.set(0);
+   }
+
+   /**
+    * @return count, mean and the usual percentiles in microseconds on one line
+    */
+   public String summary(){
+      return String.format("n=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                           count(), mean() / 1e3, percentile(50) / 1e3, percentile(90) / 1e3,
+                           percentile(99) / 1e3, percentile(99.9) / 1e3, max() / 1e3);
+   }//end summary
+
+   // values below SUB_BUCKETS get a bucket each; above, 16 buckets per power of two
+   private static int bucket(long value){
+      if (value < SUB_BUCKETS) return (int) value;
+      int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS + 1;
+      int sub = (int) (value >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+      return magnitude * SUB_BUCKETS + sub;
+   }
+
+   private static long upperBound(int bucket){
+      int magnitude = bucket / SUB_BUCKETS, sub = bucket % SUB_BUCKETS;
+      if (magnitude == 0) return sub;
+      return ((long) (SUB_BUCKETS + sub + 1) << (magnitude - 1)) - 1;
+   }
+
+}//end LatencyHistogram
@@ -0,0 +1,412 @@
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class drives a database with simulated customers and managers who call
+ * the same HotelService operations as the menus, so production peaks can be
+ * reproduced without anyone clicking through dialogs. Every simulated user
+ * logs in with a real account and then loops: pick an operation from its
+ * mix, run it, think for an exponentially distributed time.
+ *
+ * Hotels and dates are drawn with Zipf skew, so a few hotels and the nearest
+ * nights get most of the traffic; -hotelSkew 0 and -dateSkew 0 spread the
+ * load evenly. Bookings that lose to another user count as conflicts, which
+ * is what to watch for contention regressions.
+ *
+ * Usage:
+ *    java LoadGenerator DBNAME PORT USER [-customers N] [-managers N]
+ *                       [-seconds SEC] [-warmup SEC] [-report SEC] [-think MS]
+ *                       [-customerMix hotels=20,rooms=40,book=30,recent=10]
+ *                       [-managerMix price=50,url=20,repair=10,updates=20]
+ *                       [-hotelSkew S] [-dateSkew S] [-from YYYY-MM-DD] [-days N]
+ *                       [-seed N]
+ *
+ * Bookings, price changes and repair requests are really made, so only run
+ * it against a scratch database.
+ *
+ */
+public class LoadGenerator {
+
+   /**
+    * One operation a simulated user performs.
+    */
+   interface Operation {
+      // returns true when the operation ran but lost a conflict
+      boolean run(User user) throws Exception;
+   }//end Operation
+
+   /*
+    * Counters of one operation over the measured period.
+    **/
+   private static class Tally {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final LongAdder conflicts = new LongAdder(), errors = new LongAdder();
+      volatile String lastError;
+
+      void reset(){
+         latency.reset();
+         conflicts.reset();
+         errors.reset();
+      }
+   }//end Tally
+
+   /*
+    * A simulated customer or manager.
+    **/
+   private class User {
+      final Session session;
+      final Random rnd;
+      final List<String> mix;
+      final int[] weights;
+      final int[] managed;
+
+      User(Session session, long seed, Map<String, Integer> mix){
+         this.session = session;
+         this.managed = session.managedHotels().stream().mapToInt(Integer::intValue).toArray();
+         this.rnd = new Random(seed);
+         this.mix = new ArrayList<>(mix.keySet());
+         this.weights = new int[this.mix.size()];
+         int total = 0;
+         for (int i = 0; i < weights.length; ++i)
+            weights[i] = total += mix.get(this.mix.get(i));
+      }
+
+      String next(){
+         int pick = rnd.nextInt(weights[weights.length - 1]);
+         for (int i = 0; ; ++i)
+            if (pick < weights[i]) return mix.get(i);
+      }
+
+      int hotel(){
+         return hotelIds[hotelRanks.next(rnd)];
+      }
+
+      LocalDate date(){
+         return from.plusDays(dateRanks.next(rnd));
+      }
+
+      int managedHotel(){
+         return managed[rnd.nextInt(managed.length)];
+      }
+   }//end User
+
+   /**
+    * Draws ranks 0..n-1 with probability proportional to 1/(rank+1)^s.
+    */
+   static class Zipf {
+      private final double[] cdf;
+
+      Zipf(int n, double s){
+         cdf = new double[n];
+         double sum = 0;
+         for (int k = 0; k < n; ++k)
+            cdf[k] = sum += 1 / Math.pow(k + 1, s);
+         for (int k = 0; k < n; ++k)
+            cdf[k] /= sum;
+      }
+
+      int next(Random rnd){
+         double u = rnd.nextDouble();
+         int lo = 0, hi = cdf.length - 1;
+         while (lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if (cdf[mid] < u) lo = mid + 1;
+            else hi = mid;
+         }
+         return lo;
+      }
+   }//end Zipf
+
+   private String dbname, dbport, dbuser;
+   private int customers = 50, managers = 5;
+   private int seconds = 60, warmupSeconds = 10, reportSeconds = 10;
+   private long thinkMillis = 500;
+   private double hotelSkew = 1.0, dateSkew = 1.0;
+   private LocalDate from = LocalDate.now().plusDays(1);
+   private int days = 90;
+   private long seed = 42;
+   private final Map<String, Integer> customerMix = mix("hotels=20,rooms=40,book=30,recent=10");
+   private final Map<String, Integer> managerMix = mix("price=50,url=20,repair=10,updates=20");
+
+   private Hotel esql;
+   private HotelService service;
+   private int[] hotelIds;
+   private Zipf hotelRanks, dateRanks;
+   private final Map<Integer, double[]> coordinates = new HashMap<>();
+   private final Map<Integer, int[]> roomsOf = new HashMap<>();
+   private int[] companies = new int[0];
+   private final Map<String, Operation> operations = new LinkedHashMap<>();
+   private final Map<String, Tally> tallies = new LinkedHashMap<>();
+
+   public static void main(String[] args) throws Exception {
+      LoadGenerator gen = new LoadGenerator();
+      gen.parse(args);
+      gen.run();
+   }//end main
+
+   private void parse(String[] args){
+      if (args.length < 3){
+         System.err.println("Usage: java LoadGenerator DBNAME PORT USER [options]");
+         System.exit(1);
+      }
+      dbname = args[0];
+      dbport = args[1];
+      dbuser = args[2];
+      for (int i = 3; i < args.length; ++i){
+         switch (args[i]){
+            case "-customers": customers = Integer.parseInt(args[++i]); break;
+            case "-managers": managers = Integer.parseInt(args[++i]); break;
+            case "-seconds": seconds = Integer.parseInt(args[++i]); break;
+            case "-warmup": warmupSeconds = Integer.parseInt(args[++i]); break;
+            case "-report": reportSeconds = Integer.parseInt(args[++i]); break;
+            case "-think": thinkMillis = Long.parseLong(args[++i]); break;
+            case "-customerMix": customerMix.clear(); customerMix.putAll(mix(args[++i])); break;
+            case "-managerMix": managerMix.clear(); managerMix.putAll(mix(args[++i])); break;
+            case "-hotelSkew": hotelSkew = Double.parseDouble(args[++i]); break;
+            case "-dateSkew": dateSkew = Double.parseDouble(args[++i]); break;
+            case "-from": from = LocalDate.parse(args[++i]); break;
+            case "-days": days = Integer.parseInt(args[++i]); break;
+            case "-seed": seed = Long.parseLong(args[++i]); break;
+            default:
+               System.err.println("Unknown option " + args[i]);
+               System.exit(1);
+         }
+      }
+   }//end parse
+
+   // "a=1,b=2" in the order written
+   private static Map<String, Integer> mix(String spec){
+      Map<String, Integer> mix = new LinkedHashMap<>();
+      for (String part : spec.split(",")){
+         String[] kv = part.split("=");
+         int weight = Integer.parseInt(kv[1].trim());
+         if (weight > 0) mix.put(kv[0].trim(), weight);
+      }
+      return mix;
+   }
+
+   private void run() throws Exception {
+      Class.forName("org.postgresql.Driver");
+      esql = new Hotel(dbname, dbport, dbuser, "");
+      esql.initialize();
+      service = esql.service();
+      try{
+         List<User> users = setUp();
+         drive(users);
+      }finally{
+         esql.cleanup();
+      }
+   }//end run
+
+   /*
+    * Reads the hotels, rooms and accounts to draw from and logs every
+    * simulated user in.
+    **/
+   private List<User> setUp() throws Exception {
+      ResultTable hotels = esql.executeQueryAndReturnTable("SELECT hotelID, latitude, longitude FROM Hotel ORDER BY hotelID");
+      if (hotels.rows() == 0) throw new IllegalStateException("The database has no hotels");
+      List<Integer> ids = new ArrayList<>();
+      for (int i = 0; i < hotels.rows(); ++i){
+         ids.add(hotels.getInt(i, 0));
+         coordinates.put(hotels.getInt(i, 0), new double[]{hotels.getDouble(i, 1), hotels.getDouble(i, 2)});
+      }
+      // which hotels are hot is random but repeatable
+      Collections.shuffle(ids, new Random(seed));
+      hotelIds = new int[ids.size()];
+      for (int i = 0; i < hotelIds.length; ++i)
+         hotelIds[i] = ids.get(i);
+      hotelRanks = new Zipf(hotelIds.length, hotelSkew);
+      dateRanks = new Zipf(days, dateSkew);
+
+      ResultTable rooms = esql.executeQueryAndReturnTable("SELECT hotelID, roomNumber FROM Rooms ORDER BY hotelID, roomNumber");
+      Map<Integer, List<Integer>> grouped = new HashMap<>();
+      for (int i = 0; i < rooms.rows(); ++i)
+         grouped.computeIfAbsent(rooms.getInt(i, 0), h -> new ArrayList<>()).add(rooms.getInt(i, 1));
+      for (Map.Entry<Integer, List<Integer>> e : grouped.entrySet())
+         roomsOf.put(e.getKey(), e.getValue().stream().mapToInt(Integer::intValue).toArray());
+
+      try{
+         ResultTable res = esql.executeQueryAndReturnTable("SELECT companyID FROM MaintenanceCompany");
+         companies = new int[res.rows()];
+         for (int i = 0; i < res.rows(); ++i)
+            companies[i] = res.getInt(i, 0);
+      }catch (java.sql.SQLException e){
+         System.err.println("No maintenance companies, repair requests are skipped: " + e.getMessage());
+      }
+
+      operations();
+      List<User> users = new ArrayList<>();
+      users.addAll(logIn("customer", customers, customerMix));
+      users.addAll(logIn("manager", managers, managerMix));
+      return users;
+   }//end setUp
+
+   private List<User> logIn(String userType, int count, Map<String, Integer> mix) throws Exception {
+      List<User> users = new ArrayList<>();
+      if (count <= 0 || mix.isEmpty()) return users;
+      ResultTable accounts = esql.executeQueryAndReturnTable(
+         "SELECT userID, password FROM Users WHERE userType LIKE ? ORDER BY userID", userType + "%");
+      for (int i = 0; i < accounts.rows() && users.size() < count; ++i){
+         Session session = service.login(accounts.getInt(i, 0), accounts.getString(i, 1).trim());
+         // managers without hotels have nothing to manage
+         if (session == null || (session.isManager() && session.managedHotels().isEmpty())) continue;
+         users.add(new User(session, seed + users.size() + (session.isManager() ? 100000 : 0), mix));
+      }
+      if (users.size() < count)
+         System.err.println("Only " + users.size() + " of " + count + " " + userType + " accounts usable");
+      return users;
+   }//end logIn
+
+   private void operations(){
+      operations.put("hotels", u -> {
+         double[] at = coordinates.get(u.hotel());
+         service.hotelsNear(at[0] + u.rnd.nextGaussian(), at[1] + u.rnd.nextGaussian());
+         return false;
+      });
+      operations.put("rooms", u -> {
+         LocalDate date = u.date();
+         service.rooms(u.hotel(), date, date.plusDays(u.rnd.nextInt(3)));
+         return false;
+      });
+      operations.put("book", u -> {
+         int hotelId = u.hotel();
+         int[] rooms = roomsOf.get(hotelId);
+         if (rooms == null) return false;
+         return service.book(u.session, hotelId, rooms[u.rnd.nextInt(rooms.length)], u.date()).status
+            != BookingService.Status.BOOKED;
+      });
+      operations.put("recent", u -> {
+         service.recentBookings(u.session);
+         return false;
+      });
+      operations.put("price", u -> {
+         int hotelId = u.managedHotel();
+         int[] rooms = roomsOf.get(hotelId);
+         if (rooms == null) return false;
+         service.updatePrice(u.session, hotelId, rooms[u.rnd.nextInt(rooms.length)], BigDecimal.valueOf(50 + u.rnd.nextInt(250)));
+         return false;
+      });
+      operations.put("url", u -> {
+         int hotelId = u.managedHotel();
+         int[] rooms = roomsOf.get(hotelId);
+         if (rooms == null) return false;
+         service.updateImageUrl(u.session, hotelId, rooms[u.rnd.nextInt(rooms.length)], "https://example.com/room/" + u.rnd.nextInt(1000) + ".jpg");
+         return false;
+      });
+      operations.put("repair", u -> {
+         int hotelId = u.managedHotel();
+         int[] rooms = roomsOf.get(hotelId);
+         if (rooms == null || companies.length == 0) return false;
+         service.placeRepairRequest(u.session, new RepairRequests.Item(hotelId, rooms[u.rnd.nextInt(rooms.length)],
+                                                                       companies[u.rnd.nextInt(companies.length)]));
+         return false;
+      });
+      operations.put("updates", u -> {
+         service.recentUpdates(u.session);
+         return false;
+      });
+      for (String name : operations.keySet())
+         tallies.put(name, new Tally());
+      for (String name : customerMix.keySet())
+         if (!operations.containsKey(name)) throw new IllegalArgumentException("Unknown operation " + name);
+      for (String name : managerMix.keySet())
+         if (!operations.containsKey(name)) throw new IllegalArgumentException("Unknown operation " + name);
+   }//end operations
+
+   /*
+    * Runs every user on a thread of its own, prints interval throughput
+    * while running and the totals of the measured period at the end.
+    **/
+   private void drive(List<User> users) throws Exception {
+      AtomicBoolean running = new AtomicBoolean(true);
+      CountDownLatch done = new CountDownLatch(users.size());
+      for (User user : users){
+         Thread t = new Thread(() -> {
+            try{
+               while (running.get()){
+                  String name = user.next();
+                  Tally tally = tallies.get(name);
+                  long start = System.nanoTime();
+                  try{
+                     if (operations.get(name).run(user)) tally.conflicts.increment();
+                  }catch (Exception e){
+                     tally.errors.increment();
+                     tally.lastError = e.getClass().getSimpleName() + ": " + e.getMessage();
+                  }
+                  tally.latency.record(System.nanoTime() - start);
+                  think(user.rnd);
+               }
+            }finally{
+               done.countDown();
+            }
+         }, "load-" + user.session.userId());
+         t.setDaemon(true);
+         t.start();
+      }
+      System.out.printf("%d users, %ds warmup, %ds measured, think %dms, hotel skew %.2f, date skew %.2f%n",
+                        users.size(), warmupSeconds, seconds, thinkMillis, hotelSkew, dateSkew);
+      Thread.sleep(warmupSeconds * 1000L);
+      for (Tally tally : tallies.values())
+         tally.reset();
+
+      long started = System.nanoTime(), last = 0, lastCalls = 0;
+      while (true){
+         long left = seconds * 1000L - (System.nanoTime() - started) / 1000000;
+         if (left <= 0) break;
+         Thread.sleep(Math.min(left, reportSeconds * 1000L));
+         long now = (System.nanoTime() - started) / 1000000, calls = 0;
+         for (Tally tally : tallies.values())
+            calls += tally.latency.count();
+         System.out.printf("%6.1fs %10.1f ops/s%n", now / 1e3, (calls - lastCalls) * 1e3 / Math.max(1, now - last));
+         last = now;
+         lastCalls = calls;
+      }
+      double elapsed = (System.nanoTime() - started) / 1e9;
+      running.set(false);
+      report(elapsed);
+      done.await();
+   }//end drive
+
+   private void think(Random rnd){
+      if (thinkMillis <= 0) return;
+      try{
+         Thread.sleep((long) (-Math.log(1 - rnd.nextDouble()) * thinkMillis));
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private void report(double elapsed){
+      System.out.printf("%-10s %10s %10s %10s %10s %10s %10s %10s %9s %9s%n", "operation", "calls", "ops/s",
+                        "mean us", "p50 us", "p90 us", "p99 us", "max us", "conflict%", "error%");
+      long calls = 0, conflicts = 0, errors = 0;
+      for (Map.Entry<String, Tally> e : tallies.entrySet()){
+         Tally t = e.getValue();
+         // an operation that was never drawn still gets its line, with 0 calls
+         long n = t.latency.count();
+         calls += n;
+         conflicts += t.conflicts.sum();
+         errors += t.errors.sum();
+         System.out.printf("%-10s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f %9.2f %9.2f%n", e.getKey(), n, n / elapsed,
+                           t.latency.mean() / 1e3, t.latency.percentile(50) / 1e3, t.latency.percentile(90) / 1e3,
+                           t.latency.percentile(99) / 1e3, t.latency.max() / 1e3,
+                           n == 0 ? 0 : 100.0 * t.conflicts.sum() / n, n == 0 ? 0 : 100.0 * t.errors.sum() / n);
+         if (t.lastError != null) System.out.println("           last error: " + t.lastError);
+      }
+      System.out.printf("%-10s %10d %10.1f %54s %9.2f %9.2f%n", "total", calls, calls / elapsed, "",
+                        calls == 0 ? 0 : 100.0 * conflicts / calls, calls == 0 ? 0 : 100.0 * errors / calls);
+      System.out.println(esql.bookings().stats());
+      System.out.println(esql.getPool().metrics());
+   }//end report
+
+}//end LoadGenerator
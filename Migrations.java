@@ -0,0 +1,302 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * This class owns the DDL the application relies on beyond the tables
+ * themselves: the key sequences, the indexes of the hot lookups, the unique
+ * room-night constraint and the ownership trigger. Changes are numbered
+ * migrations, applied in order at startup and recorded in SchemaVersion, so
+ * every database runs each of them exactly once. Each migration runs in a
+ * transaction of its own together with its SchemaVersion row, under an
+ * advisory lock so that instances starting at the same time do not race.
+ *
+ * The first migrations only use IF NOT EXISTS and OR REPLACE, so they also
+ * apply to databases the services already set up themselves before. New
+ * changes are appended to MIGRATIONS; applied ones are never edited.
+ *
+ * Databases that already hold double bookings cannot take the unique
+ * room-night index, so migration 1 first moves every booking of a room night
+ * but the earliest into RoomBookingConflicts, where they can be sorted out by
+ * hand.
+ *
+ * check() confirms with EXPLAIN that each hot query can use its index.
+ *
+ * Usage, to migrate and check without starting the menus:
+ *    java Migrations DBNAME PORT USER
+ *
+ */
+public class Migrations {
+
+   /**
+    * One numbered schema change.
+    */
+   public static class Migration {
+      public final int version;
+      public final String description;
+      final String[] statements;
+
+      Migration(int version, String description, String... statements){
+         this.version = version;
+         this.description = description;
+         this.statements = statements;
+      }
+   }//end Migration
+
+   /**
+    * The outcome of checking the plan of one query.
+    */
+   public static class Check {
+      public final String query, index;
+      public final boolean usesIndex;
+      public final String plan;
+
+      Check(String query, String index, boolean usesIndex, String plan){
+         this.query = query;
+         this.index = index;
+         this.usesIndex = usesIndex;
+         this.plan = plan;
+      }
+
+      public String toString(){
+         return query + (usesIndex ? " uses " : " does NOT use ") + index;
+      }
+   }//end Check
+
+   static final String CHANNEL = OwnershipCache.CHANNEL;
+
+   // the double bookings migration 1 took out of RoomBookings
+   static final String CONFLICTS = "RoomBookingConflicts";
+
+   /**
+    * Moves the key sequences past the keys already in the tables, which rows
+    * inserted with explicit keys, e.g. by the data scripts or BulkLoader,
+    * leave behind. They run once as a migration, under the migration lock,
+    * and again after BulkLoader, which runs while no instance is inserting.
+    * Not at every startup: a setval racing the nextval of a running instance
+    * could move a sequence back below a key it handed out.
+    */
+   static final String[] RESYNC = {
+      "SELECT setval('roombookings_bookingid_seq', GREATEST((SELECT COALESCE(MAX(bookingID), 0) FROM RoomBookings), " +
+         "(SELECT last_value FROM roombookings_bookingid_seq), 1))",
+      "SELECT setval('roomrepairs_repairid_seq', GREATEST((SELECT COALESCE(MAX(repairID), 0) FROM RoomRepairs), " +
+         "(SELECT last_value FROM roomrepairs_repairid_seq), 1))",
+      "SELECT setval('roomrepairrequests_requestnumber_seq', GREATEST((SELECT COALESCE(MAX(requestNumber), 0) FROM RoomRepairRequests), " +
+         "(SELECT last_value FROM roomrepairrequests_requestnumber_seq), 1))",
+      "SELECT setval('roomupdateslog_updatenumber_seq', GREATEST((SELECT COALESCE(MAX(updateNumber), 0) FROM RoomUpdatesLog), " +
+         "(SELECT last_value FROM roomupdateslog_updatenumber_seq), 1))"
+   };
+
+   static final Migration[] MIGRATIONS = {
+      new Migration(1, "booking keys and the room-night constraint",
+         "CREATE SEQUENCE IF NOT EXISTS roombookings_bookingid_seq",
+         "ALTER TABLE RoomBookings ALTER COLUMN bookingID SET DEFAULT nextval('roombookings_bookingid_seq')",
+         "CREATE TABLE IF NOT EXISTS " + CONFLICTS + " (LIKE RoomBookings, movedOn TIMESTAMP NOT NULL DEFAULT now())",
+         // keeps the earliest booking of every room night
+         "WITH moved AS (" +
+         "   DELETE FROM RoomBookings RB USING (" +
+         "      SELECT ctid FROM (" +
+         "         SELECT ctid, row_number() OVER (PARTITION BY hotelID, roomNumber, bookingDate ORDER BY bookingID) AS n " +
+         "         FROM RoomBookings) d " +
+         "      WHERE n > 1) d " +
+         "   WHERE RB.ctid = d.ctid RETURNING RB.*" +
+         ") INSERT INTO " + CONFLICTS + " SELECT moved.*, now() FROM moved",
+         // also serves the availability lookup of bookRooms
+         "CREATE UNIQUE INDEX IF NOT EXISTS roombookings_room_night_uq ON RoomBookings (hotelID, roomNumber, bookingDate)",
+         // keyset order of the booking history pages
+         "CREATE INDEX IF NOT EXISTS roombookings_hotel_date_idx ON RoomBookings (hotelID, bookingDate, bookingID)"),
+      new Migration(2, "repair keys",
+         "CREATE SEQUENCE IF NOT EXISTS roomrepairs_repairid_seq",
+         "CREATE SEQUENCE IF NOT EXISTS roomrepairrequests_requestnumber_seq"),
+      new Migration(3, "room update log keys",
+         "CREATE SEQUENCE IF NOT EXISTS roomupdateslog_updatenumber_seq"),
+      new Migration(4, "hotel owner notifications",
+         "CREATE OR REPLACE FUNCTION hotel_owner_notify() RETURNS trigger AS $$ BEGIN " +
+         "   IF TG_OP <> 'INSERT' THEN PERFORM pg_notify('" + CHANNEL + "', OLD.hotelID::text); END IF; " +
+         "   IF TG_OP <> 'DELETE' THEN PERFORM pg_notify('" + CHANNEL + "', NEW.hotelID::text); END IF; " +
+         "   RETURN NULL; " +
+         "END $$ LANGUAGE plpgsql",
+         "DROP TRIGGER IF EXISTS hotel_owner_notify ON Hotel",
+         "CREATE TRIGGER hotel_owner_notify AFTER INSERT OR UPDATE OR DELETE ON Hotel " +
+         "FOR EACH ROW EXECUTE PROCEDURE hotel_owner_notify()"),
+      new Migration(5, "indexes of the recent bookings, recent updates and repair history lookups",
+         "CREATE INDEX IF NOT EXISTS roombookings_customer_date_idx ON RoomBookings (customerID, bookingDate DESC)",
+         "CREATE INDEX IF NOT EXISTS roomupdateslog_manager_date_idx ON RoomUpdatesLog (managerID, updatedOn DESC)",
+         "CREATE INDEX IF NOT EXISTS roomrepairrequests_manager_idx ON RoomRepairRequests (managerID)"),
+      new Migration(6, "booking timeline key order",
+         // ends in bookingID as well, so the keyset pages of BookingTimeline read only their rows
+         "CREATE INDEX IF NOT EXISTS roombookings_customer_timeline_idx ON RoomBookings (customerID, bookingDate DESC, bookingID DESC)",
+         "DROP INDEX IF EXISTS roombookings_customer_date_idx"),
+      new Migration(7, "key sequences past the keys already in the tables", RESYNC)
+   };
+
+   static final String VERSION_TABLE =
+      "CREATE TABLE IF NOT EXISTS SchemaVersion (" +
+      "   version INTEGER PRIMARY KEY, description TEXT NOT NULL, appliedOn TIMESTAMP NOT NULL DEFAULT now())";
+
+   // any constant shared by all instances of the application
+   static final String LOCK = "SELECT pg_advisory_xact_lock(hashtext('hotel.migrations'))";
+
+   private final Hotel esql;
+
+   public Migrations(Hotel esql){
+      this.esql = esql;
+   }//end Migrations
+
+   /**
+    * Applies the migrations this database has not seen yet.
+    *
+    * @return the migrations applied now, empty when the schema was current
+    * @throws java.sql.SQLException when a migration failed; it is rolled back and those after it are not tried
+    */
+   public List<Migration> migrate() throws SQLException {
+      List<Migration> applied = new ArrayList<>();
+      for (Migration m : MIGRATIONS){
+         boolean ran = esql.inTransaction(pc -> {
+            try (Statement stmt = pc.connection().createStatement()){
+               stmt.execute(LOCK);
+               stmt.executeUpdate(VERSION_TABLE);
+               try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM SchemaVersion WHERE version = " + m.version)){
+                  if (rs.next()) return false;
+               }
+               for (String ddl : m.statements)
+                  stmt.execute(ddl);
+            }catch (SQLException e){
+               throw new SQLException("Migration " + m.version + " (" + m.description + ") failed: " + e.getMessage(),
+                                      e.getSQLState(), e);
+            }
+            PreparedStatement record = pc.statements().prepare("INSERT INTO SchemaVersion (version, description) VALUES (?, ?)");
+            record.setInt(1, m.version);
+            record.setString(2, m.description);
+            record.executeUpdate();
+            return true;
+         });
+         if (ran) applied.add(m);
+      }
+      return applied;
+   }//end migrate
+
+   /**
+    * Moves the key sequences past the keys in the tables. Only safe while no
+    * other instance is inserting rows, e.g. right after a bulk load.
+    *
+    * @throws java.sql.SQLException when a sequence is missing, i.e. the migrations did not run
+    */
+   public void resyncSequences() throws SQLException {
+      for (String sql : RESYNC)
+         esql.executeQuery(sql);
+   }//end resyncSequences
+
+   /**
+    * @return the highest migration applied to the database, 0 for none
+    * @throws java.sql.SQLException when the version cannot be read
+    */
+   public int version() throws SQLException {
+      esql.executeUpdate(VERSION_TABLE);
+      ResultTable res = esql.executeQueryAndReturnTable("SELECT COALESCE(MAX(version), 0) FROM SchemaVersion");
+      return res.getInt(0, 0);
+   }//end version
+
+   /**
+    * @return the number of bookings moved out of RoomBookings as double bookings
+    * @throws java.sql.SQLException when they cannot be counted
+    */
+   public int conflicts() throws SQLException {
+      return esql.executeQueryAndReturnTable("SELECT COUNT(*) FROM " + CONFLICTS).getInt(0, 0);
+   }//end conflicts
+
+   /**
+    * @return whether the room-night constraint bookRooms relies on is in place
+    */
+   public boolean canBook(){
+      try{
+         return version() >= 1;
+      }catch (SQLException e){
+         return false;
+      }
+   }//end canBook
+
+   /**
+    * Explains every hot query with sample values and reports whether its plan
+    * uses the index meant for it. Sequential scans are disabled for the
+    * check, since on a small table the planner rightly prefers them; what is
+    * checked is that the index exists and fits the query.
+    *
+    * @return one result per query
+    * @throws java.sql.SQLException when a query cannot be explained
+    */
+   public List<Check> check() throws SQLException {
+      List<Check> checks = new ArrayList<>();
+      // the insert always names its arbiter, so only the room lookup is checked here
+      checks.add(explainMatching("bookRooms", "an index on Rooms", "index (only )?scan using \\S+ on rooms\\b", BookingService.BOOK,
+                         0, 0, 0, 0, 0, java.sql.Date.valueOf("2000-01-01")));
+      checks.add(explain("bookRooms availability", "roombookings_room_night_uq", RoomAvailability.LOAD, 0));
+      checks.add(explain("viewRecentBookingsfromCustomer", "roombookings_customer_timeline_idx", HotelService.RECENT_BOOKINGS, 0));
+      checks.add(explain("bookingTimeline", "roombookings_customer_timeline_idx", BookingTimeline.NEXT_PAGE, 0,
+                         java.sql.Date.valueOf("2000-01-01"), 0, BookingTimeline.PAGE_SIZE));
+      checks.add(explain("viewRecentUpdates", "roomupdateslog_manager_date_idx", HotelService.RECENT_UPDATES, 0));
+      checks.add(explain("viewRoomRepairHistory", "roomrepairrequests_manager_idx", HotelService.REPAIR_HISTORY, 0));
+      return checks;
+   }//end check
+
+   private Check explain(String name, String index, String query, Object... params) throws SQLException {
+      return explainMatching(name, index, Pattern.quote(index), query, params);
+   }
+
+   /*
+    * Matches the plan against the pattern, leaving out the conflict arbiter
+    * of an INSERT ... ON CONFLICT, which is listed whether or not the rest of
+    * the plan reads through an index.
+    **/
+   private Check explainMatching(String name, String index, String pattern, String query, Object... params) throws SQLException {
+      return esql.inTransaction(pc -> {
+         try (Statement stmt = pc.connection().createStatement()){
+            stmt.execute("SET LOCAL enable_seqscan = off");
+         }
+         StringBuilder plan = new StringBuilder();
+         // EXPLAIN without ANALYZE, so the booking insert is planned but not run
+         try (PreparedStatement stmt = pc.connection().prepareStatement("EXPLAIN " + query)){
+            for (int i = 0; i < params.length; ++i)
+               stmt.setObject(i + 1, params[i]);
+            try (ResultSet rs = stmt.executeQuery()){
+               while (rs.next())
+                  plan.append(rs.getString(1)).append(System.lineSeparator());
+            }
+         }
+         StringBuilder scans = new StringBuilder();
+         for (String line : plan.toString().toLowerCase().split("\\R"))
+            if (!line.contains("conflict arbiter indexes")) scans.append(line).append('\n');
+         boolean usesIndex = Pattern.compile(pattern).matcher(scans).find();
+         return new Check(name, index, usesIndex, plan.toString());
+      });
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 3){
+         System.err.println("Usage: java Migrations DBNAME PORT USER");
+         System.exit(1);
+      }
+      Class.forName("org.postgresql.Driver");
+      Hotel esql = new Hotel(args[0], args[1], args[2], "");
+      boolean ok = true;
+      try{
+         Migrations migrations = new Migrations(esql);
+         for (Migration m : migrations.migrate())
+            System.out.println("Applied " + m.version + ": " + m.description);
+         System.out.println("Schema version " + migrations.version());
+         for (Check c : migrations.check()){
+            System.out.println(c);
+            if (!c.usesIndex) System.out.print(c.plan);
+            ok &= c.usesIndex;
+         }
+      }finally{
+         esql.cleanup();
+      }
+      if (!ok) System.exit(2);
+   }//end main
+
+}//end Migrations
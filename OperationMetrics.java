@@ -0,0 +1,210 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * This class counts, per named operation, how often it ran, how often it
+ * failed, how many rows it fetched and how many bytes of values it
+ * materialized, and keeps a latency histogram of it. Statements run through
+ * Hotel are named after their SQL text, the service methods behind the menus
+ * as "action." plus the method name.
+ *
+ * The numbers are published as the MXBean hotel:type=OperationMetrics and,
+ * every -Dhotel.metrics.dumpMillis (0 turns it off), written as text to
+ * -Dhotel.metrics.file or standard error when anything ran since the last
+ * dump. Recording is lock-free, so it is cheap enough for every statement.
+ *
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+   static final String OBJECT_NAME = "hotel:type=OperationMetrics";
+
+   // dynamic SQL could otherwise create operations without bound
+   static final int MAX_OPERATIONS = Integer.getInteger("hotel.metrics.maxOperations", 256);
+   static final String OTHER = "sql (other)";
+
+   /*
+    * The counters of one operation.
+    **/
+   private static class Operation {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final LongAdder errors = new LongAdder(), rows = new LongAdder(), bytes = new LongAdder();
+   }//end Operation
+
+   /**
+    * A snapshot of one operation, latencies in microseconds.
+    */
+   public static class OperationStats {
+      private final String name;
+      private final long calls, errors, rows, bytes;
+      private final double meanMicros, p50Micros, p99Micros, maxMicros;
+
+      OperationStats(String name, Operation op){
+         this.name = name;
+         this.calls = op.latency.count();
+         this.errors = op.errors.sum();
+         this.rows = op.rows.sum();
+         this.bytes = op.bytes.sum();
+         this.meanMicros = op.latency.mean() / 1e3;
+         this.p50Micros = op.latency.percentile(50) / 1e3;
+         this.p99Micros = op.latency.percentile(99) / 1e3;
+         this.maxMicros = op.latency.max() / 1e3;
+      }
+
+      public String getName(){ return name; }
+      public long getCalls(){ return calls; }
+      public long getErrors(){ return errors; }
+      public long getRows(){ return rows; }
+      public long getBytes(){ return bytes; }
+      public double getMeanMicros(){ return meanMicros; }
+      public double getP50Micros(){ return p50Micros; }
+      public double getP99Micros(){ return p99Micros; }
+      public double getMaxMicros(){ return maxMicros; }
+   }//end OperationStats
+
+   private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+   // statement text to operation name, so the text is normalized once
+   private final Map<String, String> names = new ConcurrentHashMap<>();
+   private final long dumpMillis = Long.getLong("hotel.metrics.dumpMillis", 60 * 1000);
+   private Thread dumper;
+   private boolean registered = false;
+
+   /**
+    * Records one run of a statement.
+    *
+    * @param sql the statement text, which names the operation
+    * @param nanos how long it ran
+    * @param rows rows fetched or changed
+    * @param bytes bytes of values materialized
+    * @param failed true if it threw
+    */
+   public void statement(String sql, long nanos, long rows, long bytes, boolean failed){
+      String name = names.get(sql);
+      if (name == null){
+         name = operation(sql);
+         if (names.size() < MAX_OPERATIONS * 4) names.put(sql, name);
+      }
+      record(name, nanos, rows, bytes, failed);
+   }
+
+   /**
+    * Records one run of a named operation.
+    */
+   public void record(String name, long nanos, long rows, long bytes, boolean failed){
+      Operation op = operations.get(name);
+      if (op == null) op = operations.computeIfAbsent(operations.size() < MAX_OPERATIONS ? name : OTHER, n -> new Operation());
+      op.latency.record(nanos);
+      if (failed) op.errors.increment();
+      if (rows > 0) op.rows.add(rows);
+      if (bytes > 0) op.bytes.add(bytes);
+   }//end record
+
+   @Override
+   public List<OperationStats> getOperations(){
+      List<OperationStats> stats = new ArrayList<>();
+      for (Map.Entry<String, Operation> e : new TreeMap<>(operations).entrySet())
+         stats.add(new OperationStats(e.getKey(), e.getValue()));
+      return stats;
+   }
+
+   @Override
+   public long getTotalCalls(){
+      long calls = 0;
+      for (Operation op : operations.values())
+         calls += op.latency.count();
+      return calls;
+   }
+
+   @Override
+   public long getTotalErrors(){
+      long errors = 0;
+      for (Operation op : operations.values())
+         errors += op.errors.sum();
+      return errors;
+   }
+
+   @Override
+   public String dump(){
+      StringBuilder out = new StringBuilder();
+      for (Map.Entry<String, Operation> e : new TreeMap<>(operations).entrySet()){
+         Operation op = e.getValue();
+         out.append(String.format("%-60s errors=%d rows=%d bytes=%d %s%n", e.getKey(), op.errors.sum(),
+                                  op.rows.sum(), op.bytes.sum(), op.latency.summary()));
+      }
+      return out.toString();
+   }//end dump
+
+   @Override
+   public void reset(){
+      operations.clear();
+   }
+
+   /**
+    * Registers the MXBean and starts the periodic dump.
+    *
+    * @throws Exception when the MXBean could not be registered
+    */
+   public synchronized void start() throws Exception {
+      if (!registered){
+         ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+         registered = true;
+      }
+      if (dumper != null || dumpMillis <= 0) return;
+      dumper = new Thread(() -> {
+         long dumpedAt = 0;
+         while (true){
+            try{
+               Thread.sleep(dumpMillis);
+            }catch (InterruptedException e){
+               return;
+            }
+            long calls = getTotalCalls();
+            if (calls == dumpedAt) continue;
+            dumpedAt = calls;
+            write("metrics at " + LocalDateTime.now() + System.lineSeparator() + dump());
+         }
+      }, "hotel-metrics-dump");
+      dumper.setDaemon(true);
+      dumper.start();
+   }//end start
+
+   public synchronized void close(){
+      if (dumper != null) dumper.interrupt();
+      if (!registered) return;
+      try{
+         ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+      }catch (Exception e){
+         // ignored.
+      }
+      registered = false;
+   }
+
+   private static void write(String text){
+      String file = System.getProperty("hotel.metrics.file");
+      if (file == null){
+         System.err.print(text);
+         return;
+      }
+      try (PrintWriter out = new PrintWriter(new FileWriter(file, true))){
+         out.print(text);
+      }catch (IOException e){
+         System.err.println("Metrics dump failed: " + e.getMessage());
+      }
+   }
+
+   // whitespace collapsed so the same statement from different files is one operation
+   private static String operation(String sql){
+      String name = sql.trim().replaceAll("\\s+", " ");
+      return name.length() > 120 ? name.substring(0, 117) + "..." : name;
+   }
+
+}//end OperationMetrics
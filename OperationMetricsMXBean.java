@@ -0,0 +1,25 @@
+import java.util.List;
+
+/**
+ * The management interface of OperationMetrics, registered with the platform
+ * MBean server as hotel:type=OperationMetrics. Each operation shows up in
+ * jconsole or VisualVM as a row of calls, errors, rows, bytes and latency
+ * percentiles.
+ *
+ */
+public interface OperationMetricsMXBean {
+
+   List<OperationMetrics.OperationStats> getOperations();
+
+   long getTotalCalls();
+
+   long getTotalErrors();
+
+   /**
+    * @return one line per operation, as written by the periodic dump
+    */
+   String dump();
+
+   void reset();
+
+}//end OperationMetricsMXBean
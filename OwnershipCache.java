@@ -0,0 +1,194 @@
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class caches which manager owns which hotel, so the authorization
+ * check of a manager action is a map lookup instead of a query. The whole
+ * Hotel table is read once (at the latest when a manager logs in) and kept in
+ * two maps, hotel to manager and manager to hotels.
+ *
+ * A trigger on Hotel sends the hotelID of every changed row on the
+ * hotel_owner channel. A listener thread with its own connection LISTENs on
+ * it and drops the changed hotels, which are then re-read on their next
+ * lookup. While the listener is not connected the cache falls back to
+ * re-reading everything once it is older than -Dhotel.ownership.maxAgeMillis.
+ *
+ * The same thread LISTENs on the hotel_caches channel, on which e.g.
+ * BulkLoader announces that the tables changed behind the services' backs,
+ * and then has the Hotel instance drop all its caches.
+ *
+ */
+public class OwnershipCache {
+
+   static final String CHANNEL = "hotel_owner";
+   static final String CACHES_CHANNEL = "hotel_caches";
+
+   private final Hotel esql;
+   private final long maxAgeMillis = Long.getLong("hotel.ownership.maxAgeMillis", 60 * 1000);
+   private final Map<Integer, Integer> managerOf = new ConcurrentHashMap<>();
+   private final Map<Integer, Set<Integer>> hotelsOf = new ConcurrentHashMap<>();
+   private volatile long loadedAt = 0;
+   private volatile boolean listening = false;
+   private volatile boolean closed = false;
+   private Thread listener;
+
+   public OwnershipCache(Hotel esql){
+      this.esql = esql;
+   }//end OwnershipCache
+
+   /**
+    * Reads the owner of every hotel, replacing what is cached.
+    *
+    * @throws java.sql.SQLException when failed to read the hotels
+    */
+   public synchronized void warm() throws SQLException {
+      long started = System.currentTimeMillis();
+      ResultTable res = esql.executeQueryAndReturnTable("SELECT hotelID, managerUserID FROM Hotel");
+      managerOf.clear();
+      hotelsOf.clear();
+      for (int i = 0; i < res.rows(); ++i)
+         if (!res.isNull(i, 1)) put(res.getInt(i, 0), res.getInt(i, 1));
+      loadedAt = started;
+   }//end warm
+
+   /**
+    * Records the hotels a manager owns as read at login, so the manager's
+    * first actions need no query even before the cache was read.
+    */
+   public synchronized void prime(int managerId, Set<Integer> hotels){
+      for (int hotelId : hotels)
+         put(hotelId, managerId);
+      // hotels not primed are read one by one on a miss
+      if (loadedAt == 0) loadedAt = System.currentTimeMillis();
+   }//end prime
+
+   /**
+    * @return true if the user is the manager of the hotel
+    * @throws java.sql.SQLException when the hotel had to be read and that failed
+    */
+   public boolean manages(int userId, int hotelId) throws SQLException {
+      refreshIfStale();
+      Integer manager = managerOf.get(hotelId);
+      if (manager == null) manager = load(hotelId);
+      return manager != null && manager == userId;
+   }//end manages
+
+   /**
+    * @return the hotels the user manages, empty for customers
+    * @throws java.sql.SQLException when the cache had to be re-read and that failed
+    */
+   public Set<Integer> hotelsOf(int userId) throws SQLException {
+      refreshIfStale();
+      Set<Integer> hotels = hotelsOf.get(userId);
+      return hotels == null ? Collections.emptySet() : Collections.unmodifiableSet(hotels);
+   }//end hotelsOf
+
+   /**
+    * Forgets the owner of one hotel; it is re-read on its next lookup.
+    */
+   public synchronized void invalidate(int hotelId){
+      Integer old = managerOf.remove(hotelId);
+      if (old != null){
+         Set<Integer> hotels = hotelsOf.get(old);
+         if (hotels != null) hotels.remove(hotelId);
+      }
+   }//end invalidate
+
+   /**
+    * Starts the thread that LISTENs for ownership changes on a connection of
+    * its own, reconnecting when the connection drops.
+    *
+    * @param pool opens the listening connection outside the pool
+    */
+   public synchronized void listen(ConnectionPool pool){
+      if (listener != null) return;
+      listener = new Thread(() -> {
+         while (!closed){
+            try (Connection conn = pool.openUnpooled()){
+               receive(conn);
+            }catch (Exception e){
+               if (!closed) System.err.println("Ownership listener stopped: " + e.getMessage());
+            }
+            listening = false;
+            try{
+               Thread.sleep(5000);
+            }catch (InterruptedException e){
+               return;
+            }
+         }
+      }, "hotel-ownership-listener");
+      listener.setDaemon(true);
+      listener.start();
+   }//end listen
+
+   public synchronized void close(){
+      closed = true;
+      if (listener != null) listener.interrupt();
+   }
+
+   /*
+    * Waits for notifications until the connection fails or the cache is
+    * closed. The driver's notification API is reached by reflection so that
+    * this file compiles without the Postgres driver.
+    **/
+   private void receive(Connection conn) throws Exception {
+      try (Statement stmt = conn.createStatement()){
+         stmt.execute("LISTEN " + CHANNEL);
+         stmt.execute("LISTEN " + CACHES_CHANNEL);
+      }
+      Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+      Object pg = conn.unwrap(pgConnection);
+      Method getNotifications = pgConnection.getMethod("getNotifications", int.class);
+      Method getName = Class.forName("org.postgresql.PGNotification").getMethod("getName");
+      Method getParameter = Class.forName("org.postgresql.PGNotification").getMethod("getParameter");
+      // changes made while we were not listening were missed
+      warm();
+      listening = true;
+      while (!closed){
+         Object notifications = getNotifications.invoke(pg, 1000);
+         if (notifications == null) continue;
+         for (int i = 0; i < Array.getLength(notifications); ++i){
+            if (CACHES_CHANNEL.equals(getName.invoke(Array.get(notifications, i)))){
+               esql.refreshCaches();
+               continue;
+            }
+            String hotelId = (String) getParameter.invoke(Array.get(notifications, i));
+            try{
+               invalidate(Integer.parseInt(hotelId.trim()));
+            }catch (NumberFormatException e){
+               // not ours.
+            }
+         }
+      }
+   }//end receive
+
+   private void refreshIfStale() throws SQLException {
+      if (loadedAt == 0 || (!listening && System.currentTimeMillis() - loadedAt > maxAgeMillis))
+         warm();
+   }
+
+   private synchronized Integer load(int hotelId) throws SQLException {
+      ResultTable res = esql.executeQueryAndReturnTable("SELECT managerUserID FROM Hotel WHERE hotelID = ?", hotelId);
+      if (res.rows() == 0 || res.isNull(0, 0)) return null;
+      int manager = res.getInt(0, 0);
+      put(hotelId, manager);
+      return manager;
+   }
+
+   private void put(int hotelId, int manager){
+      Integer old = managerOf.put(hotelId, manager);
+      if (old != null && old != manager){
+         Set<Integer> hotels = hotelsOf.get(old);
+         if (hotels != null) hotels.remove(hotelId);
+      }
+      hotelsOf.computeIfAbsent(manager, m -> Collections.newSetFromMap(new ConcurrentHashMap<>())).add(hotelId);
+   }
+
+}//end OwnershipCache
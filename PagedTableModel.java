@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.JLabel;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * This class defines a table model that loads its rows one page at a time,
+ * only when the table asks for them. Pages are read with keyset pagination:
+ * the query for a page is given the last row of the page before it and
+ * continues from there, so reading page 500 costs the same as reading page 1.
+ *
+ * Only the last few pages shown are kept in memory
+ * (-Dhotel.page.cached, default 10); the last row of every page read is kept
+ * so an evicted page can be read again when it is scrolled back into view.
+ * The row count grows by one page whenever the table reaches the end of what
+ * has been read, so the scroll bar never waits on a COUNT(*).
+ *
+ */
+public class PagedTableModel extends AbstractTableModel {
+
+   private static final long serialVersionUID = 1L;
+
+   /**
+    * Reads one page of the result in key order.
+    */
+   public interface PageQuery {
+      /**
+       * @param after the last row of the previous page, or null for the first page
+       * @param limit the number of rows to return at most
+       * @return the rows that follow after
+       */
+      List<List<String>> page(List<String> after, int limit) throws Exception;
+   }//end PageQuery
+
+   static final int PAGE_SIZE = Integer.getInteger("hotel.page.size", 200);
+   static final int CACHED_PAGES = Integer.getInteger("hotel.page.cached", 10);
+
+   private final String[] columns;
+   private final PageQuery query;
+   private final JLabel status;
+   // the last row of every page read so far; page p starts after pageEnds[p - 1]
+   private final List<List<String>> pageEnds = new ArrayList<>();
+   private final Map<Integer, List<List<String>>> pages =
+      new LinkedHashMap<Integer, List<List<String>>>(16, 0.75f, true){
+         protected boolean removeEldestEntry(Map.Entry<Integer, List<List<String>>> eldest){
+            return size() > CACHED_PAGES;
+         }
+      };
+   private int rowCount = 0;
+   private boolean complete = false;
+   private boolean stopped = false;
+   private DbWorker<List<List<String>>> loading;
+
+   /**
+    * @param status label for progress messages, may be null
+    */
+   public PagedTableModel(String[] columns, JLabel status, PageQuery query){
+      this.columns = columns;
+      this.query = query;
+      this.status = status;
+      load(0);
+   }//end PagedTableModel
+
+   /**
+    * Stops reading more pages; the rows already shown stay.
+    */
+   public void stop(){
+      if (stopped) return;
+      int oldRows = getRowCount();
+      stopped = true;
+      if (oldRows > rowCount) fireTableRowsDeleted(rowCount, oldRows - 1);
+      if (loading != null) loading.cancel(false);
+      if (status != null) status.setText("Stopped at " + rowCount + " rows");
+   }//end stop
+
+   @Override
+   public int getRowCount(){
+      // one placeholder row while more pages remain, to trigger the next read
+      return complete || stopped ? rowCount : rowCount + 1;
+   }
+
+   @Override
+   public int getColumnCount(){
+      return columns.length;
+   }
+
+   @Override
+   public String getColumnName(int column){
+      return columns[column];
+   }
+
+   @Override
+   public Object getValueAt(int row, int column){
+      int page = row / PAGE_SIZE;
+      List<List<String>> rows = pages.get(page);
+      if (rows == null){
+         if (!stopped) load(page);
+         return column == 0 ? "Loading..." : "";
+      }
+      int offset = row % PAGE_SIZE;
+      return offset < rows.size() ? rows.get(offset).get(column) : "";
+   }//end getValueAt
+
+   /*
+    * Reads the page in the background unless a read is already running; the
+    * table asks again on its next repaint.
+    **/
+   private void load(int page){
+      if (loading != null || page > pageEnds.size()) return;
+      List<String> after = page == 0 ? null : pageEnds.get(page - 1);
+      loading = DbWorker.run(null, () -> query.page(after, PAGE_SIZE), rows -> {
+         loading = null;
+         if (stopped) return;
+         int oldRows = getRowCount();
+         pages.put(page, rows);
+         if (page == pageEnds.size()){
+            if (rows.size() < PAGE_SIZE) complete = true;
+            if (!rows.isEmpty()) pageEnds.add(rows.get(rows.size() - 1));
+            rowCount += rows.size();
+         }
+         int newRows = getRowCount();
+         if (newRows > oldRows) fireTableRowsInserted(oldRows, newRows - 1);
+         else if (newRows < oldRows) fireTableRowsDeleted(newRows, oldRows - 1);
+         int first = page * PAGE_SIZE, last = Math.min(newRows, first + rows.size()) - 1;
+         if (last >= first) fireTableRowsUpdated(first, last);
+         if (status != null)
+            status.setText(complete ? rowCount + " rows" : rowCount + "+ rows, scroll for more");
+      }, err -> {
+         loading = null;
+         stopped = true;
+         System.err.println(err.getMessage());
+         if (status != null) status.setText("Error: " + err.getMessage());
+         fireTableDataChanged();
+      });
+   }//end load
+
+}//end PagedTableModel
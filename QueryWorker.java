@@ -0,0 +1,101 @@
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JLabel;
+import javax.swing.SwingWorker;
+import javax.swing.table.DefaultTableModel;
+
+/**
+ * This class streams the rows of a query into a table model from a background
+ * thread. Rows are appended in chunks as the driver fetches them, a status
+ * label shows how many rows have arrived, and cancelQuery stops the statement
+ * on the server with Statement.cancel().
+ *
+ */
+public class QueryWorker extends SwingWorker<Integer, Object[]> {
+
+   /**
+    * Turns the column values of a row into the cells shown in the table.
+    */
+   public interface RowMapper {
+      Object[] map(String[] values);
+   }//end RowMapper
+
+   private final Hotel esql;
+   private final String query;
+   private final Object[] params;
+   private final DefaultTableModel model;
+   private final JLabel status;
+   private final RowMapper mapper;
+   private final Hotel.QueryHandle handle = new Hotel.QueryHandle();
+   private int loaded = 0;
+
+   public QueryWorker(Hotel esql, DefaultTableModel model, JLabel status, RowMapper mapper, String query, Object... params){
+      this.esql = esql;
+      this.query = query;
+      this.params = params;
+      this.model = model;
+      this.status = status;
+      this.mapper = mapper != null ? mapper : values -> values;
+   }//end QueryWorker
+
+   /**
+    * Clears the table and starts streaming the query into it.
+    *
+    * @param status label for progress messages, may be null
+    * @param mapper converts rows to table cells, null to show the columns as they are
+    * @return the running worker, e.g. to cancel it
+    */
+   public static QueryWorker start(Hotel esql, DefaultTableModel model, JLabel status, RowMapper mapper, String query, Object... params){
+      model.setRowCount(0);
+      if (status != null) status.setText("Loading...");
+      QueryWorker worker = new QueryWorker(esql, model, status, mapper, query, params);
+      worker.execute();
+      return worker;
+   }//end start
+
+   /**
+    * Cancels the statement on the server and stops adding rows.
+    */
+   public void cancelQuery(){
+      handle.cancel();
+      cancel(false);
+   }//end cancelQuery
+
+   @Override
+   protected Integer doInBackground() throws Exception {
+      return esql.streamQuery(query, handle, values -> publish(mapper.map(values)), params);
+   }
+
+   @Override
+   protected void process(List<Object[]> rows){
+      if (isCancelled()) return;
+      for (Object[] row : rows)
+         model.addRow(row);
+      loaded += rows.size();
+      if (status != null) status.setText("Loading... " + loaded + " rows");
+   }//end process
+
+   @Override
+   protected void done(){
+      try{
+         int rows = get();
+         if (status != null) status.setText(rows + " rows");
+      }catch (CancellationException e){
+         if (status != null) status.setText("Cancelled after " + loaded + " rows");
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }catch (ExecutionException e){
+         Throwable cause = e.getCause();
+         System.err.println(cause.getMessage());
+         Object[] errorRow = new Object[model.getColumnCount()];
+         errorRow[0] = "ERROR";
+         if (errorRow.length > 1) errorRow[1] = cause.getMessage();
+         model.setRowCount(0);
+         model.addRow(errorRow);
+         if (status != null) status.setText("Error: " + cause.getMessage());
+      }
+   }//end done
+
+}//end QueryWorker
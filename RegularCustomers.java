@@ -0,0 +1,262 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class keeps, for every hotel, how often each customer booked it, so
+ * the regular customers of a hotel are read from memory instead of grouping
+ * all of its RoomBookings. Counts are kept per calendar month, which lets a
+ * manager ask for the top K customers over the last few months as well as
+ * over all time.
+ *
+ * By default the counts are exact. With -Dhotel.regulars.capacity=N every
+ * month of every hotel keeps at most N customers using the space-saving
+ * algorithm: a new customer replaces the one with the smallest count and
+ * inherits that count, so memory is bounded and the heavy hitters are still
+ * found, at the price of over-counting the customers near the bottom.
+ *
+ * Hotels are read from the database on first use (or all at once by
+ * loadAll) and kept current through the BookingService listener. Bookings
+ * the listener reports while a load is running are kept aside and added to
+ * the loaded counts unless the load already saw them, i.e. unless their
+ * bookingID is not above the highest one it read. Bookings made by other
+ * processes are picked up by reading a hotel again once its counts are older
+ * than -Dhotel.regulars.maxAgeMillis.
+ *
+ */
+public class RegularCustomers {
+
+   /**
+    * A customer and the number of nights booked in the asked window.
+    */
+   public static class Regular {
+      public final int customerId;
+      public final String name;
+      public final long bookings;
+
+      Regular(int customerId, String name, long bookings){
+         this.customerId = customerId;
+         this.name = name;
+         this.bookings = bookings;
+      }
+   }//end Regular
+
+   /*
+    * Booking counts of the customers of one hotel in one month.
+    **/
+   private static class Counter {
+      final Map<Integer, Long> counts = new HashMap<>();
+
+      void add(int customerId, long n, int capacity){
+         Long old = counts.get(customerId);
+         if (old != null || capacity <= 0 || counts.size() < capacity){
+            counts.put(customerId, (old == null ? 0 : old) + n);
+            return;
+         }
+         // space-saving: the newcomer takes over the smallest counter
+         Map.Entry<Integer, Long> min = null;
+         for (Map.Entry<Integer, Long> e : counts.entrySet())
+            if (min == null || e.getValue() < min.getValue()) min = e;
+         counts.remove(min.getKey());
+         counts.put(customerId, min.getValue() + n);
+      }
+   }//end Counter
+
+   /*
+    * All months of one hotel, keyed by months since 0000-01.
+    **/
+   private static class HotelCounts {
+      final Map<Integer, Counter> months = new HashMap<>();
+      // when the load that read these counts started
+      final long loadedAt;
+      // the highest bookingID the load read
+      int maxBookingId = 0;
+
+      HotelCounts(long loadedAt){
+         this.loadedAt = loadedAt;
+      }
+
+      synchronized void add(int customerId, int month, long n, int capacity){
+         months.computeIfAbsent(month, m -> new Counter()).add(customerId, n, capacity);
+      }
+
+      synchronized Map<Integer, Long> sum(int fromMonth, int toMonth){
+         Map<Integer, Long> total = new HashMap<>();
+         for (Map.Entry<Integer, Counter> m : months.entrySet()){
+            if (m.getKey() < fromMonth || m.getKey() > toMonth) continue;
+            for (Map.Entry<Integer, Long> c : m.getValue().counts.entrySet())
+               total.merge(c.getKey(), c.getValue(), Long::sum);
+         }
+         return total;
+      }
+   }//end HotelCounts
+
+   /*
+    * A booking reported while a load was running.
+    **/
+   private static class Pending {
+      final int bookingId, hotelId, customerId, month;
+
+      Pending(int bookingId, int hotelId, int customerId, int month){
+         this.bookingId = bookingId;
+         this.hotelId = hotelId;
+         this.customerId = customerId;
+         this.month = month;
+      }
+   }//end Pending
+
+   static final String LOAD =
+      "SELECT RB.hotelID, RB.customerID, U.name, " +
+      "       CAST(EXTRACT(YEAR FROM RB.bookingDate) * 12 + EXTRACT(MONTH FROM RB.bookingDate) - 1 AS INTEGER), COUNT(*), " +
+      "       MAX(RB.bookingID) " +
+      "FROM RoomBookings RB JOIN Users U ON U.userID = RB.customerID ";
+
+   static final String GROUP = " GROUP BY 1, 2, 3, 4";
+
+   private final Map<Integer, HotelCounts> hotels = new ConcurrentHashMap<>();
+   private final Map<Integer, String> names = new ConcurrentHashMap<>();
+   private final int capacity = Integer.getInteger("hotel.regulars.capacity", 0);
+   private final long maxAgeMillis = Long.getLong("hotel.regulars.maxAgeMillis", 5 * 60 * 1000);
+   // loads running now; while there are any, bookings are also kept in pending
+   private final AtomicInteger loads = new AtomicInteger();
+   private final List<Pending> pending = new ArrayList<>();
+
+   /**
+    * Reads the counts of every hotel in one query.
+    *
+    * @throws java.sql.SQLException when failed to read the bookings
+    */
+   public void loadAll(Hotel esql) throws SQLException {
+      long started = System.currentTimeMillis();
+      loads.incrementAndGet();
+      try{
+         Map<Integer, HotelCounts> loaded = new HashMap<>();
+         read(esql.executeQueryAndReturnTable(LOAD + GROUP), loaded, started);
+         for (Map.Entry<Integer, HotelCounts> e : loaded.entrySet())
+            install(e.getKey(), e.getValue());
+      }finally{
+         loaded();
+      }
+   }//end loadAll
+
+   /**
+    * Records a booking that was just inserted. Hotels that are not loaded
+    * yet are left alone, unless they are being loaded right now.
+    */
+   public void booked(int bookingId, int hotelId, int customerId, LocalDate date){
+      HotelCounts counts;
+      synchronized (pending){
+         counts = hotels.get(hotelId);
+         if (loads.get() > 0) pending.add(new Pending(bookingId, hotelId, customerId, month(date)));
+      }
+      if (counts != null) counts.add(customerId, month(date), 1, capacity);
+   }//end booked
+
+   /**
+    * Lists the customers with the most bookings at the hotel.
+    *
+    * @param k the number of customers to list
+    * @param months how many calendar months back to count, the current one
+    *        included; 0 for all time
+    * @return at most k customers, most bookings first
+    * @throws java.sql.SQLException when the hotel or a name had to be read and that failed
+    */
+   public List<Regular> top(Hotel esql, int hotelId, int k, int months) throws SQLException {
+      HotelCounts counts = hotels.get(hotelId);
+      if (counts == null || System.currentTimeMillis() - counts.loadedAt > maxAgeMillis){
+         long started = System.currentTimeMillis();
+         loads.incrementAndGet();
+         try{
+            Map<Integer, HotelCounts> loaded = new HashMap<>();
+            read(esql.executeQueryAndReturnTable(LOAD + "WHERE RB.hotelID = ?" + GROUP, hotelId), loaded, started);
+            counts = install(hotelId, loaded.getOrDefault(hotelId, new HotelCounts(started)));
+         }finally{
+            loaded();
+         }
+      }
+      int now = month(LocalDate.now());
+      Map<Integer, Long> total = counts.sum(months <= 0 ? Integer.MIN_VALUE : now - months + 1, Integer.MAX_VALUE);
+
+      // min-heap of the k largest counts seen so far
+      PriorityQueue<Map.Entry<Integer, Long>> best = new PriorityQueue<>(
+         (a, b) -> a.getValue().equals(b.getValue()) ? Integer.compare(b.getKey(), a.getKey()) : Long.compare(a.getValue(), b.getValue()));
+      for (Map.Entry<Integer, Long> e : total.entrySet()){
+         best.offer(e);
+         if (best.size() > k) best.poll();
+      }
+      List<Regular> result = new ArrayList<>(best.size());
+      while (!best.isEmpty()){
+         Map.Entry<Integer, Long> e = best.poll();
+         result.add(new Regular(e.getKey(), name(esql, e.getKey()), e.getValue()));
+      }
+      Collections.reverse(result);
+      return result;
+   }//end top
+
+   public void invalidate(int hotelId){
+      hotels.remove(hotelId);
+   }
+
+   public void invalidateAll(){
+      hotels.clear();
+      names.clear();
+   }
+
+   private void read(ResultTable res, Map<Integer, HotelCounts> into, long started){
+      for (int i = 0; i < res.rows(); ++i){
+         int customerId = res.getInt(i, 1);
+         if (!res.isNull(i, 2)) names.putIfAbsent(customerId, res.getString(i, 2));
+         HotelCounts counts = into.computeIfAbsent(res.getInt(i, 0), h -> new HotelCounts(started));
+         counts.add(customerId, res.getInt(i, 3), res.getLong(i, 4), capacity);
+         counts.maxBookingId = Math.max(counts.maxBookingId, res.getInt(i, 5));
+      }
+   }
+
+   /*
+    * Makes freshly read counts current, unless a load that started later got
+    * there first, and adds the bookings reported during the load that it did
+    * not see. A booking whose key was drawn before the highest key read but
+    * that committed after the read is missed until the next re-read.
+    **/
+   private HotelCounts install(int hotelId, HotelCounts counts){
+      synchronized (pending){
+         HotelCounts current = hotels.get(hotelId);
+         if (current != null && current.loadedAt > counts.loadedAt) return current;
+         hotels.put(hotelId, counts);
+         for (Pending p : pending)
+            if (p.hotelId == hotelId && p.bookingId > counts.maxBookingId)
+               counts.add(p.customerId, p.month, 1, capacity);
+         return counts;
+      }
+   }
+
+   // ends a load; the kept bookings are no longer needed once no load runs
+   private void loaded(){
+      synchronized (pending){
+         if (loads.decrementAndGet() == 0) pending.clear();
+      }
+   }
+
+   // customers who booked for the first time since the load are not named yet
+   private String name(Hotel esql, int customerId) throws SQLException {
+      String name = names.get(customerId);
+      if (name == null){
+         ResultTable res = esql.executeQueryAndReturnTable("SELECT name FROM Users WHERE userID = ?", customerId);
+         name = res.rows() == 0 || res.isNull(0, 0) ? String.valueOf(customerId) : res.getString(0, 0);
+         names.put(customerId, name);
+      }
+      return name;
+   }
+
+   private static int month(LocalDate date){
+      return date.getYear() * 12 + date.getMonthValue() - 1;
+   }
+
+}//end RegularCustomers
@@ -0,0 +1,129 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class defines the repair request path. Filing a request books the
+ * repair in RoomRepairs and records the manager's request for it in
+ * RoomRepairRequests; both rows are written by one statement, so they are
+ * committed together in one round trip. The repairID and requestNumber come
+ * from database sequences and are handed back with RETURNING, so there is no
+ * re-read of the repair and no counter that restarts with the client.
+ *
+ */
+public class RepairRequests {
+
+   /**
+    * One room to repair.
+    */
+   public static class Item {
+      public final int hotelId, roomNumber, companyId;
+
+      public Item(int hotelId, int roomNumber, int companyId){
+         this.hotelId = hotelId;
+         this.roomNumber = roomNumber;
+         this.companyId = companyId;
+      }
+   }//end Item
+
+   /**
+    * A filed request and the repair it asks for.
+    */
+   public static class Placed {
+      public final int requestNumber, repairId;
+      public final Item item;
+
+      Placed(int requestNumber, int repairId, Item item){
+         this.requestNumber = requestNumber;
+         this.repairId = repairId;
+         this.item = item;
+      }
+   }//end Placed
+
+   static final String PLACE =
+      "WITH repair AS (" +
+      "   INSERT INTO RoomRepairs (repairID, companyID, hotelID, roomNumber, repairDate) " +
+      "   VALUES (nextval('roomrepairs_repairid_seq'), ?, ?, ?, CURRENT_DATE) " +
+      "   RETURNING repairID" +
+      "), request AS (" +
+      "   INSERT INTO RoomRepairRequests (requestNumber, managerID, repairID) " +
+      "   SELECT nextval('roomrepairrequests_requestnumber_seq'), ?, repairID FROM repair " +
+      "   RETURNING requestNumber, repairID" +
+      ") " +
+      "SELECT requestNumber, repairID FROM request";
+
+   // req.i numbers the input so every returned row can be matched to its item
+   static final String PLACE_BATCH =
+      "WITH req AS (" +
+      "   SELECT nextval('roomrepairs_repairid_seq') AS repairID, req.* " +
+      "   FROM unnest(?::int[], ?::int[], ?::int[]) WITH ORDINALITY AS req(h, r, c, i)" +
+      "), repair AS (" +
+      "   INSERT INTO RoomRepairs (repairID, companyID, hotelID, roomNumber, repairDate) " +
+      "   SELECT repairID, c, h, r, CURRENT_DATE FROM req " +
+      "   RETURNING repairID" +
+      "), request AS (" +
+      "   INSERT INTO RoomRepairRequests (requestNumber, managerID, repairID) " +
+      "   SELECT nextval('roomrepairrequests_requestnumber_seq'), ?, repairID FROM repair " +
+      "   RETURNING requestNumber, repairID" +
+      ") " +
+      "SELECT req.i, request.requestNumber, request.repairID FROM request JOIN req ON req.repairID = request.repairID";
+
+   private final Hotel esql;
+
+   public RepairRequests(Hotel esql){
+      this.esql = esql;
+   }//end RepairRequests
+
+   /**
+    * Files one repair request in a single statement.
+    *
+    * @param managerId the manager filing the request
+    * @return the new request and repair
+    * @throws java.sql.SQLException when the rows could not be written; then neither is
+    */
+   public Placed place(int managerId, Item item) throws SQLException {
+      ResultTable res = esql.executeQueryAndReturnTable(PLACE, item.companyId, item.hotelId, item.roomNumber, managerId);
+      return new Placed(res.getInt(0, 0), res.getInt(0, 1), item);
+   }//end place
+
+   /**
+    * Files a repair request for every item in a single statement; either all
+    * of them are filed or none.
+    *
+    * @param managerId the manager filing the requests
+    * @return one result per item, in the same order
+    * @throws java.sql.SQLException when the rows could not be written
+    */
+   public List<Placed> placeBatch(int managerId, List<Item> items) throws SQLException {
+      if (items.isEmpty()) return new ArrayList<>();
+      return esql.inTransaction(pc -> {
+         Integer[] hotels = new Integer[items.size()], rooms = new Integer[items.size()], companies = new Integer[items.size()];
+         for (int i = 0; i < items.size(); ++i){
+            hotels[i] = items.get(i).hotelId;
+            rooms[i] = items.get(i).roomNumber;
+            companies[i] = items.get(i).companyId;
+         }
+         Connection conn = pc.connection();
+         PreparedStatement stmt = pc.statements().prepare(PLACE_BATCH);
+         stmt.setArray(1, conn.createArrayOf("integer", hotels));
+         stmt.setArray(2, conn.createArrayOf("integer", rooms));
+         stmt.setArray(3, conn.createArrayOf("integer", companies));
+         stmt.setInt(4, managerId);
+         Placed[] placed = new Placed[items.size()];
+         try (ResultSet rs = stmt.executeQuery()){
+            while (rs.next()){
+               int i = (int) rs.getLong(1) - 1;
+               placed[i] = new Placed(rs.getInt(2), rs.getInt(3), items.get(i));
+            }
+         }
+         List<Placed> result = new ArrayList<>(placed.length);
+         for (Placed p : placed)
+            result.add(p);
+         return result;
+      });
+   }//end placeBatch
+
+}//end RepairRequests
@@ -0,0 +1,239 @@
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * This class holds a query result column by column, with each column kept in
+ * an array of its own type: int, long and double columns as primitive
+ * arrays, NUMERIC/DECIMAL columns as BigDecimal, so prices keep their scale,
+ * date columns as LocalDate and everything else as String. Values are
+ * read with getInt/getDouble/getDate instead of parsing the strings that
+ * executeQueryAndReturnResult returns, and a result costs one array per
+ * column rather than one list and a string per cell.
+ *
+ */
+public class ResultTable {
+
+   private static final int INT = 0, LONG = 1, DOUBLE = 2, DATE = 3, STRING = 4, DECIMAL = 5;
+
+   private final String[] names;
+   private final int[] kinds;
+   private final Object[] columns;
+   private final BitSet[] nulls;
+   private int rows = 0;
+
+   private ResultTable(ResultSetMetaData rsmd) throws SQLException {
+      int numCol = rsmd.getColumnCount();
+      names = new String[numCol];
+      kinds = new int[numCol];
+      columns = new Object[numCol];
+      nulls = new BitSet[numCol];
+      for (int c = 0; c < numCol; ++c){
+         names[c] = rsmd.getColumnName(c + 1);
+         kinds[c] = kindOf(rsmd.getColumnType(c + 1));
+         nulls[c] = new BitSet();
+         columns[c] = allocate(kinds[c], 16);
+      }
+   }
+
+   /**
+    * Reads the remaining rows of the result set.
+    *
+    * @param rs the result set, left open
+    * @return the rows read
+    * @throws java.sql.SQLException when failed to read the result
+    */
+   public static ResultTable read(ResultSet rs) throws SQLException {
+      ResultTable table = new ResultTable(rs.getMetaData());
+      while (rs.next())
+         table.add(rs);
+      return table;
+   }//end read
+
+   public int rows(){
+      return rows;
+   }
+
+   /**
+    * @return about how many bytes the values take, for the metrics
+    */
+   public long bytes(){
+      long bytes = 0;
+      for (int c = 0; c < columns.length; ++c){
+         switch (kinds[c]){
+            case INT: bytes += 4L * rows; break;
+            case LONG: case DOUBLE: bytes += 8L * rows; break;
+            case DATE: bytes += 24L * rows; break;
+            case DECIMAL: bytes += 32L * rows; break;
+            default:
+               for (String value : (String[]) columns[c])
+                  if (value != null) bytes += 2L * value.length();
+         }
+      }
+      return bytes;
+   }//end bytes
+
+   public int columns(){
+      return names.length;
+   }
+
+   public String columnName(int column){
+      return names[column];
+   }
+
+   public boolean isNull(int row, int column){
+      return nulls[column].get(check(row));
+   }
+
+   /**
+    * @return the value of an integer column, 0 for NULL
+    */
+   public int getInt(int row, int column){
+      check(row);
+      switch (kinds[column]){
+         case INT: return ((int[]) columns[column])[row];
+         case LONG: return (int) ((long[]) columns[column])[row];
+         case DOUBLE: return (int) ((double[]) columns[column])[row];
+         case DECIMAL: return isNull(row, column) ? 0 : ((BigDecimal[]) columns[column])[row].intValue();
+         default: throw mismatch(column, "int");
+      }
+   }//end getInt
+
+   /**
+    * @return the value of an integer column, 0 for NULL
+    */
+   public long getLong(int row, int column){
+      check(row);
+      switch (kinds[column]){
+         case INT: return ((int[]) columns[column])[row];
+         case LONG: return ((long[]) columns[column])[row];
+         case DOUBLE: return (long) ((double[]) columns[column])[row];
+         case DECIMAL: return isNull(row, column) ? 0 : ((BigDecimal[]) columns[column])[row].longValue();
+         default: throw mismatch(column, "long");
+      }
+   }//end getLong
+
+   /**
+    * @return the value of a numeric column, 0 for NULL
+    */
+   public double getDouble(int row, int column){
+      check(row);
+      switch (kinds[column]){
+         case INT: return ((int[]) columns[column])[row];
+         case LONG: return ((long[]) columns[column])[row];
+         case DOUBLE: return ((double[]) columns[column])[row];
+         case DECIMAL: return isNull(row, column) ? 0 : ((BigDecimal[]) columns[column])[row].doubleValue();
+         default: throw mismatch(column, "double");
+      }
+   }//end getDouble
+
+   /**
+    * @return the exact value of a numeric column, null for NULL
+    */
+   public BigDecimal getBigDecimal(int row, int column){
+      if (isNull(row, column)) return null;
+      switch (kinds[column]){
+         case INT: return BigDecimal.valueOf(((int[]) columns[column])[row]);
+         case LONG: return BigDecimal.valueOf(((long[]) columns[column])[row]);
+         case DOUBLE: return BigDecimal.valueOf(((double[]) columns[column])[row]);
+         case DECIMAL: return ((BigDecimal[]) columns[column])[row];
+         default: throw mismatch(column, "decimal");
+      }
+   }//end getBigDecimal
+
+   /**
+    * @return the value of a date column, null for NULL. A timestamp column
+    *         is kept as text and gives the date part.
+    */
+   public LocalDate getDate(int row, int column){
+      check(row);
+      if (kinds[column] == DATE) return ((LocalDate[]) columns[column])[row];
+      if (kinds[column] != STRING) throw mismatch(column, "date");
+      String value = ((String[]) columns[column])[row];
+      return value == null ? null : LocalDate.parse(value.substring(0, 10));
+   }//end getDate
+
+   /**
+    * @return the value of any column as text, null for NULL
+    */
+   public String getString(int row, int column){
+      if (isNull(row, column)) return null;
+      switch (kinds[column]){
+         case INT: return Integer.toString(((int[]) columns[column])[row]);
+         case LONG: return Long.toString(((long[]) columns[column])[row]);
+         case DOUBLE: return Double.toString(((double[]) columns[column])[row]);
+         case DATE: return ((LocalDate[]) columns[column])[row].toString();
+         case DECIMAL: return ((BigDecimal[]) columns[column])[row].toPlainString();
+         default: return ((String[]) columns[column])[row];
+      }
+   }//end getString
+
+   private void add(ResultSet rs) throws SQLException {
+      if (rows == capacity()) grow();
+      for (int c = 0; c < columns.length; ++c){
+         switch (kinds[c]){
+            case INT: ((int[]) columns[c])[rows] = rs.getInt(c + 1); break;
+            case LONG: ((long[]) columns[c])[rows] = rs.getLong(c + 1); break;
+            case DOUBLE: ((double[]) columns[c])[rows] = rs.getDouble(c + 1); break;
+            case DATE: ((LocalDate[]) columns[c])[rows] = rs.getObject(c + 1, LocalDate.class); break;
+            case DECIMAL: ((BigDecimal[]) columns[c])[rows] = rs.getBigDecimal(c + 1); break;
+            default: ((String[]) columns[c])[rows] = rs.getString(c + 1);
+         }
+         if (rs.wasNull()) nulls[c].set(rows);
+      }
+      ++rows;
+   }
+
+   private int capacity(){
+      return columns.length == 0 ? Integer.MAX_VALUE : java.lang.reflect.Array.getLength(columns[0]);
+   }
+
+   private void grow(){
+      int size = capacity() * 2;
+      for (int c = 0; c < columns.length; ++c){
+         switch (kinds[c]){
+            case INT: columns[c] = Arrays.copyOf((int[]) columns[c], size); break;
+            case LONG: columns[c] = Arrays.copyOf((long[]) columns[c], size); break;
+            case DOUBLE: columns[c] = Arrays.copyOf((double[]) columns[c], size); break;
+            default: columns[c] = Arrays.copyOf((Object[]) columns[c], size);
+         }
+      }
+   }
+
+   private int check(int row){
+      if (row < 0 || row >= rows) throw new IndexOutOfBoundsException("row " + row + " of " + rows);
+      return row;
+   }
+
+   private IllegalStateException mismatch(int column, String type){
+      return new IllegalStateException("column " + names[column] + " is not " + type);
+   }
+
+   private static Object allocate(int kind, int size){
+      switch (kind){
+         case INT: return new int[size];
+         case LONG: return new long[size];
+         case DOUBLE: return new double[size];
+         case DATE: return new LocalDate[size];
+         case DECIMAL: return new BigDecimal[size];
+         default: return new String[size];
+      }
+   }
+
+   private static int kindOf(int sqlType){
+      switch (sqlType){
+         case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT: return INT;
+         case Types.BIGINT: return LONG;
+         case Types.NUMERIC: case Types.DECIMAL: return DECIMAL;
+         case Types.DOUBLE: case Types.FLOAT: case Types.REAL: return DOUBLE;
+         case Types.DATE: return DATE;
+         default: return STRING;
+      }
+   }
+
+}//end ResultTable
@@ -0,0 +1,232 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class defines the room availability engine. For every hotel it keeps
+ * one bitmap of occupied nights per room, where bit i stands for the i-th day
+ * after the hotel's first booking. Whether a room is free for a date or a date
+ * range is then a single nextSetBit call, and listing a hotel's rooms is one
+ * pass over its rooms instead of a join of rooms and bookings. The rooms
+ * themselves come from the RoomCatalogue.
+ *
+ * Calendars are loaded from RoomBookings the first time a hotel is asked for,
+ * kept current by markBooked, and re-read after -Dhotel.availability.maxAgeMillis
+ * to pick up bookings made by other processes. Marks that arrive while a
+ * hotel is being read are kept and applied again to the calendar read, since
+ * the read may have started before their bookings were committed.
+ *
+ */
+public class RoomAvailability {
+
+   /**
+    * One room of a hotel together with its availability for the asked dates.
+    */
+   public static class RoomStatus {
+      public final int roomNumber;
+      public final BigDecimal price;
+      public final boolean available;
+
+      RoomStatus(int roomNumber, BigDecimal price, boolean available){
+         this.roomNumber = roomNumber;
+         this.price = price;
+         this.available = available;
+      }
+   }//end RoomStatus
+
+   /*
+    * Occupied nights of every room of one hotel.
+    **/
+   private static class HotelCalendar {
+      final long loadedAt = System.currentTimeMillis();
+      long originDay = Long.MAX_VALUE;
+      final Map<Integer, BitSet> rooms = new HashMap<>();
+
+      synchronized void set(int roomNumber, LocalDate date, boolean occupied){
+         long day = date.toEpochDay();
+         if (day < originDay){
+            if (!occupied) return;
+            rebase(day);
+         }
+         BitSet nights = rooms.computeIfAbsent(roomNumber, r -> new BitSet());
+         nights.set((int) (day - originDay), occupied);
+      }
+
+      synchronized boolean isFree(int roomNumber, long fromDay, long toDay){
+         BitSet nights = rooms.get(roomNumber);
+         if (nights == null || toDay < originDay) return true;
+         int from = (int) Math.max(0, fromDay - originDay);
+         int next = nights.nextSetBit(from);
+         return next < 0 || next > toDay - originDay;
+      }
+
+      // shifts every bitmap so that day becomes bit 0
+      private void rebase(long day){
+         if (originDay != Long.MAX_VALUE){
+            int shift = (int) (originDay - day);
+            for (Map.Entry<Integer, BitSet> e : rooms.entrySet()){
+               BitSet old = e.getValue(), moved = new BitSet(old.length() + shift);
+               for (int i = old.nextSetBit(0); i >= 0; i = old.nextSetBit(i + 1))
+                  moved.set(i + shift);
+               e.setValue(moved);
+            }
+         }
+         originDay = day;
+      }
+   }//end HotelCalendar
+
+   /*
+    * A markBooked or markFree seen while the hotel was being read.
+    **/
+   private static class Mark {
+      final int roomNumber;
+      final LocalDate date;
+      final boolean occupied;
+
+      Mark(int roomNumber, LocalDate date, boolean occupied){
+         this.roomNumber = roomNumber;
+         this.date = date;
+         this.occupied = occupied;
+      }
+   }//end Mark
+
+   /*
+    * The marks of one hotel while one or more reads of it are running.
+    **/
+   private static class Loading {
+      final List<Mark> marks = new ArrayList<>();
+      int readers = 0;
+   }//end Loading
+
+   static final String LOAD = "SELECT roomNumber, bookingDate FROM RoomBookings WHERE hotelID = ?";
+
+   private final Map<Integer, HotelCalendar> hotels = new ConcurrentHashMap<>();
+   // hotels being read; guarded by itself
+   private final Map<Integer, Loading> loading = new HashMap<>();
+   private final long maxAgeMillis;
+
+   public RoomAvailability(long maxAgeMillis){
+      this.maxAgeMillis = maxAgeMillis;
+   }//end RoomAvailability
+
+   /**
+    * Lists every room of the hotel with its price and whether it is free on
+    * every night from start to end, both inclusive.
+    *
+    * @param esql the database to load from
+    * @param hotelId the hotel to list
+    * @param start first night
+    * @param end last night, equal to start for a single night
+    * @return the rooms of the hotel ordered by room number
+    * @throws java.sql.SQLException when failed to load the hotel
+    */
+   public List<RoomStatus> rooms(Hotel esql, int hotelId, LocalDate start, LocalDate end) throws SQLException {
+      HotelCalendar calendar = calendar(esql, hotelId);
+      List<RoomCatalogue.Room> rooms = esql.catalogue().rooms(hotelId);
+      List<RoomStatus> result = new ArrayList<>(rooms.size());
+      long from = start.toEpochDay(), to = end.toEpochDay();
+      for (RoomCatalogue.Room room : rooms)
+         result.add(new RoomStatus(room.roomNumber, room.price, calendar.isFree(room.roomNumber, from, to)));
+      return result;
+   }//end rooms
+
+   /**
+    * @return true if the room has no booking on the date
+    * @throws java.sql.SQLException when failed to load the hotel
+    */
+   public boolean isFree(Hotel esql, int hotelId, int roomNumber, LocalDate date) throws SQLException {
+      long day = date.toEpochDay();
+      return calendar(esql, hotelId).isFree(roomNumber, day, day);
+   }//end isFree
+
+   /**
+    * Records a booking that was just inserted into RoomBookings. Hotels that
+    * are not loaded yet are left alone; they will read the booking on load.
+    */
+   public void markBooked(int hotelId, int roomNumber, LocalDate date){
+      mark(hotelId, new Mark(roomNumber, date, true));
+   }//end markBooked
+
+   /**
+    * Records that a booking was removed from RoomBookings.
+    */
+   public void markFree(int hotelId, int roomNumber, LocalDate date){
+      mark(hotelId, new Mark(roomNumber, date, false));
+   }//end markFree
+
+   private void mark(int hotelId, Mark mark){
+      synchronized (loading){
+         Loading l = loading.get(hotelId);
+         if (l != null) l.marks.add(mark);
+      }
+      // read after the check, so a calendar installed meanwhile gets the mark here
+      HotelCalendar calendar = hotels.get(hotelId);
+      if (calendar != null) calendar.set(mark.roomNumber, mark.date, mark.occupied);
+   }
+
+   /**
+    * Drops the calendar of one hotel so it is re-read on next use.
+    */
+   public void invalidate(int hotelId){
+      hotels.remove(hotelId);
+   }
+
+   public void invalidateAll(){
+      hotels.clear();
+   }
+
+   /*
+    * Records a booking even when the hotel is not loaded, creating an empty
+    * calendar for it; lets the benchmarks build calendars without a database.
+    **/
+   void seed(int hotelId, int roomNumber, LocalDate date){
+      hotels.computeIfAbsent(hotelId, h -> new HotelCalendar()).set(roomNumber, date, true);
+   }
+
+   // an empty calendar, for a hotel without bookings
+   void seed(int hotelId){
+      hotels.computeIfAbsent(hotelId, h -> new HotelCalendar());
+   }
+
+   private HotelCalendar calendar(Hotel esql, int hotelId) throws SQLException {
+      HotelCalendar calendar = hotels.get(hotelId);
+      if (calendar != null && System.currentTimeMillis() - calendar.loadedAt <= maxAgeMillis)
+         return calendar;
+      Loading l;
+      synchronized (loading){
+         l = loading.computeIfAbsent(hotelId, h -> new Loading());
+         ++l.readers;
+      }
+      try{
+         calendar = load(esql, hotelId);
+         synchronized (loading){
+            hotels.put(hotelId, calendar);
+            // setting a night again is harmless, so every mark since the first read began is applied
+            for (Mark m : l.marks)
+               calendar.set(m.roomNumber, m.date, m.occupied);
+         }
+         return calendar;
+      }finally{
+         synchronized (loading){
+            if (--l.readers == 0) loading.remove(hotelId);
+         }
+      }
+   }
+
+   private static HotelCalendar load(Hotel esql, int hotelId) throws SQLException {
+      ResultTable res = esql.executeQueryAndReturnTable(LOAD, hotelId);
+      HotelCalendar calendar = new HotelCalendar();
+      for (int i = 0; i < res.rows(); ++i)
+         calendar.originDay = Math.min(calendar.originDay, res.getDate(i, 1).toEpochDay());
+      for (int i = 0; i < res.rows(); ++i)
+         calendar.set(res.getInt(i, 0), res.getDate(i, 1), true);
+      return calendar;
+   }
+
+}//end RoomAvailability
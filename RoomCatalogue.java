@@ -0,0 +1,242 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class caches the room catalogue, the price and image URL of every
+ * room, keyed by (hotelID, roomNumber). Both change only through
+ * updateRoomInfo, which evicts exactly the room it changed, so browsing a
+ * hotel reads Rooms once and then answers from memory.
+ *
+ * The cache is split into 16 segments, each a least-recently-used map behind
+ * its own lock, so threads working on different rooms rarely wait for each
+ * other. It holds at most -Dhotel.catalogue.capacity rooms; entries older
+ * than -Dhotel.catalogue.ttlMillis are re-read, which picks up changes made
+ * by other processes.
+ *
+ */
+public class RoomCatalogue {
+
+   /**
+    * The static data of one room.
+    */
+   public static class Room {
+      public final int hotelId, roomNumber;
+      public final BigDecimal price;
+      public final String imageUrl;
+      final long loadedAt = System.currentTimeMillis();
+
+      Room(int hotelId, int roomNumber, BigDecimal price, String imageUrl){
+         this.hotelId = hotelId;
+         this.roomNumber = roomNumber;
+         this.price = price;
+         this.imageUrl = imageUrl;
+      }
+   }//end Room
+
+   /*
+    * The room numbers of one hotel, so a hotel can be listed from the cache.
+    **/
+   private static class Roster {
+      final int[] rooms;
+      final long loadedAt = System.currentTimeMillis();
+
+      Roster(int[] rooms){
+         this.rooms = rooms;
+      }
+   }//end Roster
+
+   static final String HOTEL_ROOMS =
+      "SELECT roomNumber, price, imageURL FROM Rooms WHERE hotelID = ? ORDER BY roomNumber";
+
+   static final String ROOM =
+      "SELECT price, imageURL FROM Rooms WHERE hotelID = ? AND roomNumber = ?";
+
+   private static final int SEGMENTS = 16;
+
+   private final Hotel esql;
+   private final long ttlMillis = Long.getLong("hotel.catalogue.ttlMillis", 5 * 60 * 1000);
+   private final int segmentCapacity = Math.max(1, Integer.getInteger("hotel.catalogue.capacity", 100000) / SEGMENTS);
+   private final List<LinkedHashMap<Long, Room>> segments = new ArrayList<>(SEGMENTS);
+   private final Map<Integer, Roster> rosters = new ConcurrentHashMap<>();
+   // bumped by every eviction on write, so a load that raced with it is not cached
+   private final AtomicLong writes = new AtomicLong();
+
+   private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong(),
+                            expirations = new AtomicLong(), invalidations = new AtomicLong();
+
+   public RoomCatalogue(Hotel esql){
+      this.esql = esql;
+      for (int i = 0; i < SEGMENTS; ++i){
+         segments.add(new LinkedHashMap<Long, Room>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Room> eldest){
+               if (size() <= segmentCapacity) return false;
+               evictions.incrementAndGet();
+               return true;
+            }
+         });
+      }
+   }//end RoomCatalogue
+
+   /**
+    * @return the room, or null when the hotel has no such room
+    * @throws java.sql.SQLException when the room had to be read and that failed
+    */
+   public Room room(int hotelId, int roomNumber) throws SQLException {
+      Room room = cached(hotelId, roomNumber);
+      if (room != null){
+         hits.incrementAndGet();
+         return room;
+      }
+      misses.incrementAndGet();
+      long version = writes.get();
+      ResultTable res = esql.executeQueryAndReturnTable(ROOM, hotelId, roomNumber);
+      if (res.rows() == 0) return null;
+      room = new Room(hotelId, roomNumber, res.getBigDecimal(0, 0), res.getString(0, 1));
+      if (writes.get() == version) put(room);
+      return room;
+   }//end room
+
+   /**
+    * Lists every room of the hotel, reading the hotel again only when one of
+    * its rooms is missing or expired.
+    *
+    * @return the rooms ordered by room number
+    * @throws java.sql.SQLException when the hotel had to be read and that failed
+    */
+   public List<Room> rooms(int hotelId) throws SQLException {
+      Roster roster = rosters.get(hotelId);
+      if (roster != null && System.currentTimeMillis() - roster.loadedAt <= ttlMillis){
+         List<Room> result = new ArrayList<>(roster.rooms.length);
+         for (int roomNumber : roster.rooms){
+            Room room = cached(hotelId, roomNumber);
+            if (room == null) break;
+            result.add(room);
+         }
+         if (result.size() == roster.rooms.length){
+            hits.addAndGet(result.size());
+            return result;
+         }
+      }
+      misses.incrementAndGet();
+      long version = writes.get();
+      ResultTable res = esql.executeQueryAndReturnTable(HOTEL_ROOMS, hotelId);
+      List<Room> result = new ArrayList<>(res.rows());
+      int[] numbers = new int[res.rows()];
+      for (int i = 0; i < res.rows(); ++i){
+         numbers[i] = res.getInt(i, 0);
+         result.add(new Room(hotelId, numbers[i], res.getBigDecimal(i, 1), res.isNull(i, 2) ? null : res.getString(i, 2)));
+      }
+      if (writes.get() == version){
+         for (Room room : result)
+            put(room);
+         rosters.put(hotelId, new Roster(numbers));
+      }
+      return result;
+   }//end rooms
+
+   /**
+    * Forgets one room after it was changed; it is re-read on its next use.
+    */
+   public void evict(int hotelId, int roomNumber){
+      writes.incrementAndGet();
+      LinkedHashMap<Long, Room> segment = segment(key(hotelId, roomNumber));
+      synchronized (segment){
+         if (segment.remove(key(hotelId, roomNumber)) != null) invalidations.incrementAndGet();
+      }
+   }//end evict
+
+   /**
+    * Forgets every room of a hotel, e.g. after rooms were added or removed.
+    */
+   public void evictHotel(int hotelId){
+      writes.incrementAndGet();
+      Roster roster = rosters.remove(hotelId);
+      if (roster != null)
+         for (int roomNumber : roster.rooms)
+            evict(hotelId, roomNumber);
+   }//end evictHotel
+
+   /**
+    * Forgets every room, e.g. after rooms were loaded in bulk.
+    */
+   public void clear(){
+      writes.incrementAndGet();
+      rosters.clear();
+      for (LinkedHashMap<Long, Room> segment : segments)
+         synchronized (segment){
+            invalidations.addAndGet(segment.size());
+            segment.clear();
+         }
+   }//end clear
+
+   // null when missing or expired
+   private Room cached(int hotelId, int roomNumber){
+      long key = key(hotelId, roomNumber);
+      LinkedHashMap<Long, Room> segment = segment(key);
+      synchronized (segment){
+         Room room = segment.get(key);
+         if (room == null) return null;
+         if (System.currentTimeMillis() - room.loadedAt > ttlMillis){
+            segment.remove(key);
+            expirations.incrementAndGet();
+            return null;
+         }
+         return room;
+      }
+   }
+
+   private void put(Room room){
+      long key = key(room.hotelId, room.roomNumber);
+      LinkedHashMap<Long, Room> segment = segment(key);
+      synchronized (segment){
+         segment.put(key, room);
+      }
+   }
+
+   private LinkedHashMap<Long, Room> segment(long key){
+      return segments.get((int) ((key ^ (key >>> 29)) & (SEGMENTS - 1)));
+   }
+
+   private static long key(int hotelId, int roomNumber){
+      return ((long) hotelId << 32) | (roomNumber & 0xffffffffL);
+   }
+
+   /**
+    * @return a snapshot of the cache counters since start
+    */
+   public Stats stats(){
+      Stats s = new Stats();
+      for (LinkedHashMap<Long, Room> segment : segments)
+         synchronized (segment){
+            s.size += segment.size();
+         }
+      s.hits = hits.get();
+      s.misses = misses.get();
+      s.evictions = evictions.get();
+      s.expirations = expirations.get();
+      s.invalidations = invalidations.get();
+      return s;
+   }//end stats
+
+   public static class Stats {
+      public int size;
+      public long hits, misses, evictions, expirations, invalidations;
+
+      public double hitRatio(){
+         return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+      }
+
+      public String toString(){
+         return String.format("catalogue size=%d hits=%d misses=%d hitRatio=%.2f evictions=%d expirations=%d " +
+            "invalidations=%d", size, hits, misses, hitRatio(), evictions, expirations, invalidations);
+      }
+   }//end Stats
+
+}//end RoomCatalogue
@@ -0,0 +1,97 @@
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * This class holds what the menus need to know about the logged in user:
+ * the user ID, the role and the hotels the user manages. It is built by one
+ * query at login and does not change afterwards; logging out drops it.
+ *
+ */
+public final class Session {
+
+   public enum Role { CUSTOMER, MANAGER, ADMIN }
+
+   /*
+    * Checks the password and reads the role and the managed hotels in one
+    * round trip.
+    **/
+   static final String LOGIN =
+      "SELECT U.userID, U.name, U.userType, string_agg(H.hotelID::text, ',' ORDER BY H.hotelID) " +
+      "FROM Users U LEFT JOIN Hotel H ON H.managerUserID = U.userID " +
+      "WHERE U.userID = ? AND U.password = ? " +
+      "GROUP BY U.userID, U.name, U.userType";
+
+   private final int userId;
+   private final String name;
+   private final Role role;
+   private final Set<Integer> managedHotels;
+
+   Session(int userId, String name, Role role, Set<Integer> managedHotels){
+      this.userId = userId;
+      this.name = name;
+      this.role = role;
+      this.managedHotels = Collections.unmodifiableSet(managedHotels);
+   }//end Session
+
+   /**
+    * Method to log a user in.
+    *
+    * @param esql the database to check against
+    * @param userId the user ID typed in
+    * @param password the password typed in
+    * @return the session of the user, or null when the ID or password is wrong
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static Session login(Hotel esql, int userId, String password) throws SQLException {
+      ResultTable res = esql.executeQueryAndReturnTable(LOGIN, userId, password);
+      if (res.rows() == 0) return null;
+      Set<Integer> hotels = new LinkedHashSet<>();
+      String list = res.getString(0, 3);
+      if (list != null)
+         for (String id : list.split(","))
+            hotels.add(Integer.parseInt(id));
+      return new Session(res.getInt(0, 0), res.getString(0, 1), roleOf(res.getString(0, 2)), hotels);
+   }//end login
+
+   public int userId(){
+      return userId;
+   }
+
+   public String name(){
+      return name;
+   }
+
+   public Role role(){
+      return role;
+   }
+
+   /**
+    * @return true if the user may use the manager menu
+    */
+   public boolean isManager(){
+      return role != Role.CUSTOMER;
+   }
+
+   /**
+    * @return the hotels the user managed at login, empty for customers
+    */
+   public Set<Integer> managedHotels(){
+      return managedHotels;
+   }
+
+   @Override
+   public String toString(){
+      return role + " " + userId;
+   }
+
+   // userType is a padded char column, e.g. "manager " or "customer"
+   private static Role roleOf(String userType){
+      if (userType == null) return Role.CUSTOMER;
+      if (userType.contains("admin")) return Role.ADMIN;
+      if (userType.contains("manager")) return Role.MANAGER;
+      return Role.CUSTOMER;
+   }
+
+}//end Session
@@ -0,0 +1,173 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class logs statements that ran longer than -Dhotel.slowQuery.millis
+ * (default 500, negative turns the log off): the SQL text, the bind values,
+ * the duration and the row count. For a sample of them, at most one in
+ * -Dhotel.slowQuery.sample and at most once per statement every
+ * -Dhotel.slowQuery.explainMillis, the plan is captured as well. Queries are
+ * run again under EXPLAIN (ANALYZE, BUFFERS) in a transaction that is always
+ * rolled back, since a SELECT may call functions that write. Updates, and
+ * queries calling the sequence functions, which a rollback does not undo, are
+ * only run under EXPLAIN.
+ *
+ * Entries go to -Dhotel.slowQuery.file (default slow-queries.log), which is
+ * rotated once it grows past -Dhotel.slowQuery.maxBytes, keeping
+ * -Dhotel.slowQuery.files old files. Writing and explaining happen on one
+ * background thread; when it falls behind, entries are dropped rather than
+ * slowing down the statement that was slow.
+ *
+ */
+public class SlowQueryLog {
+
+   static final long THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("hotel.slowQuery.millis", 500));
+   static final int SAMPLE = Integer.getInteger("hotel.slowQuery.sample", 10);
+   static final long EXPLAIN_INTERVAL = Long.getLong("hotel.slowQuery.explainMillis", 60 * 1000);
+   static final long MAX_BYTES = Long.getLong("hotel.slowQuery.maxBytes", 10L * 1024 * 1024);
+   static final int FILES = Integer.getInteger("hotel.slowQuery.files", 3);
+
+   private final Hotel esql;
+   private final File file = new File(System.getProperty("hotel.slowQuery.file", "slow-queries.log"));
+   // statement text to when it was last explained
+   private final Map<String, Long> explainedAt = new ConcurrentHashMap<>();
+   private final ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(100), r -> {
+         Thread t = new Thread(r, "hotel-slow-query-log");
+         t.setDaemon(true);
+         return t;
+      }, new ThreadPoolExecutor.DiscardPolicy());
+
+   public SlowQueryLog(Hotel esql){
+      this.esql = esql;
+   }//end SlowQueryLog
+
+   /**
+    * Logs the statement if it was slow. Cheap when it was not.
+    *
+    * @param sql the statement text
+    * @param params the bind values
+    * @param nanos how long it ran
+    * @param rows rows fetched or changed
+    * @param failed true if it threw
+    */
+   public void check(String sql, Object[] params, long nanos, long rows, boolean failed){
+      if (THRESHOLD_NANOS < 0 || nanos < THRESHOLD_NANOS) return;
+      // the plans we run ourselves are not logged again
+      if (sql.startsWith("EXPLAIN")) return;
+      boolean explain = shouldExplain(sql);
+      String binds = binds(sql, params);
+      LocalDateTime at = LocalDateTime.now();
+      writer.execute(() -> {
+         StringBuilder entry = new StringBuilder();
+         entry.append(at).append(String.format(" %.1fms rows=%d%s%n", nanos / 1e6, rows, failed ? " FAILED" : ""));
+         entry.append("  sql: ").append(sql.trim().replaceAll("\\s+", " ")).append(System.lineSeparator());
+         entry.append("  binds: ").append(binds).append(System.lineSeparator());
+         if (explain) entry.append(plan(sql, params));
+         write(entry.toString());
+      });
+   }//end check
+
+   public void close(){
+      writer.shutdown();
+      try{
+         writer.awaitTermination(5, TimeUnit.SECONDS);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private boolean shouldExplain(String sql){
+      if (SAMPLE <= 0 || ThreadLocalRandom.current().nextInt(SAMPLE) != 0) return false;
+      long now = System.currentTimeMillis();
+      Long last = explainedAt.get(sql);
+      if (last != null && now - last < EXPLAIN_INTERVAL) return false;
+      explainedAt.put(sql, now);
+      return true;
+   }
+
+   private String plan(String sql, Object[] params){
+      String head = sql.trim();
+      String lower = head.toLowerCase();
+      boolean analyze = lower.startsWith("select") && !lower.contains("nextval(") && !lower.contains("setval(");
+      StringBuilder plan = new StringBuilder("  plan:").append(System.lineSeparator());
+      try{
+         ConnectionPool.PooledConnection pc = esql.getPool().borrow();
+         try{
+            pc.connection().setAutoCommit(false);
+            try (PreparedStatement stmt = pc.connection().prepareStatement((analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + sql)){
+               for (int i = 0; i < params.length; ++i)
+                  stmt.setObject(i + 1, params[i]);
+               try (ResultSet rs = stmt.executeQuery()){
+                  while (rs.next())
+                     plan.append("    ").append(rs.getString(1)).append(System.lineSeparator());
+               }
+            }
+         }finally{
+            // whatever the analyzed statement wrote is undone
+            try{
+               pc.connection().rollback();
+            }catch (SQLException ignored){
+               // the connection is probably gone; the pool will drop it
+            }
+            esql.getPool().release(pc);
+         }
+      }catch (Exception e){
+         plan.append("    (not available: ").append(e.getMessage()).append(")").append(System.lineSeparator());
+      }
+      return plan.toString();
+   }
+
+   // passwords are never written out
+   private static String binds(String sql, Object[] params){
+      boolean secret = sql.toLowerCase().contains("password");
+      StringBuilder out = new StringBuilder("[");
+      for (int i = 0; i < params.length; ++i){
+         if (i > 0) out.append(", ");
+         Object p = params[i];
+         if (secret) out.append("?");
+         else if (p == null) out.append("NULL");
+         else if (p instanceof Number || p instanceof Boolean) out.append(p);
+         else{
+            String value = p.toString();
+            if (value.length() > 100) value = value.substring(0, 97) + "...";
+            out.append('\'').append(value).append('\'');
+         }
+      }
+      return out.append(']').toString();
+   }
+
+   // runs on the writer thread only
+   private void write(String entry){
+      try{
+         if (file.length() + entry.length() > MAX_BYTES) rotate();
+         try (Writer out = new FileWriter(file, true)){
+            out.write(entry);
+         }
+      }catch (IOException e){
+         System.err.println("Slow query log not written: " + e.getMessage());
+      }
+   }
+
+   // slow-queries.log becomes slow-queries.log.1, .1 becomes .2, and so on
+   private void rotate(){
+      new File(file.getPath() + "." + FILES).delete();
+      for (int i = FILES - 1; i >= 1; --i)
+         new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+      if (FILES > 0) file.renameTo(new File(file.getPath() + ".1"));
+      else file.delete();
+   }
+
+}//end SlowQueryLog
@@ -0,0 +1,94 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class defines a least-recently-used cache of PreparedStatements that
+ * belongs to a single physical connection. Re-using the same statement object
+ * lets the Postgres driver switch to a named server-side statement after a few
+ * executions, so the query is parsed and planned once instead of per click.
+ *
+ * A pooled connection is only ever used by one thread at a time, so the cache
+ * itself is not synchronized.
+ *
+ */
+public class StatementCache {
+
+   private final Connection connection;
+   private final int capacity;
+   private final LinkedHashMap<String, PreparedStatement> statements;
+   private long hits = 0, misses = 0, evictions = 0;
+
+   public StatementCache(Connection connection, int capacity){
+      this.connection = connection;
+      this.capacity = capacity;
+      this.statements = new LinkedHashMap<>(16, 0.75f, true);
+   }//end StatementCache
+
+   /**
+    * Returns the cached statement for the SQL text, preparing it on a miss and
+    * closing the least recently used statement when the cache is full.
+    *
+    * @param sql the SQL text with ? placeholders
+    * @return a prepared statement owned by the cache; callers must not close it
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = statements.get(sql);
+      if (stmt != null && !stmt.isClosed()){
+         ++hits;
+         return stmt;
+      }
+      ++misses;
+      stmt = connection.prepareStatement(sql);
+      if (capacity <= 0)
+         return stmt;
+      statements.put(sql, stmt);
+      if (statements.size() > capacity){
+         Iterator<Map.Entry<String, PreparedStatement>> eldest = statements.entrySet().iterator();
+         closeQuietly(eldest.next().getValue());
+         eldest.remove();
+         ++evictions;
+      }
+      return stmt;
+   }//end prepare
+
+   /**
+    * Drops and closes the statement for the SQL text, e.g. after it failed and
+    * may have been left in an unusable state.
+    */
+   public void evict(String sql){
+      closeQuietly(statements.remove(sql));
+   }//end evict
+
+   /**
+    * @return false when caching is switched off and callers must close their statements
+    */
+   public boolean enabled(){
+      return capacity > 0;
+   }
+
+   public void clear(){
+      for (PreparedStatement stmt : statements.values())
+         closeQuietly(stmt);
+      statements.clear();
+   }//end clear
+
+   public long hits(){ return hits; }
+   public long misses(){ return misses; }
+   public long evictions(){ return evictions; }
+   public int size(){ return statements.size(); }
+
+   private static void closeQuietly(PreparedStatement stmt){
+      if (stmt == null) return;
+      try{
+         stmt.close();
+      }catch (SQLException e){
+         // ignored.
+      }
+   }
+
+}//end StatementCache
@@ -0,0 +1,77 @@
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class runs the menu operation paths for the JMH benchmarks on
+ * generated data, without a database: the distance function, the viewHotels
+ * filter as a linear scan and through HotelIndex, and the availability checks
+ * of viewRooms and bookRooms against RoomAvailability.
+ *
+ */
+public class HotelWorkload implements bench.Workload {
+
+   private List<HotelIndex.Entry> all;
+   private HotelIndex index;
+   private RoomAvailability availability;
+   private int rooms;
+
+   @Override
+   public void setUp(int hotels, int rooms, int bookings){
+      this.rooms = rooms;
+      Random seed = new Random(42);
+      all = new ArrayList<>(hotels);
+      index = new HotelIndex(Double.parseDouble(System.getProperty("hotel.index.cellSize", "5")));
+      for (int h = 1; h <= hotels; ++h){
+         HotelIndex.Entry e = new HotelIndex.Entry(h, "Hotel " + h, seed.nextDouble() * AREA, seed.nextDouble() * AREA);
+         all.add(e);
+         index.put(e);
+      }
+      availability = new RoomAvailability(Long.MAX_VALUE);
+      // every hotel gets a calendar, since without a database none can be read
+      for (int h = 1; h <= hotels; ++h)
+         availability.seed(h);
+      for (int b = 0; b < bookings; ++b)
+         availability.seed(1 + seed.nextInt(hotels), 1 + seed.nextInt(rooms), FIRST_DAY.plusDays(seed.nextInt(DAYS)));
+   }//end setUp
+
+   @Override
+   public double distance(double lat, double lon){
+      double total = 0;
+      for (HotelIndex.Entry h : all)
+         total += Hotel.calculateDistance(lat, lon, h.latitude, h.longitude);
+      return total;
+   }
+
+   @Override
+   public List<HotelIndex.Entry> viewHotelsScan(double lat, double lon){
+      List<HotelIndex.Entry> found = new ArrayList<>();
+      for (HotelIndex.Entry h : all)
+         if (Hotel.calculateDistance(lat, lon, h.latitude, h.longitude) <= Hotel.SEARCH_RADIUS)
+            found.add(h);
+      return found;
+   }
+
+   @Override
+   public List<HotelIndex.Match> viewHotelsIndex(double lat, double lon){
+      return index.withinRadius(lat, lon, Hotel.SEARCH_RADIUS);
+   }
+
+   @Override
+   public int viewRooms(int hotelId, LocalDate date) throws Exception {
+      int free = 0;
+      for (int r = 1; r <= rooms; ++r)
+         if (availability.isFree(null, hotelId, r, date)) ++free;
+      return free;
+   }
+
+   @Override
+   public boolean bookRoom(int hotelId, int roomNumber, LocalDate date) throws Exception {
+      if (!availability.isFree(null, hotelId, roomNumber, date)) return false;
+      availability.markBooked(hotelId, roomNumber, date);
+      availability.markFree(hotelId, roomNumber, date);
+      return true;
+   }
+
+}//end HotelWorkload
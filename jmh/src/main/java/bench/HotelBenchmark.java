@@ -0,0 +1,89 @@
+package bench;
+
+import java.time.LocalDate;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * This class benchmarks the paths behind the menu operations on generated
+ * hotels and bookings. Every benchmark reports its throughput and, from the
+ * sample time mode, its latency percentiles. The sizes are parameters, e.g.
+ *
+ *    gradle :jmh:jmh -PjmhArgs="-p hotels=10000 -p rooms=50 -p bookings=1000000"
+ *
+ * End-to-end timings against a database are taken by LoadGenerator.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotelBenchmark {
+
+   @Param("1000")
+   public int hotels;
+
+   @Param("10")
+   public int rooms;
+
+   @Param("100000")
+   public int bookings;
+
+   private Workload workload;
+
+   @Setup
+   public void setUp() throws ReflectiveOperationException {
+      workload = (Workload) Class.forName("HotelWorkload").getDeclaredConstructor().newInstance();
+      workload.setUp(hotels, rooms, bookings);
+   }//end setUp
+
+   @Benchmark
+   public double calculateDistance(){
+      ThreadLocalRandom rnd = ThreadLocalRandom.current();
+      return workload.distance(rnd.nextDouble() * Workload.AREA, rnd.nextDouble() * Workload.AREA);
+   }
+
+   @Benchmark
+   public void viewHotelsScan(Blackhole bh){
+      ThreadLocalRandom rnd = ThreadLocalRandom.current();
+      bh.consume(workload.viewHotelsScan(rnd.nextDouble() * Workload.AREA, rnd.nextDouble() * Workload.AREA));
+   }
+
+   @Benchmark
+   public void viewHotelsIndex(Blackhole bh){
+      ThreadLocalRandom rnd = ThreadLocalRandom.current();
+      bh.consume(workload.viewHotelsIndex(rnd.nextDouble() * Workload.AREA, rnd.nextDouble() * Workload.AREA));
+   }
+
+   @Benchmark
+   public void viewRooms(Blackhole bh) throws Exception {
+      ThreadLocalRandom rnd = ThreadLocalRandom.current();
+      bh.consume(workload.viewRooms(1 + rnd.nextInt(hotels), day(rnd)));
+   }
+
+   @Benchmark
+   public void bookRooms(Blackhole bh) throws Exception {
+      ThreadLocalRandom rnd = ThreadLocalRandom.current();
+      bh.consume(workload.bookRoom(1 + rnd.nextInt(hotels), 1 + rnd.nextInt(rooms), day(rnd)));
+   }
+
+   private static LocalDate day(ThreadLocalRandom rnd){
+      return Workload.FIRST_DAY.plusDays(rnd.nextInt(Workload.DAYS));
+   }
+
+}//end HotelBenchmark
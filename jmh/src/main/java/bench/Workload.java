@@ -0,0 +1,53 @@
+package bench;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * The menu operation paths as the benchmarks call them. JMH does not accept
+ * benchmarks in the default package, where the application classes live, and
+ * classes in a named package cannot refer to those; HotelWorkload implements
+ * this interface next to them.
+ *
+ */
+public interface Workload {
+
+   double AREA = 100;
+   LocalDate FIRST_DAY = LocalDate.of(2023, 1, 1);
+   int DAYS = 365;
+
+   /**
+    * Generates the hotels on an AREA by AREA square and books random rooms
+    * on random days of the DAYS from FIRST_DAY.
+    */
+   void setUp(int hotels, int rooms, int bookings);
+
+   /**
+    * @return the sum of the distances from the point to every hotel
+    */
+   double distance(double lat, double lon);
+
+   /**
+    * @return the hotels within the search radius, found by the viewHotels linear scan
+    */
+   List<?> viewHotelsScan(double lat, double lon);
+
+   /**
+    * @return the hotels within the search radius, found through HotelIndex
+    */
+   List<?> viewHotelsIndex(double lat, double lon);
+
+   /**
+    * @return the number of free rooms of the hotel on the date, as viewRooms checks them
+    */
+   int viewRooms(int hotelId, LocalDate date) throws Exception;
+
+   /**
+    * Checks a room as bookRooms does and, when it is free, marks it booked
+    * and free again, so the calendars keep their occupancy.
+    *
+    * @return whether the room was free
+    */
+   boolean bookRoom(int hotelId, int roomNumber, LocalDate date) throws Exception;
+
+}//end Workload
@@ -0,0 +1,57 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that overlapping rules leave every room to the rule written last,
+ * also when the rules land in different batches.
+ *
+ */
+public class BulkPricingTest {
+
+   // the rules matching the room after resolve
+   private static List<BulkPricing.Rule> matching(List<BulkPricing.Rule> rules, int hotelId, int roomNumber){
+      List<BulkPricing.Rule> found = new ArrayList<>();
+      for (BulkPricing.Rule rule : BulkPricing.resolve(rules))
+         if (rule.hotelId == hotelId && rule.loRoom <= roomNumber && roomNumber <= rule.hiRoom) found.add(rule);
+      return found;
+   }
+
+   @Test
+   public void overlappingRulesInDifferentBatchesChangeARoomOnce(){
+      List<BulkPricing.Rule> rules = BulkPricing.parse("12 100-199 +10%");
+      for (int i = 0; i < 599; ++i)
+         rules.add(BulkPricing.Rule.price(1000 + i, 1, 1, BigDecimal.TEN));
+      rules.addAll(BulkPricing.parse("12 150 =149.00"));
+      // 600 rules apart, so with the default batch size they are sent in different statements
+      assertEquals(601, rules.size());
+
+      List<BulkPricing.Rule> room150 = matching(rules, 12, 150);
+      assertEquals(1, room150.size());
+      assertEquals(new BigDecimal("149.00"), room150.get(0).price);
+      assertNull(room150.get(0).factor);
+
+      for (int room : new int[]{100, 149, 151, 199}){
+         List<BulkPricing.Rule> other = matching(rules, 12, room);
+         assertEquals(1, other.size());
+         assertEquals(new BigDecimal("1.10"), other.get(0).factor);
+      }
+   }
+
+   @Test
+   public void everyRoomIsMatchedByAtMostOneRule(){
+      List<BulkPricing.Rule> rules = BulkPricing.parse(String.join("\n",
+         "12 * +10%", "12 50-60 =80", "12 55-70 -5%", "12 58 =99", "13 1-5 =10", "12 * =70", "12 65 +1%"));
+      for (int room = 0; room <= 100; ++room)
+         assertEquals(1, matching(rules, 12, room).size(), "room " + room);
+      assertEquals(new BigDecimal("1.01"), matching(rules, 12, 65).get(0).factor);
+      assertEquals(new BigDecimal("70"), matching(rules, 12, 58).get(0).price);
+      assertEquals(new BigDecimal("10"), matching(rules, 13, 3).get(0).price);
+   }
+
+}//end BulkPricingTest